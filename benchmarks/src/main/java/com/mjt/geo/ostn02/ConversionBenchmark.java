@@ -0,0 +1,179 @@
+package com.mjt.geo.ostn02;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Whole conversions, one point at a time and in batches, with shifts
+ * interpolated in each precision.
+ * 
+ * @author Michael Tandy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConversionBenchmark {
+    static final int POINTS = 4096;
+    
+    @Param({"UNIFORM", "CITIES", "TRACKS"})
+    PointDistribution distribution;
+    
+    @Param({"FLOAT", "DOUBLE"})
+    Ostn02LookupTable.Precision precision;
+    
+    double[] eastings, northings, latitudes, longitudes;
+    double[] outA = new double[POINTS];
+    double[] outB = new double[POINTS];
+    ByteBuffer latLonBuffer = ByteBuffer.allocateDirect(16*POINTS).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer eastNorthBuffer = ByteBuffer.allocateDirect(16*POINTS).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer outBuffer = ByteBuffer.allocateDirect(16*POINTS).order(ByteOrder.LITTLE_ENDIAN);
+    MutableCoordinate holder = new MutableCoordinate();
+    
+    final Etrs89ToOsgb36<EastingNorthing> toGrid = new Etrs89ToOsgb36<EastingNorthing>() {
+        protected EastingNorthing produceOutput(double east, double north) {
+            return new EastingNorthing(east, north);
+        }
+    };
+    final Osgb36ToEtrs89<LatitudeLongitude> toLatLon = new Osgb36ToEtrs89<LatitudeLongitude>() {
+        protected LatitudeLongitude produceOutput(double latitude, double longitude) {
+            return new LatitudeLongitude(latitude, longitude);
+        }
+    };
+    
+    @Setup
+    public void setup() {
+        double[][] eastNorth = distribution.eastingsNorthings(POINTS);
+        double[][] latLon = distribution.latitudesLongitudes(POINTS);
+        eastings = eastNorth[0];
+        northings = eastNorth[1];
+        latitudes = latLon[0];
+        longitudes = latLon[1];
+        for (int i=0 ; i<POINTS ; i++) {
+            latLonBuffer.putDouble(16*i, latitudes[i]);
+            latLonBuffer.putDouble(16*i+8, longitudes[i]);
+            eastNorthBuffer.putDouble(16*i, eastings[i]);
+            eastNorthBuffer.putDouble(16*i+8, northings[i]);
+        }
+        Ostn02LookupTable.setPrecision(precision);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        Ostn02LookupTable.setPrecision(Ostn02LookupTable.Precision.FLOAT);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void etrs89ToOsgb36(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            bh.consume(toGrid.convert(latitudes[i], longitudes[i]));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void osgb36ToEtrs89(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            bh.consume(toLatLon.convert(eastings[i], northings[i]));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void etrs89ToOsgb36Sink(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            Etrs89ToOsgb36.convert(latitudes[i], longitudes[i], holder);
+            bh.consume(holder.getFirst());
+            bh.consume(holder.getSecond());
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void osgb36ToEtrs89Sink(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            Osgb36ToEtrs89.convert(eastings[i], northings[i], holder);
+            bh.consume(holder.getFirst());
+            bh.consume(holder.getSecond());
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void etrs89ToOsgb36Approximate(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            Etrs89ToOsgb36.convertApproximate(latitudes[i], longitudes[i], holder);
+            bh.consume(holder.getFirst());
+            bh.consume(holder.getSecond());
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void osgb36ToEtrs89Approximate(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            Osgb36ToEtrs89.convertApproximate(eastings[i], northings[i], holder);
+            bh.consume(holder.getFirst());
+            bh.consume(holder.getSecond());
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void etrs89ToOsgb36Batch() {
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, outA, outB, 0, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void osgb36ToEtrs89Batch() {
+        Osgb36ToEtrs89.convert(eastings, northings, 0, outA, outB, 0, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void etrs89ToOsgb36DirectBuffer() {
+        Etrs89ToOsgb36.convertInterleaved(latLonBuffer, 0, 16, outBuffer, 0, 16, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void osgb36ToEtrs89DirectBuffer() {
+        Osgb36ToEtrs89.convertInterleaved(eastNorthBuffer, 0, 16, outBuffer, 0, 16, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void etrs89ToOsgb36Vectorised() {
+        Etrs89ToOsgb36.convertVectorised(latitudes, longitudes, 0, outA, outB, 0, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void osgb36ToEtrs89Vectorised() {
+        Osgb36ToEtrs89.convertVectorised(eastings, northings, 0, outA, outB, 0, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void eastingNorthingToLatitudeLongitude(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            bh.consume(new EastingNorthing(eastings[i], northings[i]).toLatitudeLongitude());
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void roundTrip(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            bh.consume(new EastingNorthing(eastings[i], northings[i]).toLatitudeLongitude().toEastingNorthing());
+        }
+    }
+    
+}
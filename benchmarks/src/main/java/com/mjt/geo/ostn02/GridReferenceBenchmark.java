@@ -0,0 +1,88 @@
+package com.mjt.geo.ostn02;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Grid reference parsing and formatting, against the regex and split
+ * parsing it replaces.
+ * 
+ * @author Michael Tandy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GridReferenceBenchmark {
+    static final int POINTS = 4096;
+    static final Pattern PATTERN = Pattern.compile("([A-Z])([A-Z])\\s*(\\d+)\\s+(\\d+)");
+    static final String LETTERS = "ABCDEFGHJKLMNOPQRSTUVWXYZ";
+    
+    String[] references = new String[POINTS];
+    double[] eastings, northings;
+    double[] outA = new double[POINTS];
+    double[] outB = new double[POINTS];
+    StringBuilder out = new StringBuilder();
+    MutableCoordinate holder = new MutableCoordinate();
+    
+    @Setup
+    public void setup() {
+        double[][] eastNorth = PointDistribution.UNIFORM.eastingsNorthings(POINTS);
+        eastings = eastNorth[0];
+        northings = eastNorth[1];
+        StringBuilder reference = new StringBuilder();
+        for (int i=0 ; i<POINTS ; i++) {
+            reference.setLength(0);
+            GridReference.format(eastings[i], northings[i], 10, reference);
+            references[i] = reference.toString();
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void parseRegex(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            Matcher matcher = PATTERN.matcher(references[i]);
+            if (!matcher.matches())
+                throw new IllegalStateException(references[i]);
+            int first = LETTERS.indexOf(matcher.group(1));
+            int second = LETTERS.indexOf(matcher.group(2));
+            int squareEast = ((first-2)%5)*5 + second%5;
+            int squareNorth = (19 - (first/5)*5) - second/5;
+            String[] digits = (matcher.group(3) + " " + matcher.group(4)).split(" ");
+            bh.consume(new EastingNorthing(100000*squareEast + Integer.parseInt(digits[0]),
+                    100000*squareNorth + Integer.parseInt(digits[1])));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public double parse() {
+        double sum = 0;
+        for (int i=0 ; i<POINTS ; i++) {
+            GridReference.parse(references[i], 0, references[i].length(), holder);
+            sum += holder.getFirst();
+        }
+        return sum;
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public int parseBatch() {
+        return GridReference.parse(references, 0, outA, outB, 0, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public int format() {
+        out.setLength(0);
+        GridReference.format(eastings, northings, 0, POINTS, 10, out, '\n');
+        return out.length();
+    }
+    
+}
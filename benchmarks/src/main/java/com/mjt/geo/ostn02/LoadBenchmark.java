@@ -0,0 +1,73 @@
+package com.mjt.geo.ostn02;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time to read the table from the bundled resource. Each measurement is a
+ * single load in a fresh fork, which is what a service pays at startup; the
+ * warm variant shows the cost once the JIT and file cache have caught up.
+ * The tiled variant opens a tiled copy and reads one lookup's worth, which is
+ * what a service working in one region pays instead.
+ * 
+ * @author Michael Tandy
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoadBenchmark {
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(10)
+    public Object coldLoad() throws Exception {
+        return Ostn02LookupTable.loadData();
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Fork(1)
+    public Object warmLoad() throws Exception {
+        return Ostn02LookupTable.loadData();
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(10)
+    public int coldTiledLookup(TiledFile tiled) throws Exception {
+        TiledShiftStorage storage = TiledShiftStorage.open(tiled.file, 2, Ostn02LookupTable.MAX_EAST_KM+1,
+                Ostn02LookupTable.MAX_NORTH_KM+1, (int)Ostn02LookupTable.SCALE_FACTOR, 0);
+        // Central London.
+        return storage.get(2*(528+(Ostn02LookupTable.MAX_EAST_KM+1)*180));
+    }
+    
+    @State(Scope.Benchmark)
+    public static class TiledFile {
+        File file;
+        
+        @Setup
+        public void setup() throws IOException {
+            file = File.createTempFile("ostn02", ".tiles");
+            OutputStream out = new FileOutputStream(file);
+            try {
+                Ostn02LookupTable.writeTiledData(out);
+            } finally {
+                out.close();
+            }
+        }
+        
+        @TearDown
+        public void tearDown() {
+            file.delete();
+        }
+    }
+    
+}
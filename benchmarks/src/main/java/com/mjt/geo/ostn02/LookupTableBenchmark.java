@@ -0,0 +1,132 @@
+package com.mjt.geo.ostn02;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Grid shift lookups on their own, without the projection maths.
+ * 
+ * @author Michael Tandy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LookupTableBenchmark {
+    static final int POINTS = 4096;
+    
+    @Param({"UNIFORM", "CITIES", "TRACKS"})
+    PointDistribution distribution;
+    
+    float[] eastings = new float[POINTS];
+    float[] northings = new float[POINTS];
+    double[] doubleEastings;
+    double[] doubleNorthings;
+    float[] shift = new float[2];
+    double[] doubleShift = new double[2];
+    ShiftCellCache cache = new ShiftCellCache();
+    ReverseShiftGrid reverseGrid;
+    
+    @Setup
+    public void setup() {
+        double[][] eastNorth = distribution.eastingsNorthings(POINTS);
+        for (int i=0 ; i<POINTS ; i++) {
+            eastings[i] = (float)eastNorth[0][i];
+            northings[i] = (float)eastNorth[1][i];
+        }
+        doubleEastings = eastNorth[0];
+        doubleNorthings = eastNorth[1];
+        reverseGrid = ReverseShiftGrid.build();
+        Ostn02LookupTable.preload();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void getShiftFrom(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            bh.consume(Ostn02LookupTable.getShiftFrom(eastings[i], northings[i]));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void getShiftTo(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            bh.consume(Ostn02LookupTable.getShiftTo(eastings[i], northings[i]));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void getShiftFromArray(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            Ostn02LookupTable.getShiftFrom(eastings[i], northings[i], shift);
+            bh.consume(shift[0]);
+            bh.consume(shift[1]);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void getShiftToArray(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            Ostn02LookupTable.getShiftTo(eastings[i], northings[i], shift);
+            bh.consume(shift[0]);
+            bh.consume(shift[1]);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void getShiftFromCached(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            cache.getShiftFrom(eastings[i], northings[i], shift);
+            bh.consume(shift[0]);
+            bh.consume(shift[1]);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void getShiftFromDouble(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            Ostn02LookupTable.getShiftFrom(doubleEastings[i], doubleNorthings[i], doubleShift);
+            bh.consume(doubleShift[0]);
+            bh.consume(doubleShift[1]);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void getShiftFromDoubleCached(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            cache.getShiftFrom(doubleEastings[i], doubleNorthings[i], doubleShift);
+            bh.consume(doubleShift[0]);
+            bh.consume(doubleShift[1]);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void getShiftToConvergent(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            bh.consume(cache.getShiftTo(doubleEastings[i], doubleNorthings[i], 0.0001, doubleShift));
+            bh.consume(doubleShift[0]);
+            bh.consume(doubleShift[1]);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void getShiftToReverseGrid(Blackhole bh) {
+        for (int i=0 ; i<POINTS ; i++) {
+            reverseGrid.getShiftTo(doubleEastings[i], doubleNorthings[i], doubleShift);
+            bh.consume(doubleShift[0]);
+            bh.consume(doubleShift[1]);
+        }
+    }
+    
+}
@@ -0,0 +1,68 @@
+package com.mjt.geo.ostn02;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Conversions with metrics disabled and enabled, to check the hooks cost
+ * nothing when off and little when on.
+ * 
+ * @author Michael Tandy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+    static final int POINTS = 4096;
+    
+    @Param({"false", "true"})
+    boolean enabled;
+    
+    double[] eastings, northings, latitudes, longitudes;
+    double[] outA = new double[POINTS];
+    double[] outB = new double[POINTS];
+    MutableCoordinate holder = new MutableCoordinate();
+    
+    @Setup
+    public void setup() {
+        double[][] eastNorth = PointDistribution.UNIFORM.eastingsNorthings(POINTS);
+        double[][] latLon = PointDistribution.UNIFORM.latitudesLongitudes(POINTS);
+        eastings = eastNorth[0];
+        northings = eastNorth[1];
+        latitudes = latLon[0];
+        longitudes = latLon[1];
+        Ostn02Metrics.setEnabled(enabled);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        Ostn02Metrics.setEnabled(false);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public double etrs89ToOsgb36Sink() {
+        double sum = 0;
+        for (int i=0 ; i<POINTS ; i++) {
+            Etrs89ToOsgb36.convert(latitudes[i], longitudes[i], holder);
+            sum += holder.getFirst();
+        }
+        return sum;
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void etrs89ToOsgb36Batch() {
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, outA, outB, 0, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void osgb36ToEtrs89Batch() {
+        Osgb36ToEtrs89.convert(eastings, northings, 0, outA, outB, 0, POINTS);
+    }
+    
+}
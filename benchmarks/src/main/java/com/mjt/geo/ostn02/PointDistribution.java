@@ -0,0 +1,84 @@
+package com.mjt.geo.ostn02;
+
+import java.util.Random;
+
+/**
+ * Sets of test points, in OSGB36 eastings/northings, shaped like the inputs
+ * real users send: spread over the whole country, clustered around cities, or
+ * strung out along GPS tracks. Generation is seeded so runs are comparable.
+ * 
+ * @author Michael Tandy
+ */
+public enum PointDistribution {
+    /** Uniform over the part of the grid that covers Great Britain. */
+    UNIFORM {
+        void generate(Random random, double[] eastings, double[] northings) {
+            for (int i=0 ; i<eastings.length ; i++) {
+                eastings[i] = 80000 + random.nextDouble()*575000;
+                northings[i] = 10000 + random.nextDouble()*1210000;
+            }
+        }
+    },
+    /** Normally distributed around a handful of city centres. */
+    CITIES {
+        void generate(Random random, double[] eastings, double[] northings) {
+            for (int i=0 ; i<eastings.length ; i++) {
+                double[] city = CITY_CENTRES[random.nextInt(CITY_CENTRES.length)];
+                eastings[i] = city[0] + random.nextGaussian()*CITY_RADIUS;
+                northings[i] = city[1] + random.nextGaussian()*CITY_RADIUS;
+            }
+        }
+    },
+    /** Random-walk tracks leaving city centres, one fix every few metres. */
+    TRACKS {
+        void generate(Random random, double[] eastings, double[] northings) {
+            double east = 0, north = 0, heading = 0;
+            for (int i=0 ; i<eastings.length ; i++) {
+                if (i % TRACK_LENGTH == 0) {
+                    double[] city = CITY_CENTRES[random.nextInt(CITY_CENTRES.length)];
+                    east = city[0];
+                    north = city[1];
+                    heading = random.nextDouble()*2*Math.PI;
+                }
+                heading += random.nextGaussian()*0.1;
+                double step = 2 + random.nextDouble()*10;
+                east += step*Math.sin(heading);
+                north += step*Math.cos(heading);
+                eastings[i] = east;
+                northings[i] = north;
+            }
+        }
+    };
+    
+    /** London, Birmingham, Manchester, Leeds, Glasgow, Edinburgh, Bristol, Cardiff. */
+    private static final double[][] CITY_CENTRES = {
+        {530000, 180000}, {407000, 287000}, {384000, 398000}, {430000, 433000},
+        {259000, 665000}, {325000, 673000}, {359000, 173000}, {318000, 176000}
+    };
+    private static final double CITY_RADIUS = 5000;
+    private static final int TRACK_LENGTH = 1000;
+    
+    abstract void generate(Random random, double[] eastings, double[] northings);
+    
+    /**
+     * @param count
+     * @return eastings in element 0, northings in element 1.
+     */
+    double[][] eastingsNorthings(int count) {
+        double[][] result = new double[2][count];
+        generate(new Random(count), result[0], result[1]);
+        return result;
+    }
+    
+    /**
+     * @param count
+     * @return latitudes in element 0, longitudes in element 1.
+     */
+    double[][] latitudesLongitudes(int count) {
+        double[][] eastNorth = eastingsNorthings(count);
+        double[][] result = new double[2][count];
+        Osgb36ToEtrs89.convert(eastNorth[0], eastNorth[1], 0, result[0], result[1], 0, count);
+        return result;
+    }
+    
+}
@@ -0,0 +1,69 @@
+package com.mjt.geo.ostn02;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reprojecting a 1000x1000 pixel raster over London, pixel by pixel through
+ * the array conversions and a row at a time with <code>convertRaster</code>.
+ * The gap widens with the number of cores.
+ * 
+ * @author Michael Tandy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RasterBenchmark {
+    
+    static final int SIZE = 1000;
+    static final int PIXELS = SIZE*SIZE;
+    static final double ORIGIN_LATITUDE = 51.55, ORIGIN_LONGITUDE = -0.2, DEGREES = 0.0002;
+    static final double ORIGIN_EASTING = 525000, ORIGIN_NORTHING = 185000, METRES = 10;
+    
+    double[] eastings = new double[PIXELS];
+    double[] northings = new double[PIXELS];
+    double[] latitudes = new double[PIXELS];
+    double[] longitudes = new double[PIXELS];
+    double[] outA = new double[PIXELS];
+    double[] outB = new double[PIXELS];
+    
+    @Setup
+    public void setup() {
+        for (int row=0 ; row<SIZE ; row++) {
+            for (int column=0 ; column<SIZE ; column++) {
+                latitudes[column+SIZE*row] = ORIGIN_LATITUDE - row*DEGREES;
+                longitudes[column+SIZE*row] = ORIGIN_LONGITUDE + column*DEGREES;
+                eastings[column+SIZE*row] = ORIGIN_EASTING + column*METRES;
+                northings[column+SIZE*row] = ORIGIN_NORTHING - row*METRES;
+            }
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public void etrs89ToOsgb36PerPixel() {
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, outA, outB, 0, PIXELS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public void etrs89ToOsgb36Raster() {
+        Etrs89ToOsgb36.convertRaster(ORIGIN_LATITUDE, ORIGIN_LONGITUDE, -DEGREES, DEGREES, SIZE, SIZE, outA, outB);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public void osgb36ToEtrs89PerPixel() {
+        Osgb36ToEtrs89.convert(eastings, northings, 0, outA, outB, 0, PIXELS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public void osgb36ToEtrs89Raster() {
+        Osgb36ToEtrs89.convertRaster(ORIGIN_EASTING, ORIGIN_NORTHING, METRES, -METRES, SIZE, SIZE, outA, outB);
+    }
+    
+}
@@ -0,0 +1,67 @@
+package com.mjt.geo.ostn02;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Single point conversions of a few thousand points converted over and over,
+ * as with postcode centroids, with and without a result cache; a miss costs
+ * the uncached conversion plus the lookup.
+ * 
+ * @author Michael Tandy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResultCacheBenchmark {
+    static final int POINTS = 4096;
+    
+    @Param({"NONE", "CLOCK", "LRU"})
+    String eviction;
+    
+    double[] eastings, northings, latitudes, longitudes;
+    final MutableCoordinate holder = new MutableCoordinate();
+    
+    @Setup
+    public void setup() {
+        double[][] eastNorth = PointDistribution.CITIES.eastingsNorthings(POINTS);
+        double[][] latLon = PointDistribution.CITIES.latitudesLongitudes(POINTS);
+        eastings = eastNorth[0];
+        northings = eastNorth[1];
+        latitudes = latLon[0];
+        longitudes = latLon[1];
+        if (!"NONE".equals(eviction)) {
+            ConversionCache.Eviction policy = ConversionCache.Eviction.valueOf(eviction);
+            Etrs89ToOsgb36.setResultCache(new ConversionCache(2*POINTS, 1e-8, policy));
+            Osgb36ToEtrs89.setResultCache(new ConversionCache(2*POINTS, 0.001, policy));
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        Etrs89ToOsgb36.setResultCache(null);
+        Osgb36ToEtrs89.setResultCache(null);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public MutableCoordinate etrs89ToOsgb36() {
+        for (int i=0 ; i<POINTS ; i++) {
+            Etrs89ToOsgb36.convert(latitudes[i], longitudes[i], holder);
+        }
+        return holder;
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public MutableCoordinate osgb36ToEtrs89() {
+        for (int i=0 ; i<POINTS ; i++) {
+            Osgb36ToEtrs89.convert(eastings[i], northings[i], holder);
+        }
+        return holder;
+    }
+    
+}
@@ -0,0 +1,64 @@
+package com.mjt.geo.ostn02;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Large batches of points spread at random over the country, converted in
+ * array order and in Z-order. Run with <code>-prof perfnorm</code> on Linux
+ * to see the cache misses behind the difference.
+ * 
+ * @author Michael Tandy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ZOrderBenchmark {
+    
+    static final int POINTS = 1 << 20;
+    
+    @Param({"UNIFORM", "CITIES"})
+    PointDistribution distribution;
+    
+    double[] eastings, northings, latitudes, longitudes;
+    double[] outA = new double[POINTS];
+    double[] outB = new double[POINTS];
+    
+    @Setup
+    public void setup() {
+        double[][] eastNorth = distribution.eastingsNorthings(POINTS);
+        double[][] latLon = distribution.latitudesLongitudes(POINTS);
+        eastings = eastNorth[0];
+        northings = eastNorth[1];
+        latitudes = latLon[0];
+        longitudes = latLon[1];
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void etrs89ToOsgb36() {
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, outA, outB, 0, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void etrs89ToOsgb36ZOrdered() {
+        Etrs89ToOsgb36.convertZOrdered(latitudes, longitudes, 0, outA, outB, 0, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void osgb36ToEtrs89() {
+        Osgb36ToEtrs89.convert(eastings, northings, 0, outA, outB, 0, POINTS);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void osgb36ToEtrs89ZOrdered() {
+        Osgb36ToEtrs89.convertZOrdered(eastings, northings, 0, outA, outB, 0, POINTS);
+    }
+    
+}
@@ -0,0 +1,636 @@
+package com.mjt.geo.ostn02;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves conversions to other processes, over HTTP and over a compact binary
+ * protocol on TCP. Every request and connection gets its own thread - a
+ * virtual thread when running on Java 21 or later, otherwise a thread from a
+ * cached pool - and all of them share the one lookup table, which is loaded
+ * before the server starts listening.
+ *
+ * HTTP endpoints:
+ * <ul>
+ * <li><code>GET /to-osgb36?lat=...&amp;lon=...</code> returns
+ * <code>{"east":...,"north":...}</code></li>
+ * <li><code>GET /to-etrs89?east=...&amp;north=...</code> returns
+ * <code>{"lat":...,"lon":...}</code>. Coordinates must be finite numbers,
+ * or the request gets a 400; a result that isn't finite is
+ * <code>null</code>.</li>
+ * <li><code>POST /to-osgb36</code> or <code>POST /to-etrs89</code> converts
+ * a batch in the <code>PointFileConverter</code> formats: CSV, or pairs of
+ * little-endian doubles if the content type is
+ * <code>application/octet-stream</code>. Bodies over
+ * <code>setMaxBatchBytes</code> get a 413.</li>
+ * <li><code>GET /stats</code> returns the HTTP and TCP counters.</li>
+ * </ul>
+ *
+ * TCP requests are a one byte direction (1 to OSGB36, 2 to ETRS89), a point
+ * count as a little-endian int, then that many pairs of little-endian
+ * doubles. The response is the count followed by the converted pairs. A
+ * connection can carry any number of requests, and they may be pipelined.
+ * A malformed request gets a count of -1, and the connection is closed.
+ *
+ * Memory is bounded by the request limits and by
+ * <code>setMaxConnections</code>, which caps TCP connections and HTTP batch
+ * requests in progress; beyond it, TCP connections are closed as soon as
+ * they're accepted and batches get a 503. Single points and batches are
+ * converted exactly alike.
+ *
+ * @author Michael Tandy
+ */
+public class ConversionServer {
+    public static final byte TCP_TO_OSGB36 = 1;
+    public static final byte TCP_TO_ETRS89 = 2;
+    /** Most points accepted in one TCP request. */
+    public static final int TCP_MAX_POINTS = 1 << 16;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int TCP_HEADER = 5;
+    private static final int BATCH_CHUNK_SIZE = 64*1024;
+    /** Points a connection's buffers keep room for between requests. */
+    private static final int TCP_RETAINED_POINTS = 4096;
+
+    private InetSocketAddress httpAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 8080);
+    private InetSocketAddress tcpAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 8081);
+    private final ServerStats httpStats = new ServerStats();
+    private final ServerStats tcpStats = new ServerStats();
+    private final Set<SocketChannel> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<SocketChannel, Boolean>());
+
+    private int maxConnections = 256;
+    private int maxBatchBytes = 16 << 20;
+    private ExecutorService executor;
+    private Semaphore permits;
+    private HttpServer httpServer;
+    private ServerSocketChannel tcpServer;
+
+    /**
+     * @param httpAddress address to serve HTTP on, or null for no HTTP.
+     * Port 0 picks a free port. Loopback port 8080 by default.
+     */
+    public void setHttpAddress(InetSocketAddress httpAddress) {
+        this.httpAddress = httpAddress;
+    }
+
+    /**
+     * @param tcpAddress address to serve the binary protocol on, or null for
+     * none. Port 0 picks a free port. Loopback port 8081 by default.
+     */
+    public void setTcpAddress(InetSocketAddress tcpAddress) {
+        this.tcpAddress = tcpAddress;
+    }
+
+    /**
+     * @param maxConnections most TCP connections open, plus HTTP batch
+     * requests in progress, at once; 256 by default. Each may hold a few
+     * megabytes while converting.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("Need at least one connection");
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param maxBatchBytes largest HTTP batch request body accepted; 16 MB by
+     * default.
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        if (maxBatchBytes < 0)
+            throw new IllegalArgumentException("Batch size limit must not be negative");
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Loads the lookup table and starts listening.
+     * @throws IOException if an address can't be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (executor != null)
+            throw new IllegalStateException("Already started");
+        Ostn02LookupTable.preload();
+        // Responses are written as headers then body; without this, Nagle's
+        // algorithm holds the body until the client's delayed ack, ~40ms later.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        executor = newThreadPerTaskExecutor("ostn02-server");
+        permits = new Semaphore(maxConnections);
+        try {
+            if (httpAddress != null) {
+                httpServer = HttpServer.create(httpAddress, 0);
+                httpServer.createContext("/", new HttpHandler() {
+                    @Override
+                    public void handle(HttpExchange exchange) throws IOException {
+                        handleHttp(exchange);
+                    }
+                });
+                httpServer.setExecutor(executor);
+                httpServer.start();
+            }
+            if (tcpAddress != null) {
+                final ServerSocketChannel server = ServerSocketChannel.open();
+                tcpServer = server;
+                server.bind(tcpAddress);
+                final ExecutorService connectionExecutor = executor;
+                Thread acceptor = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        acceptTcp(server, connectionExecutor);
+                    }
+                }, "ostn02-server-accept");
+                acceptor.start();
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops listening and closes open connections. Requests in progress may
+     * be cut off.
+     */
+    public synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (tcpServer != null) {
+            closeQuietly(tcpServer);
+            tcpServer = null;
+        }
+        for (SocketChannel connection : connections) {
+            closeQuietly(connection);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * @return the HTTP port, useful when started on port 0, or -1 if not
+     * serving HTTP.
+     */
+    public synchronized int getHttpPort() {
+        return httpServer == null ? -1 : httpServer.getAddress().getPort();
+    }
+
+    /**
+     * @return the TCP port, or -1 if not serving TCP.
+     */
+    public synchronized int getTcpPort() {
+        try {
+            return tcpServer == null ? -1 : ((InetSocketAddress)tcpServer.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public ServerStats getHttpStats() {
+        return httpStats;
+    }
+
+    public ServerStats getTcpStats() {
+        return tcpStats;
+    }
+
+    /**
+     * An executor that runs each task on a new virtual thread, or on a cached
+     * pool of daemon threads where virtual threads aren't available. Looked
+     * up reflectively so the module still builds and runs on Java 8.
+     */
+    static ExecutorService newThreadPerTaskExecutor(final String name) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private void handleHttp(HttpExchange exchange) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/stats")) {
+                respond(exchange, 200, "application/json", ("{\"http\":" + httpStats.toJson()
+                        + ",\"tcp\":" + tcpStats.toJson() + "}").getBytes(ASCII));
+                return;
+            }
+
+            PointFileConverter.Direction direction;
+            if (path.equals("/to-osgb36")) {
+                direction = PointFileConverter.Direction.TO_OSGB36;
+            } else if (path.equals("/to-etrs89")) {
+                direction = PointFileConverter.Direction.TO_ETRS89;
+            } else {
+                httpStats.error();
+                respond(exchange, 404, "text/plain", "Not found\n".getBytes(ASCII));
+                return;
+            }
+
+            if (!method.equals("GET") && !method.equals("POST")) {
+                httpStats.error();
+                respond(exchange, 405, "text/plain", "Use GET or POST\n".getBytes(ASCII));
+                return;
+            }
+
+            byte[] body;
+            long[] points = new long[1];
+            boolean batch = method.equals("POST");
+            if (batch && !permits.tryAcquire()) {
+                httpStats.error();
+                respond(exchange, 503, "text/plain", "Too many requests in progress\n".getBytes(ASCII));
+                return;
+            }
+            try {
+                body = batch ? convertBatch(exchange, direction, points, maxBatchBytes)
+                        : convertSingle(exchange, direction);
+            } catch (BatchTooLargeException e) {
+                httpStats.error();
+                respond(exchange, 413, "text/plain", (e.getMessage() + "\n").getBytes(ASCII));
+                return;
+            } catch (IllegalArgumentException | IOException e) {
+                httpStats.error();
+                respond(exchange, 400, "text/plain", (e.getMessage() + "\n").getBytes(ASCII));
+                return;
+            } finally {
+                if (batch)
+                    permits.release();
+            }
+            // Counted before responding, so a client that has its answer sees it counted.
+            httpStats.record(System.nanoTime()-startTime, method.equals("GET") ? 1 : points[0]);
+            String contentType = method.equals("GET") ? "application/json"
+                    : isBinary(exchange) ? "application/octet-stream" : "text/csv";
+            respond(exchange, 200, contentType, body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] convertSingle(HttpExchange exchange, PointFileConverter.Direction direction) {
+        Map<String, String> query = parseQuery(exchange.getRequestURI());
+        String body;
+        if (direction == PointFileConverter.Direction.TO_OSGB36) {
+            EastingNorthing result = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(
+                    parseCoordinate(query, "lat"), parseCoordinate(query, "lon"));
+            body = "{\"east\":" + jsonNumber(result.getEast()) + ",\"north\":" + jsonNumber(result.getNorth()) + "}";
+        } else {
+            LatitudeLongitude result = Osgb36ToEtrs89.TO_LATITUDE_LONGITUDE.convert(
+                    parseCoordinate(query, "east"), parseCoordinate(query, "north"));
+            body = "{\"lat\":" + jsonNumber(result.getLat()) + ",\"lon\":" + jsonNumber(result.getLon()) + "}";
+        }
+        return body.getBytes(ASCII);
+    }
+
+    /**
+     * JSON has no NaN or infinities.
+     */
+    private static String jsonNumber(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+    }
+
+    /**
+     * Converts the whole request body before anything is sent, so bad input
+     * can still get a 400. The body is limited to <code>maxBytes</code>, which
+     * bounds the response too.
+     */
+    private static byte[] convertBatch(HttpExchange exchange, PointFileConverter.Direction direction,
+            long[] points, int maxBytes) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null) {
+            long declared;
+            try {
+                declared = Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad Content-Length: " + length);
+            }
+            if (declared > maxBytes)
+                throw new BatchTooLargeException(maxBytes);
+        }
+        PointFileConverter converter = new PointFileConverter(direction,
+                isBinary(exchange) ? PointFileConverter.Format.BINARY : PointFileConverter.Format.CSV);
+        converter.setChunkSize(BATCH_CHUNK_SIZE);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        points[0] = converter.convert(Channels.newChannel(new BoundedInputStream(exchange.getRequestBody(), maxBytes)),
+                Channels.newChannel(output));
+        return output.toByteArray();
+    }
+
+    private static boolean isBinary(HttpExchange exchange) {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        return exchange.getRequestMethod().equals("POST")
+                && contentType != null && contentType.startsWith("application/octet-stream");
+    }
+
+    private static Map<String, String> parseQuery(URI uri) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        String query = uri.getRawQuery();
+        if (query == null)
+            return parameters;
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0)
+                parameters.put(parameter.substring(0, equals), parameter.substring(equals+1));
+        }
+        return parameters;
+    }
+
+    private static double parseCoordinate(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null)
+            throw new IllegalArgumentException("Missing parameter " + name);
+        double coordinate;
+        try {
+            coordinate = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad value for " + name + ": " + value);
+        }
+        if (Double.isNaN(coordinate) || Double.isInfinite(coordinate))
+            throw new IllegalArgumentException("Bad value for " + name + ": " + value);
+        return coordinate;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private void acceptTcp(ServerSocketChannel server, ExecutorService connectionExecutor) {
+        while (true) {
+            final SocketChannel connection;
+            try {
+                connection = server.accept();
+            } catch (IOException e) {
+                // Closed by stop.
+                return;
+            }
+            if (!permits.tryAcquire()) {
+                tcpStats.error();
+                closeQuietly(connection);
+                continue;
+            }
+            try {
+                connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.add(connection);
+                connectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serveTcp(connection);
+                        } catch (ClosedChannelException e) {
+                            // Closed by stop.
+                        } catch (IOException e) {
+                            tcpStats.error();
+                        } finally {
+                            connections.remove(connection);
+                            closeQuietly(connection);
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (Exception e) {
+                connections.remove(connection);
+                closeQuietly(connection);
+                permits.release();
+                if (server.isOpen())
+                    continue;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Serves requests on one connection until the client closes it. The
+     * buffers and cell cache belong to the connection, so they're reused for
+     * every request on it, and nearby points in successive requests share
+     * table lookups. Buffers grown for a large request are dropped after it,
+     * so idle connections hold little.
+     */
+    private void serveTcp(SocketChannel connection) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TCP_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer data = ByteBuffer.allocate(4 + 16*256).order(ByteOrder.LITTLE_ENDIAN);
+        double[] a = new double[256];
+        double[] b = new double[256];
+        ShiftCellCache cache = new ShiftCellCache();
+
+        while (true) {
+            header.clear();
+            if (!readFully(connection, header, true))
+                return;
+            long startTime = System.nanoTime();
+            byte direction = header.get(0);
+            int count = header.getInt(1);
+            if ((direction != TCP_TO_OSGB36 && direction != TCP_TO_ETRS89)
+                    || count < 0 || count > TCP_MAX_POINTS) {
+                tcpStats.error();
+                header.clear();
+                header.putInt(-1).flip();
+                writeFully(connection, header);
+                return;
+            }
+
+            if (a.length < count) {
+                a = new double[count];
+                b = new double[count];
+                data = ByteBuffer.allocate(4 + 16*count).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            data.clear();
+            data.position(4);
+            data.limit(4 + 16*count);
+            readFully(connection, data, false);
+            for (int i=0 ; i<count ; i++) {
+                a[i] = data.getDouble(4 + 16*i);
+                b[i] = data.getDouble(12 + 16*i);
+            }
+
+            if (direction == TCP_TO_OSGB36)
+                Etrs89ToOsgb36.convert(a, b, 0, a, b, 0, count, cache);
+            else
+                Osgb36ToEtrs89.convert(a, b, 0, a, b, 0, count, cache);
+
+            data.clear();
+            data.putInt(count);
+            for (int i=0 ; i<count ; i++) {
+                data.putDouble(a[i]);
+                data.putDouble(b[i]);
+            }
+            data.flip();
+            tcpStats.record(System.nanoTime()-startTime, count);
+            writeFully(connection, data);
+
+            if (a.length > TCP_RETAINED_POINTS) {
+                a = new double[256];
+                b = new double[256];
+                data = ByteBuffer.allocate(4 + 16*256).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    /**
+     * @return false if the stream ended before anything was read and
+     * <code>endAllowed</code> is set.
+     * @throws EOFException if the stream ended part way through.
+     */
+    static boolean readFully(SocketChannel channel, ByteBuffer buffer, boolean endAllowed) throws IOException {
+        boolean started = false;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (endAllowed && !started)
+                    return false;
+                throw new EOFException("Connection closed part way through a message");
+            }
+            started = true;
+        }
+        return true;
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static class BatchTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BatchTooLargeException(int maxBytes) {
+            super("Batch larger than " + maxBytes + " bytes");
+        }
+    }
+
+    /**
+     * Fails with <code>BatchTooLargeException</code> once more than
+     * <code>remaining</code> bytes have been read, for bodies sent without a
+     * length.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private final int maxBytes;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, int maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+            this.remaining = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0)
+                count(read);
+            return read;
+        }
+
+        private void count(int read) throws BatchTooLargeException {
+            remaining -= read;
+            if (remaining < 0)
+                throw new BatchTooLargeException(maxBytes);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more to do.
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        int httpPort = 8080;
+        int tcpPort = 8081;
+        int maxConnections = 256;
+
+        for (int i=0 ; i<args.length ; i++) {
+            String arg = args[i];
+            if (arg.equals("--bind") && i+1 < args.length) {
+                bind = InetAddress.getByName(args[++i]);
+            } else if (arg.equals("--http-port") && i+1 < args.length) {
+                httpPort = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--tcp-port") && i+1 < args.length) {
+                tcpPort = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--max-connections") && i+1 < args.length) {
+                maxConnections = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: java -jar ostn02-server.jar [--bind address] [--http-port n] [--tcp-port n] [--max-connections n]");
+                System.err.println("  --bind       address to listen on (default: loopback)");
+                System.err.println("  --http-port  HTTP port, or -1 for none (default: 8080)");
+                System.err.println("  --tcp-port   binary protocol port, or -1 for none (default: 8081)");
+                System.err.println("  --max-connections  TCP connections plus HTTP batches at once (default: 256)");
+                System.exit(2);
+                return;
+            }
+        }
+
+        final ConversionServer server = new ConversionServer();
+        server.setHttpAddress(httpPort < 0 ? null : new InetSocketAddress(bind, httpPort));
+        server.setTcpAddress(tcpPort < 0 ? null : new InetSocketAddress(bind, tcpPort));
+        server.setMaxConnections(maxConnections);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+                System.err.println("HTTP: " + server.getHttpStats());
+                System.err.println("TCP: " + server.getTcpStats());
+            }
+        });
+        System.err.println("Serving HTTP on port " + server.getHttpPort()
+                + ", TCP on port " + server.getTcpPort());
+    }
+
+}
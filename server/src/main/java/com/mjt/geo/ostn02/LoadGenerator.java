@@ -0,0 +1,243 @@
+package com.mjt.geo.ostn02;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Drives a <code>ConversionServer</code> from a number of connections at
+ * once, each sending its next request as soon as the last is answered, and
+ * measures the latency and throughput the clients see. Points are spread at
+ * random over Great Britain, converting latitude/longitude to
+ * easting/northing.
+ *
+ * Run it with
+ * <code>java -cp ostn02-server.jar com.mjt.geo.ostn02.LoadGenerator host port</code>;
+ * run it with no arguments for the options.
+ *
+ * @author Michael Tandy
+ */
+public class LoadGenerator {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final String host;
+    private final int port;
+    private boolean http = false;
+    private int connections = 16;
+    private int batchSize = 1;
+
+    /**
+     * @param host
+     * @param port the server's TCP port, or its HTTP port when using HTTP.
+     */
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @param http whether to send HTTP requests rather than the binary
+     * protocol: a GET per point for batches of one, otherwise a CSV POST.
+     */
+    public void setHttp(boolean http) {
+        this.http = http;
+    }
+
+    /**
+     * @param connections concurrent connections, each on its own thread; 16
+     * by default.
+     */
+    public void setConnections(int connections) {
+        if (connections < 1)
+            throw new IllegalArgumentException("Need at least one connection");
+        this.connections = connections;
+    }
+
+    /**
+     * @param batchSize points per request; 1 by default.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > ConversionServer.TCP_MAX_POINTS)
+            throw new IllegalArgumentException("Batch size must be from 1 to " + ConversionServer.TCP_MAX_POINTS);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Send requests for the given time.
+     * @param millis how long to run for.
+     * @return what the clients saw. Requests that failed, or whose response
+     * didn't match the request, are counted as errors.
+     * @throws InterruptedException
+     */
+    public ServerStats run(final long millis) throws InterruptedException {
+        final ServerStats stats = new ServerStats();
+        final CountDownLatch done = new CountDownLatch(connections);
+        final long endTime = System.nanoTime() + millis*1000000L;
+        ExecutorService executor = ConversionServer.newThreadPerTaskExecutor("ostn02-load");
+        for (int c=0 ; c<connections ; c++) {
+            final long seed = c;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (http)
+                            runHttp(stats, endTime, new Random(seed));
+                        else
+                            runTcp(stats, endTime, new Random(seed));
+                    } catch (IOException e) {
+                        stats.error();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        executor.shutdown();
+        return stats;
+    }
+
+    private void runTcp(ServerStats stats, long endTime, Random random) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer request = ByteBuffer.allocate(5 + 16*batchSize).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer response = ByteBuffer.allocate(4 + 16*batchSize).order(ByteOrder.LITTLE_ENDIAN);
+            while (System.nanoTime() < endTime) {
+                request.clear();
+                request.put(ConversionServer.TCP_TO_OSGB36).putInt(batchSize);
+                for (int i=0 ; i<batchSize ; i++) {
+                    request.putDouble(randomLatitude(random)).putDouble(randomLongitude(random));
+                }
+                request.flip();
+
+                long startTime = System.nanoTime();
+                ConversionServer.writeFully(channel, request);
+                response.clear();
+                response.limit(4);
+                ConversionServer.readFully(channel, response, false);
+                if (response.getInt(0) != batchSize) {
+                    stats.error();
+                    return;
+                }
+                response.limit(response.capacity());
+                ConversionServer.readFully(channel, response, false);
+                stats.record(System.nanoTime()-startTime, batchSize);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void runHttp(ServerStats stats, long endTime, Random random) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (System.nanoTime() < endTime) {
+            URL url;
+            byte[] body = null;
+            if (batchSize == 1) {
+                url = new URL("http", host, port, "/to-osgb36?lat=" + randomLatitude(random)
+                        + "&lon=" + randomLongitude(random));
+            } else {
+                url = new URL("http", host, port, "/to-osgb36");
+                StringBuilder csv = new StringBuilder();
+                for (int i=0 ; i<batchSize ; i++) {
+                    csv.append(randomLatitude(random)).append(',').append(randomLongitude(random)).append('\n');
+                }
+                body = csv.toString().getBytes(ASCII);
+            }
+
+            long startTime = System.nanoTime();
+            HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+            if (body != null) {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "text/csv");
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream out = connection.getOutputStream();
+                out.write(body);
+                out.close();
+            }
+            if (connection.getResponseCode() != 200) {
+                stats.error();
+                drain(connection.getErrorStream(), buffer);
+                continue;
+            }
+            // Reading to the end lets the connection be kept alive for the next request.
+            drain(connection.getInputStream(), buffer);
+            stats.record(System.nanoTime()-startTime, batchSize);
+        }
+    }
+
+    private static void drain(InputStream in, byte[] buffer) throws IOException {
+        if (in == null)
+            return;
+        while (in.read(buffer) >= 0) {
+        }
+        in.close();
+    }
+
+    private static double randomLatitude(Random random) {
+        return 50 + random.nextDouble()*8.5;
+    }
+
+    private static double randomLongitude(Random random) {
+        return -6 + random.nextDouble()*7.5;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean http = false;
+        int connections = 16;
+        int batchSize = 1;
+        int seconds = 10;
+        String host = null;
+        int port = -1;
+
+        for (int i=0 ; i<args.length ; i++) {
+            String arg = args[i];
+            if (arg.equals("--http")) {
+                http = true;
+            } else if (arg.equals("--connections") && i+1 < args.length) {
+                connections = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--batch") && i+1 < args.length) {
+                batchSize = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--seconds") && i+1 < args.length) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (host == null) {
+                host = arg;
+            } else if (port < 0) {
+                port = Integer.parseInt(arg);
+            } else {
+                host = null;
+                break;
+            }
+        }
+
+        if (host == null || port < 0) {
+            System.err.println("Usage: java -cp ostn02-server.jar com.mjt.geo.ostn02.LoadGenerator [--http] [--connections n] [--batch n] [--seconds n] host port");
+            System.err.println("  --http         send HTTP requests to the HTTP port (default: binary protocol)");
+            System.err.println("  --connections  concurrent connections (default: 16)");
+            System.err.println("  --batch        points per request (default: 1)");
+            System.err.println("  --seconds      how long to run for (default: 10)");
+            System.exit(2);
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, port);
+        generator.setHttp(http);
+        generator.setConnections(connections);
+        generator.setBatchSize(batchSize);
+        System.out.println(generator.run(seconds*1000L));
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.mjt.geo.ostn02;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request, point and latency counts for one endpoint. Recording is a few
+ * uncontended additions, so every request can be counted from any number of
+ * threads. Latency percentiles come from a <code>LatencyHistogram</code>, so
+ * are accurate to within a factor of two.
+ *
+ * @author Michael Tandy
+ */
+public class ServerStats {
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder points = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile long startTime = System.nanoTime();
+
+    /**
+     * Count a request that completed.
+     * @param nanos time taken.
+     * @param pointCount points converted.
+     */
+    public void record(long nanos, long pointCount) {
+        requests.increment();
+        points.add(pointCount);
+        latency.record(nanos);
+    }
+
+    /** Count a request that was rejected or failed. */
+    public void error() {
+        errors.increment();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getPoints() {
+        return points.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return seconds since this was created or last reset.
+     */
+    public double getElapsedSeconds() {
+        return (System.nanoTime()-startTime)/1e9;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Zero every count and restart the clock. Requests recorded while
+     * resetting may be partly lost.
+     */
+    public void reset() {
+        requests.reset();
+        points.reset();
+        errors.reset();
+        latency.reset();
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * @return the counts and rates as a JSON object.
+     */
+    public String toJson() {
+        double seconds = getElapsedSeconds();
+        return String.format(Locale.ROOT,
+                "{\"requests\":%d,\"points\":%d,\"errors\":%d,"
+                + "\"requestsPerSecond\":%.1f,\"pointsPerSecond\":%.1f,"
+                + "\"meanMicros\":%.1f,\"p50Micros\":%.1f,\"p99Micros\":%.1f,\"maxMicros\":%.1f}",
+                getRequests(), getPoints(), getErrors(),
+                getRequests()/seconds, getPoints()/seconds,
+                latency.getMeanMicros(), latency.getPercentileMicros(0.5),
+                latency.getPercentileMicros(0.99), latency.getMaxMicros());
+    }
+
+    @Override
+    public String toString() {
+        double seconds = getElapsedSeconds();
+        return String.format(Locale.ROOT,
+                "%d requests, %d points, %d errors in %.1f s: %.0f requests/s, %.0f points/s, "
+                + "latency mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+                getRequests(), getPoints(), getErrors(), seconds,
+                getRequests()/seconds, getPoints()/seconds,
+                latency.getMeanMicros(), latency.getPercentileMicros(0.5),
+                latency.getPercentileMicros(0.99), latency.getMaxMicros());
+    }
+
+}
@@ -0,0 +1,281 @@
+package com.mjt.geo.ostn02;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class ConversionServerTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private ConversionServer server;
+
+    public ConversionServerTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ConversionServer();
+        server.setHttpAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.setTcpAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testHttpSinglePoint() throws IOException {
+        EastingNorthing expected = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.658007833, 1.716073973);
+        String response = get("/to-osgb36?lat=52.658007833&lon=1.716073973");
+        assertEquals("{\"east\":" + expected.getEast() + ",\"north\":" + expected.getNorth() + "}", response);
+
+        LatitudeLongitude expectedLatLon = Osgb36ToEtrs89.TO_LATITUDE_LONGITUDE.convert(651409.792, 313177.448);
+        response = get("/to-etrs89?east=651409.792&north=313177.448");
+        assertEquals("{\"lat\":" + expectedLatLon.getLat() + ",\"lon\":" + expectedLatLon.getLon() + "}", response);
+
+        assertEquals(2, server.getHttpStats().getRequests());
+        assertEquals(0, server.getHttpStats().getErrors());
+    }
+
+    @Test
+    public void testHttpBadRequest() throws IOException {
+        HttpURLConnection connection = open("/to-osgb36?lat=52.6");
+        assertEquals(400, connection.getResponseCode());
+        connection = open("/nowhere");
+        assertEquals(404, connection.getResponseCode());
+        assertEquals(2, server.getHttpStats().getErrors());
+    }
+
+    @Test
+    public void testHttpNonFiniteCoordinate() throws IOException {
+        // JSON has no NaN, so these are refused rather than answered with one.
+        assertEquals(400, open("/to-osgb36?lat=NaN&lon=-1.5").getResponseCode());
+        assertEquals(400, open("/to-etrs89?east=Infinity&north=100000").getResponseCode());
+        assertEquals(400, open("/to-etrs89?east=400000&north=-Infinity").getResponseCode());
+        assertEquals(3, server.getHttpStats().getErrors());
+        assertEquals(0, server.getHttpStats().getRequests());
+    }
+
+    @Test
+    public void testHttpBatch() throws IOException {
+        double[] lat = new double[50];
+        double[] lon = new double[50];
+        double[] east = new double[50];
+        double[] north = new double[50];
+        StringBuilder input = new StringBuilder();
+        for (int i=0 ; i<lat.length ; i++) {
+            lat[i] = 50.5 + i*0.1;
+            lon[i] = -4.5 + i*0.08;
+            input.append(lat[i]).append(',').append(lon[i]).append('\n');
+        }
+        for (int i=0 ; i<lat.length ; i++) {
+            // Batches agree exactly with single points.
+            EastingNorthing single = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(lat[i], lon[i]);
+            east[i] = single.getEast();
+            north[i] = single.getNorth();
+        }
+
+        HttpURLConnection connection = open("/to-osgb36");
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "text/csv");
+        OutputStream out = connection.getOutputStream();
+        out.write(input.toString().getBytes(ASCII));
+        out.close();
+        assertEquals(200, connection.getResponseCode());
+
+        String[] lines = read(connection.getInputStream()).split("\n");
+        assertEquals(lat.length, lines.length);
+        for (int i=0 ; i<lines.length ; i++) {
+            assertEquals(east[i] + "," + north[i], lines[i]);
+        }
+        assertEquals(lat.length, server.getHttpStats().getPoints());
+    }
+
+    @Test
+    public void testHttpBatchTooLarge() throws IOException {
+        server.setMaxBatchBytes(1000);
+        server.stop();
+        server.start();
+        byte[] input = new byte[2000];
+        for (int i=0 ; i<input.length ; i+=20) {
+            System.arraycopy("52.1234,-1.23456789\n".getBytes(ASCII), 0, input, i, 20);
+        }
+
+        HttpURLConnection connection = open("/to-osgb36");
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(input.length);
+        OutputStream out = connection.getOutputStream();
+        out.write(input);
+        out.close();
+        assertEquals(413, connection.getResponseCode());
+
+        // Without a length, the limit applies as the body is read.
+        connection = open("/to-osgb36");
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(100);
+        out = connection.getOutputStream();
+        out.write(input);
+        out.close();
+        assertEquals(413, connection.getResponseCode());
+        assertEquals(2, server.getHttpStats().getErrors());
+    }
+
+    @Test
+    public void testTcpConnectionLimit() throws IOException {
+        server.setMaxConnections(1);
+        server.stop();
+        server.start();
+        double[] point = {400000, 300000};
+        SocketChannel first = SocketChannel.open(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), server.getTcpPort()));
+        try {
+            assertEquals(1, exchange(first, ConversionServer.TCP_TO_ETRS89, point, point, 1).getInt());
+            SocketChannel second = SocketChannel.open(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), server.getTcpPort()));
+            try {
+                exchange(second, ConversionServer.TCP_TO_ETRS89, point, point, 1);
+                fail("Connection over the limit should be closed");
+            } catch (IOException e) {
+                // Closed by the server.
+            } finally {
+                second.close();
+            }
+        } finally {
+            first.close();
+        }
+        assertEquals(1, server.getTcpStats().getErrors());
+    }
+
+    @Test
+    public void testTcp() throws IOException {
+        double[] east = new double[300];
+        double[] north = new double[300];
+        double[] lat = new double[300];
+        double[] lon = new double[300];
+        for (int i=0 ; i<east.length ; i++) {
+            east[i] = 100000 + i*1700.5;
+            north[i] = 50000 + i*3300.25;
+        }
+        Osgb36ToEtrs89.convert(east, north, 0, lat, lon, 0, east.length);
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), server.getTcpPort()));
+        try {
+            // Two requests on one connection, the second a single point.
+            ByteBuffer response = exchange(channel, ConversionServer.TCP_TO_ETRS89, east, north, east.length);
+            assertEquals(east.length, response.getInt());
+            for (int i=0 ; i<east.length ; i++) {
+                assertEquals(lat[i], response.getDouble(), 0);
+                assertEquals(lon[i], response.getDouble(), 0);
+            }
+
+            response = exchange(channel, ConversionServer.TCP_TO_OSGB36, lat, lon, 1);
+            EastingNorthing expected = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(lat[0], lon[0]);
+            assertEquals(1, response.getInt());
+            assertEquals(expected.getEast(), response.getDouble(), 0);
+            assertEquals(expected.getNorth(), response.getDouble(), 0);
+
+            // A request larger than the retained buffers, then a small one.
+            double[] many = new double[5000];
+            response = exchange(channel, ConversionServer.TCP_TO_OSGB36, many, many, many.length);
+            assertEquals(many.length, response.getInt());
+            response = exchange(channel, ConversionServer.TCP_TO_OSGB36, lat, lon, 1);
+            assertEquals(1, response.getInt());
+            assertEquals(expected.getEast(), response.getDouble(), 0);
+
+            // An unknown direction is rejected.
+            response = exchange(channel, (byte)9, lat, lon, 0);
+            assertEquals(-1, response.getInt());
+        } finally {
+            channel.close();
+        }
+        assertEquals(4, server.getTcpStats().getRequests());
+        assertEquals(east.length+5002, server.getTcpStats().getPoints());
+        assertEquals(1, server.getTcpStats().getErrors());
+    }
+
+    @Test
+    public void testLoadGenerator() throws Exception {
+        LoadGenerator generator = new LoadGenerator("localhost", server.getTcpPort());
+        generator.setConnections(4);
+        generator.setBatchSize(10);
+        ServerStats stats = generator.run(300);
+        assertTrue(stats.getRequests() > 0);
+        assertEquals(0, stats.getErrors());
+        assertEquals(stats.getRequests(), server.getTcpStats().getRequests());
+        assertEquals(10*stats.getRequests(), server.getTcpStats().getPoints());
+
+        generator = new LoadGenerator("localhost", server.getHttpPort());
+        generator.setHttp(true);
+        generator.setConnections(2);
+        stats = generator.run(300);
+        assertTrue(stats.getRequests() > 0);
+        assertEquals(0, stats.getErrors());
+        assertEquals(stats.getRequests(), server.getHttpStats().getRequests());
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection)new URL("http", "localhost", server.getHttpPort(), path).openConnection();
+    }
+
+    private String get(String path) throws IOException {
+        HttpURLConnection connection = open(path);
+        assertEquals(200, connection.getResponseCode());
+        return read(connection.getInputStream());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        in.close();
+        return new String(bytes.toByteArray(), ASCII);
+    }
+
+    private static ByteBuffer exchange(SocketChannel channel, byte direction,
+            double[] a, double[] b, int count) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(5 + 16*count).order(ByteOrder.LITTLE_ENDIAN);
+        request.put(direction).putInt(count);
+        for (int i=0 ; i<count ; i++) {
+            request.putDouble(a[i]).putDouble(b[i]);
+        }
+        request.flip();
+        ConversionServer.writeFully(channel, request);
+
+        ByteBuffer response = ByteBuffer.allocate(4 + 16*count).order(ByteOrder.LITTLE_ENDIAN);
+        response.limit(4);
+        ConversionServer.readFully(channel, response, false);
+        if (response.getInt(0) == count) {
+            response.limit(response.capacity());
+            ConversionServer.readFully(channel, response, false);
+        }
+        response.flip();
+        return response;
+    }
+
+}
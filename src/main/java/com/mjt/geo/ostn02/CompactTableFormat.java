@@ -0,0 +1,147 @@
+package com.mjt.geo.ostn02;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * Compact file format for the lookup table, used for ostn02.compact. The
+ * shifts vary smoothly from one kilometre to the next, so rather than storing
+ * each value as a 4-byte int we predict it from its west, south and
+ * south-west neighbours and store the difference from the prediction as a
+ * zig-zag varint - usually a single byte. Decoded values are exactly the
+ * scaled integers of ostn02.bin.
+ *
+ * The file is big-endian: a header (magic "OSTN", version, number of columns,
+ * records per row, record count, scale factor, payload length), the payload
+ * holding each column in turn, then a CRC32 of the payload.
+ *
+ * @author Michael Tandy
+ */
+class CompactTableFormat {
+    static final int MAGIC = 0x4F53544E;
+    static final int VERSION = 1;
+    /** A 32 bit value takes at most five bytes as a varint. */
+    private static final int MAX_VARINT_BYTES = 5;
+
+    private CompactTableFormat() { }
+
+    /**
+     * @param out
+     * @param values record-ordered values, all columns of record 0 followed by
+     * all columns of record 1 and so on; the layout of ostn02.bin.
+     * @param columns values per record.
+     * @param rowLength records per row of the grid.
+     * @param scaleFactor the values' scale factor, recorded in the header.
+     * @throws IOException
+     */
+    static void write(OutputStream out, int[] values, int columns, int rowLength, int scaleFactor) throws IOException {
+        int recordCount = values.length/columns;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(values.length);
+        for (int column=0 ; column<columns ; column++) {
+            for (int record=0 ; record<recordCount ; record++) {
+                int residual = values[record*columns+column] - predict(values, record, column, columns, rowLength);
+                writeVarint(payload, (residual << 1) ^ (residual >> 31));
+            }
+        }
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeShort(VERSION);
+        dos.writeShort(columns);
+        dos.writeInt(rowLength);
+        dos.writeInt(recordCount);
+        dos.writeInt(scaleFactor);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+        dos.writeInt((int)crc.getValue());
+        dos.flush();
+    }
+
+    /**
+     * @param in
+     * @param columns values per record the caller expects.
+     * @param recordCount records the caller expects.
+     * @param scaleFactor scale factor the caller expects.
+     * @return values in the record order of ostn02.bin.
+     * @throws IOException if the stream isn't in this format, doesn't match
+     * the expected layout, or fails its checksum.
+     */
+    static int[] read(InputStream in, int columns, int recordCount, int scaleFactor) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        if (dis.readInt() != MAGIC)
+            throw new IOException("Not a compact OSTN table");
+        int version = dis.readUnsignedShort();
+        if (version != VERSION)
+            throw new IOException("Unsupported compact table version " + version);
+        int fileColumns = dis.readUnsignedShort();
+        int rowLength = dis.readInt();
+        int fileRecordCount = dis.readInt();
+        int fileScaleFactor = dis.readInt();
+        if (fileColumns != columns || fileRecordCount != recordCount || fileScaleFactor != scaleFactor)
+            throw new IOException("Compact table has " + fileColumns + " columns, " + fileRecordCount
+                    + " records at scale " + fileScaleFactor + "; expected " + columns + ", "
+                    + recordCount + " at " + scaleFactor);
+
+        int payloadLength = dis.readInt();
+        if (payloadLength < 0 || payloadLength > (long)MAX_VARINT_BYTES*columns*recordCount)
+            throw new IOException("Compact table payload length " + payloadLength + " out of range");
+        byte[] payload = new byte[payloadLength];
+        dis.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (dis.readInt() != (int)crc.getValue())
+            throw new IOException("Compact table checksum mismatch");
+
+        int[] values = new int[columns*recordCount];
+        int pos = 0;
+        for (int column=0 ; column<columns ; column++) {
+            for (int record=0 ; record<recordCount ; record++) {
+                int zigZag = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if (pos >= payload.length)
+                        throw new IOException("Compact table payload truncated");
+                    b = payload[pos++];
+                    zigZag |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                int residual = (zigZag >>> 1) ^ -(zigZag & 1);
+                values[record*columns+column] = residual + predict(values, record, column, columns, rowLength);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Planar prediction from already-coded neighbours: west + south -
+     * south-west, falling back to whichever neighbour exists on the edges.
+     */
+    private static int predict(int[] values, int record, int column, int columns, int rowLength) {
+        boolean hasWest = record % rowLength != 0;
+        boolean hasSouth = record >= rowLength;
+        if (hasWest && hasSouth) {
+            return values[(record-1)*columns+column]
+                    + values[(record-rowLength)*columns+column]
+                    - values[(record-rowLength-1)*columns+column];
+        } else if (hasWest) {
+            return values[(record-1)*columns+column];
+        } else if (hasSouth) {
+            return values[(record-rowLength)*columns+column];
+        } else {
+            return 0;
+        }
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+}
@@ -0,0 +1,311 @@
+package com.mjt.geo.ostn02;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of single point conversion results, for workloads that
+ * convert the same points over and over, such as postcode centroids. Install
+ * one with <code>Etrs89ToOsgb36.setResultCache</code> or
+ * <code>Osgb36ToEtrs89.setResultCache</code>; each direction needs its own.
+ *
+ * Points are keyed by their coordinates rounded to a multiple of the
+ * resolution, and every result, cached or not, is the conversion of the
+ * rounded point; so results don't depend on what was converted before, but
+ * can differ from the uncached ones by the resolution's worth of movement.
+ * A resolution of 1e-8 degrees or 1mm keeps that to about a millimetre.
+ * Points too large to key, or NaN, are converted without the cache. Results
+ * are also keyed by the grid model they came from, so after a model is
+ * swapped the old one's results are never returned, and are evicted as
+ * buckets fill.
+ *
+ * The table is open addressing over buckets of eight entries, keys and
+ * values held as primitives in one array, a bucket's keys together so a
+ * lookup reads one or two cache lines. A point can only go in its own bucket, so
+ * a full bucket evicts one of its entries: under <code>CLOCK</code>, the first
+ * that hasn't been used since the bucket's hand last passed it; under
+ * <code>LRU</code>, the least recently used. Each bucket has a sequence
+ * number, odd while it's being written; readers take no lock, and retry as a
+ * miss if the number changed while they read. A writer that finds a bucket
+ * being written skips caching its result rather than wait.
+ *
+ * @author Michael Tandy
+ */
+public final class ConversionCache {
+    private static final int WAYS = 8;
+    /**
+     * The bucket's sequence number, its eviction state, each entry's keys -
+     * the two coordinates and the model - then their values' bits.
+     */
+    private static final int BUCKET_LONGS = 2 + 5*WAYS;
+    /** CLOCK state: a reference bit per entry, then the hand. */
+    private static final int HAND_SHIFT = WAYS;
+    /** Marks an empty entry; never a key, as keys stay well inside a long. */
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final double MAX_STEPS = 0x1p62;
+
+    public enum Eviction {
+        /** Evict an entry not used since the bucket's clock hand last passed it. */
+        CLOCK,
+        /** Evict the bucket's least recently used entry. */
+        LRU
+    }
+
+    private final double resolution;
+    private final double scale;
+    private final Eviction eviction;
+    private final int bucketMask;
+    /**
+     * Readers update a bucket's eviction state without holding it; a lost
+     * update only changes which entry is evicted. For LRU it's a matrix of
+     * bits, a byte per entry: using an entry sets its row and clears its
+     * column, leaving the least recently used entry's row empty.
+     */
+    private final AtomicLongArray table;
+    private final int bucketCount;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity most results to hold; rounded up to a power of two of at
+     * least eight. Points share buckets at random, so some overflow while
+     * others have room; allow about twice the points expected to repeat.
+     * @param resolution spacing of the points results are cached for, in the
+     * input's units: degrees for latitude/longitude, metres for
+     * easting/northing.
+     * @param eviction
+     */
+    public ConversionCache(int capacity, double resolution, Eviction eviction) {
+        if (capacity < 1 || capacity > 1 << 26)
+            throw new IllegalArgumentException("Capacity " + capacity);
+        if (!(resolution > 0) || Double.isInfinite(resolution))
+            throw new IllegalArgumentException("Resolution " + resolution);
+        if (eviction == null)
+            throw new NullPointerException("eviction");
+        int bucketCount = Integer.highestOneBit(Math.max(WAYS, capacity)*2-1)/WAYS;
+        this.resolution = resolution;
+        this.scale = 1/resolution;
+        this.eviction = eviction;
+        this.bucketMask = bucketCount-1;
+        this.bucketCount = bucketCount;
+        this.table = new AtomicLongArray(bucketCount*BUCKET_LONGS);
+        for (int i=0 ; i<bucketCount*WAYS ; i++) {
+            table.set(key(i/WAYS, i%WAYS), EMPTY);
+        }
+    }
+
+    public int getCapacity() {
+        return bucketCount*WAYS;
+    }
+
+    public double getResolution() {
+        return resolution;
+    }
+
+    public Eviction getEviction() {
+        return eviction;
+    }
+
+    /**
+     * @return results currently held.
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return lookups that weren't answered from the cache, including points
+     * too large to key.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the fraction of lookups answered from the cache, or zero before
+     * any lookups.
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double)h/total;
+    }
+
+    /**
+     * Empties the cache, for instance after changing the table or its
+     * precision. Statistics are kept; see <code>resetStatistics</code>.
+     */
+    public void clear() {
+        for (int bucket=0 ; bucket<bucketCount ; bucket++) {
+            int base = bucket*BUCKET_LONGS;
+            long sequence;
+            do {
+                sequence = table.get(base);
+            } while ((sequence & 1) != 0 || !table.compareAndSet(base, sequence, sequence+1));
+            for (int way=0 ; way<WAYS ; way++) {
+                int key = key(bucket, way);
+                if (table.get(key) != EMPTY) {
+                    table.lazySet(key, EMPTY);
+                    size.decrementAndGet();
+                }
+            }
+            table.lazySet(base+1, 0);
+            table.set(base, sequence+2);
+        }
+    }
+
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /**
+     * @return <code>value</code> rounded to a multiple of the resolution, or
+     * unchanged if it's too large to key, or NaN.
+     */
+    double quantise(double value) {
+        double steps = value*scale;
+        return Math.abs(steps) < MAX_STEPS ? Math.rint(steps)*resolution : value;
+    }
+
+    /**
+     * @param result receives the cached result, if there is one.
+     * @return whether there was.
+     */
+    boolean get(GridModel model, double first, double second, double[] result) {
+        double a = first*scale;
+        double b = second*scale;
+        if (Math.abs(a) < MAX_STEPS && Math.abs(b) < MAX_STEPS) {
+            long keyA = (long)Math.rint(a);
+            long keyB = (long)Math.rint(b);
+            int bucket = bucket(keyA, keyB, model.id);
+            int base = bucket*BUCKET_LONGS;
+            long sequence = table.get(base);
+            for (int way=0 ; way<WAYS && (sequence & 1) == 0 ; way++) {
+                int key = key(bucket, way);
+                if (table.get(key) == keyA && table.get(key+1) == keyB && table.get(key+2) == model.id) {
+                    int value = value(bucket, way);
+                    double x = Double.longBitsToDouble(table.get(value));
+                    double y = Double.longBitsToDouble(table.get(value+1));
+                    if (table.get(base) != sequence)
+                        break;
+                    result[0] = x;
+                    result[1] = y;
+                    touch(bucket, way);
+                    hits.increment();
+                    return true;
+                }
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Caches the result of converting the point <code>first,second</code>
+     * rounded by <code>quantise</code>, with <code>model</code>.
+     */
+    void put(GridModel model, double first, double second, double[] result) {
+        double a = first*scale;
+        double b = second*scale;
+        if (!(Math.abs(a) < MAX_STEPS && Math.abs(b) < MAX_STEPS))
+            return;
+        long keyA = (long)Math.rint(a);
+        long keyB = (long)Math.rint(b);
+        int bucket = bucket(keyA, keyB, model.id);
+        int base = bucket*BUCKET_LONGS;
+        long sequence = table.get(base);
+        if ((sequence & 1) != 0 || !table.compareAndSet(base, sequence, sequence+1))
+            return;
+
+        int way = find(bucket, keyA, keyB, model.id);
+        int key = key(bucket, way);
+        int value = value(bucket, way);
+        long previous = table.get(key);
+        if (previous == EMPTY)
+            size.incrementAndGet();
+        else if (previous != keyA || table.get(key+1) != keyB || table.get(key+2) != model.id)
+            evictions.increment();
+        table.lazySet(key, keyA);
+        table.lazySet(key+1, keyB);
+        table.lazySet(key+2, model.id);
+        table.lazySet(value, Double.doubleToRawLongBits(result[0]));
+        table.lazySet(value+1, Double.doubleToRawLongBits(result[1]));
+        touch(bucket, way);
+        table.lazySet(base, sequence+2);
+    }
+
+    /**
+     * @return the way holding the key, else an empty one, else the one to
+     * evict. Called holding the bucket.
+     */
+    private int find(int bucket, long keyA, long keyB, long modelId) {
+        int empty = -1;
+        for (int way=0 ; way<WAYS ; way++) {
+            int key = key(bucket, way);
+            long k = table.get(key);
+            if (k == keyA && table.get(key+1) == keyB && table.get(key+2) == modelId)
+                return way;
+            if (k == EMPTY && empty < 0)
+                empty = way;
+        }
+        if (empty >= 0)
+            return empty;
+
+        int state = bucket*BUCKET_LONGS + 1;
+        long used = table.get(state);
+        if (eviction == Eviction.LRU) {
+            for (int way=0 ; way<WAYS ; way++) {
+                if ((used >>> 8*way & 0xFF) == 0)
+                    return way;
+            }
+            return 0;
+        }
+        // Two sweeps at most: the first clears every reference bit it passes.
+        int hand = (int)(used >>> HAND_SHIFT);
+        while ((used & 1L << hand) != 0) {
+            used &= ~(1L << hand);
+            hand = (hand+1) % WAYS;
+        }
+        table.lazySet(state, (long)((hand+1) % WAYS) << HAND_SHIFT | used & (1L << WAYS)-1);
+        return hand;
+    }
+
+    private void touch(int bucket, int way) {
+        int state = bucket*BUCKET_LONGS + 1;
+        long used = table.get(state);
+        long touched = eviction == Eviction.LRU
+                ? (used | 0xFFL << 8*way) & ~(0x0101010101010101L << way)
+                : used | 1L << way;
+        if (touched != used)
+            table.lazySet(state, touched);
+    }
+
+    private int bucket(long keyA, long keyB, long modelId) {
+        long h = (keyA*0x9E3779B97F4A7C15L ^ keyB ^ modelId << 48)*0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 31;
+        h *= 0x165667B19E3779F9L;
+        return (int)(h >>> 32) & bucketMask;
+    }
+
+    private static int key(int bucket, int way) {
+        return bucket*BUCKET_LONGS + 2 + 3*way;
+    }
+
+    private static int value(int bucket, int way) {
+        return bucket*BUCKET_LONGS + 2 + 3*WAYS + 2*way;
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * Receives a converted coordinate as two primitives, so results can go
+ * straight into the caller's own structures without a result object per
+ * point. From <code>Etrs89ToOsgb36</code> the values are easting and
+ * northing; from <code>Osgb36ToEtrs89</code>, latitude and longitude.
+ * @author Michael Tandy
+ */
+public interface CoordinateSink {
+    
+    void accept(double a, double b);
+    
+}
@@ -3,7 +3,8 @@ package com.mjt.geo.ostn02;
 /**
  * A simple data structure containing an easting and northing. If you already
  * have an easting/northing class and don't want another one, consider extending
- * <code>Osgb36ToEtrs89</code> and <code>Etrs89ToOsgb36</code>.
+ * <code>Osgb36ToEtrs89</code> and <code>Etrs89ToOsgb36</code>, or converting
+ * into a <code>CoordinateSink</code>.
  * @author Michael Tandy
  */
 public class EastingNorthing {
@@ -24,12 +25,30 @@ public class EastingNorthing {
     }
     
     public LatitudeLongitude toLatitudeLongitude() {
-        Osgb36ToEtrs89<LatitudeLongitude> converter = new Osgb36ToEtrs89<LatitudeLongitude>() {
-            public LatitudeLongitude produceOutput(double latitude, double longitude) {
-                return new LatitudeLongitude(latitude,longitude);
-            }
-        };
-        
-        return converter.convert(east, north);
+        return Osgb36ToEtrs89.TO_LATITUDE_LONGITUDE.convert(east, north);
+    }
+    
+    /**
+     * @param digits total digits, an even number from 0 to 10.
+     * @return the grid reference of the square containing this point, such
+     * as "TQ 28376 80799".
+     * @throws IllegalArgumentException if the point is outside the National
+     * Grid's squares.
+     */
+    public String toGridReference(int digits) {
+        StringBuilder reference = new StringBuilder(GridReference.formattedLength(digits));
+        GridReference.format(east, north, digits, reference);
+        return reference.toString();
+    }
+    
+    /**
+     * @param reference such as "TQ 28376 80799".
+     * @return the south-west corner of the referenced square.
+     * @throws IllegalArgumentException if it isn't a grid reference.
+     */
+    public static EastingNorthing fromGridReference(CharSequence reference) {
+        MutableCoordinate corner = new MutableCoordinate();
+        GridReference.parse(reference, 0, reference.length(), corner);
+        return new EastingNorthing(corner.getFirst(), corner.getSecond());
     }
 }
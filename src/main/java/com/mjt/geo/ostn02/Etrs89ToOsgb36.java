@@ -1,5 +1,9 @@
 package com.mjt.geo.ostn02;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 /**
  * Converts latitude/longitude (ETRS89 datum) to easting/northing (OSGB36 
  * datum). Based on calculations documented in the Ordnance Survey 
@@ -7,80 +11,738 @@ package com.mjt.geo.ostn02;
  * <a href="http://www.ordnancesurvey.co.uk/oswebsite/gps/osnetfreeservices/furtherinfo/questdeveloper.html">
  * OSTN02 and OSGM02 for Developers</a>.
  * 
+ * Subclass it and implement <code>produceOutput</code> to produce your own
+ * easting/northing type, or use <code>TO_EASTING_NORTHING</code>. Converters
+ * hold no state, so one instance can be shared between threads.
+ * 
+ * Each conversion call reads the grid model once, at the start, so a model
+ * swapped in with <code>Ostn02LookupTable.setGridModel</code> is used by calls
+ * that start after it. An instance constructed with a model always uses that
+ * one instead, and each of the static conversions has an overload taking the
+ * model to use, so the same points can be converted with OSTN02 and OSTN15
+ * side by side.
+ * 
  * @author Michael Tandy
  */
 public abstract class Etrs89ToOsgb36<E> {
+    /** Pixels per task when converting rasters. */
+    private static final int RASTER_PIXELS_PER_TASK = 8192;
+    
+    /** Shared converter producing <code>EastingNorthing</code>. */
+    public static final Etrs89ToOsgb36<EastingNorthing> TO_EASTING_NORTHING = new Etrs89ToOsgb36<EastingNorthing>() {
+        @Override
+        protected EastingNorthing produceOutput(double east, double north) {
+            return new EastingNorthing(east,north);
+        }
+    };
+    
+    /** Per-thread working space for single point conversions. */
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    
+    private static volatile ConversionCache resultCache = null;
+    
+    private final GridModel model;
+    
+    /**
+     * A converter using whichever grid model is current as each conversion
+     * starts.
+     */
+    protected Etrs89ToOsgb36() {
+        this(null);
+    }
+    
+    /**
+     * @param model grid model to convert with, or null to use whichever is
+     * current as each conversion starts.
+     */
+    protected Etrs89ToOsgb36(GridModel model) {
+        this.model = model;
+    }
     
     public E convert(double latitude, double longitude) {
-        return LatLonToTransverseMercator(latitude,longitude);
+        long startTime = Ostn02Metrics.startTime();
+        GridModel model = this.model != null ? this.model : Ostn02LookupTable.getGridModel();
+        Scratch s = scratch.get();
+        convert(latitude, longitude, s, model, startTime != 0);
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, 1, startTime);
+        return produceOutput(s.eastNorth[0], s.eastNorth[1]);
+    }
+    
+    /**
+     * Converts one point, passing the easting and northing to 
+     * <code>sink</code>. Allocates nothing, once a thread has converted its
+     * first point.
+     * @param latitude
+     * @param longitude
+     * @param sink
+     */
+    public static void convert(double latitude, double longitude, CoordinateSink sink) {
+        convert(Ostn02LookupTable.getGridModel(), latitude, longitude, sink);
+    }
+    
+    /**
+     * As <code>convert(double, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convert(GridModel model, double latitude, double longitude, CoordinateSink sink) {
+        long startTime = Ostn02Metrics.startTime();
+        Scratch s = scratch.get();
+        convert(latitude, longitude, s, model, startTime != 0);
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, 1, startTime);
+        sink.accept(s.eastNorth[0], s.eastNorth[1]);
+    }
+    
+    /**
+     * Caches the results of single point conversions, including those made
+     * through <code>LatitudeLongitude.toEastingNorthing</code>; batch
+     * conversions don't use it. Results answered from the cache skip the
+     * table, so aren't counted as out of grid by <code>Ostn02Metrics</code>.
+     * @param cache keyed by latitude and longitude, or null for none.
+     */
+    public static void setResultCache(ConversionCache cache) {
+        resultCache = cache;
+    }
+    
+    public static ConversionCache getResultCache() {
+        return resultCache;
+    }
+    
+    /**
+     * Converts a batch of points held in separate latitude and longitude
+     * arrays, writing eastings and northings into the caller's arrays. Nothing
+     * is allocated per point, so large batches produce no garbage. The output
+     * arrays may be the same as the input arrays, to convert in place.
+     * @param latitudes
+     * @param longitudes
+     * @param srcOffset index of the first point in the input arrays.
+     * @param eastings
+     * @param northings
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     */
+    public static void convert(double[] latitudes, double[] longitudes, int srcOffset,
+            double[] eastings, double[] northings, int dstOffset, int length) {
+        convert(latitudes, longitudes, srcOffset, eastings, northings, dstOffset, length, new ShiftCellCache());
+    }
+    
+    /**
+     * As <code>convert</code>, looking shifts up through the caller's cache.
+     * Reusing one cache across batches of nearby points, such as successive
+     * chunks of a GPS track, avoids rereading the table, and its hit and miss
+     * counts show how well that's working.
+     * @param latitudes
+     * @param longitudes
+     * @param srcOffset index of the first point in the input arrays.
+     * @param eastings
+     * @param northings
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     * @param cache
+     */
+    public static void convert(double[] latitudes, double[] longitudes, int srcOffset,
+            double[] eastings, double[] northings, int dstOffset, int length, ShiftCellCache cache) {
+        convert(Ostn02LookupTable.getGridModel(), latitudes, longitudes, srcOffset, eastings, northings,
+                dstOffset, length, cache);
+    }
+    
+    /**
+     * As <code>convert(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convert(GridModel model, double[] latitudes, double[] longitudes, int srcOffset,
+            double[] eastings, double[] northings, int dstOffset, int length, ShiftCellCache cache) {
+        checkRange(latitudes, srcOffset, length);
+        checkRange(longitudes, srcOffset, length);
+        checkRange(eastings, dstOffset, length);
+        checkRange(northings, dstOffset, length);
+        
+        long startTime = Ostn02Metrics.startTime();
+        double[] eastNorth = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        for (int i=0 ; i<length ; i++) {
+            convert(latitudes[srcOffset+i], longitudes[srcOffset+i], eastNorth, shift, terms, cache, model, startTime != 0);
+            eastings[dstOffset+i] = eastNorth[0];
+            northings[dstOffset+i] = eastNorth[1];
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, length, startTime);
+    }
+    
+    /**
+     * Converts a batch of points with ETRS89 ellipsoid heights, producing
+     * eastings, northings and orthometric heights. The OSGM02 geoid height is
+     * subtracted from each ellipsoid height; the result is in the vertical 
+     * datum given by the point's datum flag (see 
+     * <code>Ostn02LookupTable.getDatumFlag</code>), or NaN for points outside
+     * OSGM02's coverage. The output arrays may be the same as the input
+     * arrays, to convert in place.
+     * @param latitudes
+     * @param longitudes
+     * @param heights ellipsoid heights in metres.
+     * @param srcOffset index of the first point in the input arrays.
+     * @param eastings
+     * @param northings
+     * @param orthometricHeights
+     * @param datumFlags receives each point's datum flag; may be null.
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     * @throws UncheckedIOException if the geoid table can't be loaded.
+     */
+    public static void convert(double[] latitudes, double[] longitudes, double[] heights, int srcOffset,
+            double[] eastings, double[] northings, double[] orthometricHeights, int[] datumFlags,
+            int dstOffset, int length) {
+        convert(Ostn02LookupTable.getGridModel(), latitudes, longitudes, heights, srcOffset, eastings,
+                northings, orthometricHeights, datumFlags, dstOffset, length);
     }
     
-    private E LatLonToTransverseMercator(double latitude, double longitude) {
-        double lat = Math.PI/180.0 * latitude;
-        double lon = Math.PI/180.0 * longitude;
+    /**
+     * As <code>convert(double[], double[], double[], ...)</code>, converting
+     * with <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convert(GridModel model, double[] latitudes, double[] longitudes, double[] heights,
+            int srcOffset, double[] eastings, double[] northings, double[] orthometricHeights,
+            int[] datumFlags, int dstOffset, int length) {
+        checkRange(latitudes, srcOffset, length);
+        checkRange(longitudes, srcOffset, length);
+        checkRange(heights, srcOffset, length);
+        checkRange(eastings, dstOffset, length);
+        checkRange(northings, dstOffset, length);
+        checkRange(orthometricHeights, dstOffset, length);
+        if (datumFlags != null && (dstOffset < 0 || dstOffset > datumFlags.length - length))
+            throw new ArrayIndexOutOfBoundsException("Range " + dstOffset + "+" + length 
+                    + " outside array of length " + datumFlags.length);
         
-        // GRS80 parameters:
-        double a = 6378137.000;
-        double b = 6356752.3141;
-        double eSquared = (sq(a)-sq(b))/sq(a);
-        double n0 = -100000;
-        double e0 = 400000;
-        double f0 = 0.9996012717;
-        double lat0 = Math.PI/180.0 * 49;
-        double lon0 = Math.PI/180.0 * -2;
+        long startTime = Ostn02Metrics.startTime();
+        double[] eastNorth = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        ShiftCellCache cache = new ShiftCellCache();
+        ShiftCellCache geoidCache = new ShiftCellCache();
+        for (int i=0 ; i<length ; i++) {
+            double height = heights[srcOffset+i];
+            TransverseMercator.toEastingNorthing(latitudes[srcOffset+i], longitudes[srcOffset+i], eastNorth, terms);
+            int flag = geoidCache.getDatumFlag(GridModel.OSGM02, eastNorth[0], eastNorth[1]);
+            double orthometric = flag == 0 ? Double.NaN
+                    : height - geoidCache.getGeoidHeight(GridModel.OSGM02, eastNorth[0], eastNorth[1]);
+            findAndApplyShift(eastNorth, shift, cache, model, startTime != 0);
+            
+            eastings[dstOffset+i] = eastNorth[0];
+            northings[dstOffset+i] = eastNorth[1];
+            orthometricHeights[dstOffset+i] = orthometric;
+            if (datumFlags != null)
+                datumFlags[dstOffset+i] = flag;
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, length, startTime);
+    }
+    
+    /**
+     * Converts a batch of points held in one interleaved array of
+     * latitude,longitude pairs, writing easting,northing pairs into the 
+     * caller's array. Nothing is allocated per point. The output array may be
+     * the input array with the same offset, to convert in place.
+     * @param latLon
+     * @param srcOffset array index of the first point's latitude.
+     * @param eastNorth
+     * @param dstOffset array index the first point's easting is written to.
+     * @param count number of points (not array elements) to convert.
+     */
+    public static void convertInterleaved(double[] latLon, int srcOffset,
+            double[] eastNorth, int dstOffset, int count) {
+        convertInterleaved(Ostn02LookupTable.getGridModel(), latLon, srcOffset, eastNorth, dstOffset, count);
+    }
+    
+    /**
+     * As <code>convertInterleaved(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertInterleaved(GridModel model, double[] latLon, int srcOffset, double[] eastNorth,
+            int dstOffset, int count) {
+        checkRange(latLon, srcOffset, 2*count);
+        checkRange(eastNorth, dstOffset, 2*count);
         
-        double sinLat = Math.sin(lat);
-        double cosLat = Math.cos(lat);
-        double tanLat = Math.tan(lat);
+        long startTime = Ostn02Metrics.startTime();
+        double[] result = new double[2];
+        double[] shift = new double[2];
+        ShiftCellCache cache = new ShiftCellCache();
+        double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        for (int i=0 ; i<2*count ; i+=2) {
+            convert(latLon[srcOffset+i], latLon[srcOffset+i+1], result, shift, terms, cache, model, startTime != 0);
+            eastNorth[dstOffset+i] = result[0];
+            eastNorth[dstOffset+i+1] = result[1];
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, count, startTime);
+    }
+    
+    /**
+     * Converts a batch of points held off the heap, or anywhere else a
+     * <code>ByteBuffer</code> can see, as separate latitude and longitude
+     * columns of doubles, writing easting and northing columns. Values are
+     * read and written with absolute gets and puts in each buffer's byte
+     * order, so the buffers' positions don't change and nothing is copied.
+     * Records may be wider than a double: <code>srcStride</code> and
+     * <code>dstStride</code> are the bytes from one point's value to the
+     * next. The output buffers may be the input buffers, to convert in place.
+     * On Java versions with <code>java.lang.foreign</code>, pass
+     * <code>MemorySegment.asByteBuffer()</code>.
+     * @param latitudes
+     * @param longitudes
+     * @param srcOffset byte index of the first point's value in each input
+     * buffer.
+     * @param srcStride bytes from one input value to the next, at least 8.
+     * @param eastings
+     * @param northings
+     * @param dstOffset byte index the first point's results are written to
+     * in each output buffer.
+     * @param dstStride bytes from one output value to the next, at least 8.
+     * @param count number of points to convert.
+     */
+    public static void convert(ByteBuffer latitudes, ByteBuffer longitudes, int srcOffset, int srcStride,
+            ByteBuffer eastings, ByteBuffer northings, int dstOffset, int dstStride, int count) {
+        convert(Ostn02LookupTable.getGridModel(), latitudes, longitudes, srcOffset, srcStride, eastings,
+                northings, dstOffset, dstStride, count);
+    }
+    
+    /**
+     * As <code>convert(ByteBuffer, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convert(GridModel model, ByteBuffer latitudes, ByteBuffer longitudes, int srcOffset,
+            int srcStride, ByteBuffer eastings, ByteBuffer northings, int dstOffset, int dstStride,
+            int count) {
+        checkRange(latitudes, srcOffset, srcStride, 8, count);
+        checkRange(longitudes, srcOffset, srcStride, 8, count);
+        checkRange(eastings, dstOffset, dstStride, 8, count);
+        checkRange(northings, dstOffset, dstStride, 8, count);
         
-        double n = (a-b)/(a+b);
-        double v = a*f0 * Math.pow(1-eSquared*sq(sinLat),-0.5);
-        double rho = a*f0*(1-eSquared)*Math.pow(1-eSquared*sq(sinLat),-1.5);
-        double etaSquared = v/rho-1;
+        long startTime = Ostn02Metrics.startTime();
+        double[] eastNorth = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        ShiftCellCache cache = new ShiftCellCache();
+        for (int i=0 ; i<count ; i++) {
+            int src = srcOffset + i*srcStride;
+            int dst = dstOffset + i*dstStride;
+            convert(latitudes.getDouble(src), longitudes.getDouble(src), eastNorth, shift, terms, cache, model, startTime != 0);
+            eastings.putDouble(dst, eastNorth[0]);
+            northings.putDouble(dst, eastNorth[1]);
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, count, startTime);
+    }
+    
+    /**
+     * As <code>convert(ByteBuffer, ...)</code>, for records holding a
+     * latitude followed immediately by its longitude, writing an easting
+     * followed by its northing. With a stride of 16 that's the layout of
+     * <code>convertInterleaved</code>'s arrays; a wider stride skips other
+     * fields in each record. The output buffer may be the input buffer with
+     * the same offset and stride, to convert in place.
+     * @param latLon
+     * @param srcOffset byte index of the first point's latitude.
+     * @param srcStride bytes from one point's latitude to the next, at least
+     * 16.
+     * @param eastNorth
+     * @param dstOffset byte index the first point's easting is written to.
+     * @param dstStride bytes from one point's easting to the next, at least
+     * 16.
+     * @param count number of points to convert.
+     */
+    public static void convertInterleaved(ByteBuffer latLon, int srcOffset, int srcStride,
+            ByteBuffer eastNorth, int dstOffset, int dstStride, int count) {
+        convertInterleaved(Ostn02LookupTable.getGridModel(), latLon, srcOffset, srcStride, eastNorth,
+                dstOffset, dstStride, count);
+    }
+    
+    /**
+     * As <code>convertInterleaved(ByteBuffer, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertInterleaved(GridModel model, ByteBuffer latLon, int srcOffset, int srcStride,
+            ByteBuffer eastNorth, int dstOffset, int dstStride, int count) {
+        checkRange(latLon, srcOffset, srcStride, 16, count);
+        checkRange(eastNorth, dstOffset, dstStride, 16, count);
         
+        long startTime = Ostn02Metrics.startTime();
+        double[] result = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        ShiftCellCache cache = new ShiftCellCache();
+        for (int i=0 ; i<count ; i++) {
+            int src = srcOffset + i*srcStride;
+            int dst = dstOffset + i*dstStride;
+            convert(latLon.getDouble(src), latLon.getDouble(src+8), result, shift, terms, cache, model, startTime != 0);
+            eastNorth.putDouble(dst, result[0]);
+            eastNorth.putDouble(dst+8, result[1]);
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, count, startTime);
+    }
+    
+    /**
+     * Converts every pixel centre of a regular latitude/longitude raster,
+     * on the common fork-join pool. See
+     * <code>convertRaster(..., ForkJoinPool)</code>.
+     */
+    public static void convertRaster(double originLatitude, double originLongitude,
+            double latitudeStep, double longitudeStep, int width, int height,
+            double[] eastings, double[] northings) {
+        convertRaster(originLatitude, originLongitude, latitudeStep, longitudeStep, width, height,
+                eastings, northings, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Converts every pixel centre of a regular latitude/longitude raster,
+     * giving the same results as converting each with <code>convert</code>
+     * but much faster: the projection terms that depend on latitude are
+     * computed once per row rather than per pixel, the shift cell corners are
+     * fetched once per run of pixels in the same cell, and rows are spread
+     * across <code>pool</code>.
+     * @param originLatitude latitude of the centre of the first pixel.
+     * @param originLongitude longitude of the centre of the first pixel.
+     * @param latitudeStep degrees from one row to the next; negative for
+     * rasters stored north-up.
+     * @param longitudeStep degrees from one column to the next.
+     * @param width pixels per row.
+     * @param height rows.
+     * @param eastings receives the easting of the pixel at column c and row
+     * r at index <code>c+width*r</code>.
+     * @param northings
+     * @param pool pool to convert the rows on.
+     */
+    public static void convertRaster(double originLatitude, double originLongitude,
+            double latitudeStep, double longitudeStep, int width, int height,
+            double[] eastings, double[] northings, ForkJoinPool pool) {
+        convertRaster(Ostn02LookupTable.getGridModel(), originLatitude, originLongitude, latitudeStep,
+                longitudeStep, width, height, eastings, northings, pool);
+    }
+    
+    /**
+     * As <code>convertRaster(double, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertRaster(GridModel model, double originLatitude, double originLongitude,
+            double latitudeStep, double longitudeStep, int width, int height, double[] eastings,
+            double[] northings, ForkJoinPool pool) {
+        long pixels = (long)width*height;
+        if (width < 0 || height < 0 || pixels > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Raster size " + width + "x" + height);
+        checkRange(eastings, 0, (int)pixels);
+        checkRange(northings, 0, (int)pixels);
         
+        long startTime = Ostn02Metrics.startTime();
+        pool.invoke(new RasterTask(originLatitude, originLongitude, latitudeStep, longitudeStep, width,
+                eastings, northings, 0, height, model, startTime != 0));
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, pixels, startTime);
+    }
+    
+    /**
+     * Converts a batch of points like <code>convert</code>, but evaluates the
+     * projection with <code>VectorisedProjection</code>, which handles a block
+     * of points at a time using polynomial fits in place of the trigonometric
+     * series. Results agree with <code>convert</code> to well under a
+     * millimetre.
+     * @param latitudes
+     * @param longitudes
+     * @param srcOffset index of the first point in the input arrays.
+     * @param eastings
+     * @param northings
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     */
+    public static void convertVectorised(double[] latitudes, double[] longitudes, int srcOffset,
+            double[] eastings, double[] northings, int dstOffset, int length) {
+        convertVectorised(Ostn02LookupTable.getGridModel(), latitudes, longitudes, srcOffset, eastings,
+                northings, dstOffset, length);
+    }
+    
+    /**
+     * As <code>convertVectorised(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertVectorised(GridModel model, double[] latitudes, double[] longitudes,
+            int srcOffset, double[] eastings, double[] northings, int dstOffset, int length) {
+        checkRange(latitudes, srcOffset, length);
+        checkRange(longitudes, srcOffset, length);
+        checkRange(eastings, dstOffset, length);
+        checkRange(northings, dstOffset, length);
         
-        double ma = (1 + n + (5.0/4.0)*sq(n) + (5.0/4.0)*cube(n)) * (lat-lat0);
-        double mb = (3*n + 3*sq(n) + (21.0/8.0)*cube(n)) * Math.sin(lat-lat0) * Math.cos(lat+lat0);
-        double mc = ((15.0/8.0)*sq(n) + (15.0/8.0)*cube(n)) * Math.sin(2*(lat-lat0)) * Math.cos(2*(lat+lat0));
-        double md = (35.0/24.0)*cube(n) * Math.sin(3*(lat-lat0)) * Math.cos(3*(lat+lat0));
-        double M = b*f0*(ma-mb+mc-md);
+        long startTime = Ostn02Metrics.startTime();
+        VectorisedProjection.toTransverseMercator(latitudes, longitudes, srcOffset,
+                eastings, northings, dstOffset, length);
+        double[] shift = new double[2];
+        ShiftCellCache cache = new ShiftCellCache();
+        for (int i=dstOffset ; i<dstOffset+length ; i++) {
+            if (startTime != 0)
+                Ostn02Metrics.lookedUp(Ostn02Metrics.Direction.TO_OSGB36, model, eastings[i], northings[i]);
+            cache.getShift(model, eastings[i], northings[i], shift);
+            eastings[i] += shift[0];
+            northings[i] += shift[1];
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, length, startTime);
+    }
+    
+    /**
+     * Converts a batch of points like <code>convert</code>, giving identical
+     * results, but looks the shifts up in Z-order of the points' grid cells
+     * rather than in array order. For large batches in no particular spatial
+     * order, such as addresses from all over the country, this reads the
+     * table a region at a time instead of jumping about all 7MB of it, at the
+     * cost of a radix sort and about 16 bytes of working space per point.
+     * That only pays where the table doesn't fit in the CPU's last level
+     * cache alongside the batch; measure before using it. Points already in
+     * order, such as GPS tracks, gain nothing from it. The output arrays may
+     * be the same as the input arrays, to convert in place.
+     * @param latitudes
+     * @param longitudes
+     * @param srcOffset index of the first point in the input arrays.
+     * @param eastings
+     * @param northings
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     */
+    public static void convertZOrdered(double[] latitudes, double[] longitudes, int srcOffset,
+            double[] eastings, double[] northings, int dstOffset, int length) {
+        convertZOrdered(Ostn02LookupTable.getGridModel(), latitudes, longitudes, srcOffset, eastings,
+                northings, dstOffset, length);
+    }
+    
+    /**
+     * As <code>convertZOrdered(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertZOrdered(GridModel model, double[] latitudes, double[] longitudes,
+            int srcOffset, double[] eastings, double[] northings, int dstOffset, int length) {
+        checkRange(latitudes, srcOffset, length);
+        checkRange(longitudes, srcOffset, length);
+        checkRange(eastings, dstOffset, length);
+        checkRange(northings, dstOffset, length);
         
-        double I = M + n0;
-        double II = v/2*sinLat*cosLat;
-        double III = v/24*sinLat*cube(cosLat)*(5-sq(tanLat)+9*etaSquared);
-        double IIIA = v/720*sinLat*five(cosLat)*(61-58*sq(tanLat)+four(tanLat));
-        double IV = v*cosLat;
-        double V = (v/6)*cube(cosLat)*(v/rho - sq(tanLat));
-        double VI = (v/120)*five(cosLat)*(5-18*sq(tanLat)+four(tanLat)+14*etaSquared-58*sq(tanLat)*etaSquared);
+        // Project in array order, then shift in Z-order of the projected positions.
+        long startTime = Ostn02Metrics.startTime();
+        double[] eastNorth = new double[2];
+        double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        for (int i=0 ; i<length ; i++) {
+            TransverseMercator.toEastingNorthing(latitudes[srcOffset+i], longitudes[srcOffset+i], eastNorth, terms);
+            eastings[dstOffset+i] = eastNorth[0];
+            northings[dstOffset+i] = eastNorth[1];
+        }
         
-        double north = I + II*sq(lon-lon0) + III*four(lon-lon0) + IIIA*six(lon-lon0);
-        double east = e0 + IV*(lon-lon0) + V*cube(lon-lon0) + VI*five(lon-lon0);
+        int[] order = ZOrder.sort(model, eastings, northings, dstOffset, length);
+        double[] shift = new double[2];
+        ShiftCellCache cache = new ShiftCellCache();
+        for (int k=0 ; k<length ; k++) {
+            int i = dstOffset+order[k];
+            eastNorth[0] = eastings[i];
+            eastNorth[1] = northings[i];
+            findAndApplyShift(eastNorth, shift, cache, model, startTime != 0);
+            eastings[i] = eastNorth[0];
+            northings[i] = eastNorth[1];
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, length, startTime);
+    }
+    
+    /**
+     * Converts one point like <code>convert</code>, but projects it with
+     * cubic fits to the series over bands of latitude rather than the series
+     * itself, so it needs no trigonometry. The shift is looked up as usual.
+     * Over Great Britain the result is within a micrometre of
+     * <code>convert</code>'s; the fits are checked when first used.
+     * @param latitude
+     * @param longitude
+     * @param sink
+     */
+    public static void convertApproximate(double latitude, double longitude, CoordinateSink sink) {
+        convertApproximate(Ostn02LookupTable.getGridModel(), latitude, longitude, sink);
+    }
+    
+    /**
+     * As <code>convertApproximate(double, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertApproximate(GridModel model, double latitude, double longitude,
+            CoordinateSink sink) {
+        long startTime = Ostn02Metrics.startTime();
+        Scratch s = scratch.get();
+        convertApproximate(latitude, longitude, s.eastNorth, s.shift, s.terms, s.cache, model, startTime != 0);
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, 1, startTime);
+        sink.accept(s.eastNorth[0], s.eastNorth[1]);
+    }
+    
+    /**
+     * Converts a batch of points as <code>convertApproximate</code> does one.
+     * The output arrays may be the same as the input arrays, to convert in
+     * place.
+     * @param latitudes
+     * @param longitudes
+     * @param srcOffset index of the first point in the input arrays.
+     * @param eastings
+     * @param northings
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     */
+    public static void convertApproximate(double[] latitudes, double[] longitudes, int srcOffset,
+            double[] eastings, double[] northings, int dstOffset, int length) {
+        convertApproximate(Ostn02LookupTable.getGridModel(), latitudes, longitudes, srcOffset, eastings,
+                northings, dstOffset, length);
+    }
+    
+    /**
+     * As <code>convertApproximate(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertApproximate(GridModel model, double[] latitudes, double[] longitudes,
+            int srcOffset, double[] eastings, double[] northings, int dstOffset, int length) {
+        checkRange(latitudes, srcOffset, length);
+        checkRange(longitudes, srcOffset, length);
+        checkRange(eastings, dstOffset, length);
+        checkRange(northings, dstOffset, length);
         
-        return findAndApplyShift(east,north);
+        long startTime = Ostn02Metrics.startTime();
+        double[] eastNorth = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        ShiftCellCache cache = new ShiftCellCache();
+        for (int i=0 ; i<length ; i++) {
+            convertApproximate(latitudes[srcOffset+i], longitudes[srcOffset+i], eastNorth, shift, terms, cache, model, startTime != 0);
+            eastings[dstOffset+i] = eastNorth[0];
+            northings[dstOffset+i] = eastNorth[1];
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_OSGB36, length, startTime);
+    }
+    
+    private static void convert(double latitude, double longitude, double[] eastNorth, double[] shift,
+            double[] terms, ShiftCellCache cache, GridModel model, boolean metrics) {
+        TransverseMercator.toEastingNorthing(latitude, longitude, eastNorth, terms);
+        findAndApplyShift(eastNorth, shift, cache, model, metrics);
     }
     
-    private E findAndApplyShift(double east,double north) {
-        Ostn02LookupTable.Shift s = Ostn02LookupTable.getShiftFrom((float)east, (float)north);
-        return produceOutput(east+s.getEastShift(), north+s.getNorthShift());
+    private static void convert(double latitude, double longitude, Scratch s, GridModel model, boolean metrics) {
+        ConversionCache results = resultCache;
+        if (results == null) {
+            convert(latitude, longitude, s.eastNorth, s.shift, s.terms, s.cache, model, metrics);
+        } else if (!results.get(model, latitude, longitude, s.eastNorth)) {
+            convert(results.quantise(latitude), results.quantise(longitude), s.eastNorth, s.shift, s.terms,
+                    s.cache, model, metrics);
+            results.put(model, latitude, longitude, s.eastNorth);
+        }
     }
     
-    private static double sq(double a) {
-        return a*a;
+    private static void convertApproximate(double latitude, double longitude, double[] eastNorth, double[] shift,
+            double[] terms, ShiftCellCache cache, GridModel model, boolean metrics) {
+        PiecewiseProjection.toEastingNorthing(latitude, longitude, eastNorth, terms);
+        findAndApplyShift(eastNorth, shift, cache, model, metrics);
     }
-    private static double cube(double a) {
-        return a*a*a;
+    
+    private static void findAndApplyShift(double[] eastNorth, double[] shift, ShiftCellCache cache,
+            GridModel model, boolean metrics) {
+        if (metrics)
+            Ostn02Metrics.lookedUp(Ostn02Metrics.Direction.TO_OSGB36, model, eastNorth[0], eastNorth[1]);
+        cache.getShift(model, eastNorth[0], eastNorth[1], shift);
+        eastNorth[0] += shift[0];
+        eastNorth[1] += shift[1];
     }
-    private static double four(double a) {
-        return sq(sq(a));
+    
+    private static void checkRange(double[] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > array.length - length)
+            throw new ArrayIndexOutOfBoundsException("Range " + offset + "+" + length 
+                    + " outside array of length " + array.length);
     }
-    private static double five(double a) {
-        return four(a)*a;
+    
+    /**
+     * Checks a buffer holds <code>count</code> records of <code>width</code>
+     * bytes, <code>stride</code> bytes apart, from <code>offset</code>.
+     */
+    private static void checkRange(ByteBuffer buffer, int offset, int stride, int width, int count) {
+        if (stride < width)
+            throw new IllegalArgumentException("Stride " + stride + " less than " + width + " bytes");
+        if (offset < 0 || count < 0 
+                || (count > 0 && offset + (long)(count-1)*stride + width > buffer.limit()))
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + count + "*" + stride 
+                    + " outside buffer of limit " + buffer.limit());
     }
-    private static double six(double a) {
-        return sq(cube(a));
+    
+    protected abstract E produceOutput(double east,double north);
+    
+    /**
+     * Converts a range of raster rows, splitting it among the pool until
+     * each task has a few thousand pixels.
+     */
+    private static class RasterTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final double originLatitude;
+        private final double originLongitude;
+        private final double latitudeStep;
+        private final double longitudeStep;
+        private final int width;
+        private final double[] eastings;
+        private final double[] northings;
+        private final int fromRow;
+        private final int toRow;
+        private final GridModel model;
+        private final boolean metrics;
+        
+        RasterTask(double originLatitude, double originLongitude, double latitudeStep, double longitudeStep,
+                int width, double[] eastings, double[] northings, int fromRow, int toRow, GridModel model,
+                boolean metrics) {
+            this.originLatitude = originLatitude;
+            this.originLongitude = originLongitude;
+            this.latitudeStep = latitudeStep;
+            this.longitudeStep = longitudeStep;
+            this.width = width;
+            this.eastings = eastings;
+            this.northings = northings;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.model = model;
+            this.metrics = metrics;
+        }
+        
+        @Override
+        protected void compute() {
+            if (toRow-fromRow > 1 && (long)(toRow-fromRow)*width > RASTER_PIXELS_PER_TASK) {
+                int middle = (fromRow+toRow) >>> 1;
+                invokeAll(new RasterTask(originLatitude, originLongitude, latitudeStep, longitudeStep, width,
+                                eastings, northings, fromRow, middle, model, metrics),
+                        new RasterTask(originLatitude, originLongitude, latitudeStep, longitudeStep, width,
+                                eastings, northings, middle, toRow, model, metrics));
+                return;
+            }
+            
+            double[] eastNorth = new double[2];
+            double[] shift = new double[2];
+            double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+            ShiftCellCache cache = new ShiftCellCache();
+            for (int row=fromRow ; row<toRow ; row++) {
+                TransverseMercator.forwardTerms(originLatitude + row*latitudeStep, terms);
+                for (int column=0, i=width*row ; column<width ; column++, i++) {
+                    TransverseMercator.evaluateForward(terms, originLongitude + column*longitudeStep, eastNorth);
+                    findAndApplyShift(eastNorth, shift, cache, model, metrics);
+                    eastings[i] = eastNorth[0];
+                    northings[i] = eastNorth[1];
+                }
+            }
+        }
     }
     
-    abstract E produceOutput(double east,double north);
+    private static class Scratch {
+        final double[] eastNorth = new double[2];
+        final double[] shift = new double[2];
+        final double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        final ShiftCellCache cache = new ShiftCellCache();
+    }
     
 }
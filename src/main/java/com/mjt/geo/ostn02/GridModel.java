@@ -0,0 +1,363 @@
+package com.mjt.geo.ostn02;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A grid of ETRS89 to OSGB36 shifts, such as OSTN02 or OSTN15: its extent,
+ * spacing and scale, and the shifts themselves, as scaled integers laid out
+ * like ostn02.bin - east and north shifts for each grid point, in rows from
+ * the south-west. All models share the same lookup code, so
+ * <code>ShiftCellCache</code>, <code>ReverseShiftGrid</code> and the
+ * converters work the same on any of them.
+ *
+ * The OSGM02 geoid table is held the same way, with each grid point's geoid
+ * height in place of its east shift and its vertical datum flag in place of
+ * its north shift, so height lookups share the same code and caches.
+ *
+ * The converters use the model set with
+ * <code>Ostn02LookupTable.setGridModel</code>, <code>OSTN02</code> unless
+ * changed, reading it once at the start of each call; or the model a
+ * converter instance was constructed with. Models are immutable once their
+ * shifts are loaded, so any number of threads can share one.
+ *
+ * @author Michael Tandy
+ */
+public final class GridModel {
+    private static final AtomicLong nextId = new AtomicLong();
+
+    /** The OSTN02 table bundled with this library, loaded on first use. */
+    public static final GridModel OSTN02 = new GridModel("OSTN02", 0, 0, 1000,
+            Ostn02LookupTable.MAX_EAST_KM+1, Ostn02LookupTable.MAX_NORTH_KM+1, (int)Ostn02LookupTable.SCALE_FACTOR,
+            null, new Loader() {
+                public ShiftStorage load() throws IOException {
+                    return Ostn02LookupTable.loadData();
+                }
+            });
+
+    /**
+     * The OSGM02 geoid heights and datum flags bundled with this library,
+     * loaded on first use. Not a shift model; see
+     * <code>Ostn02LookupTable.getGeoidHeight</code>.
+     */
+    static final GridModel OSGM02 = new GridModel("OSGM02", 0, 0, 1000,
+            Ostn02LookupTable.MAX_EAST_KM+1, Ostn02LookupTable.MAX_NORTH_KM+1, (int)Ostn02LookupTable.SCALE_FACTOR,
+            null, new Loader() {
+                public ShiftStorage load() throws IOException {
+                    return Ostn02LookupTable.loadGeoidData();
+                }
+            });
+
+    /** Distinguishes models in <code>ConversionCache</code>. */
+    final long id = nextId.incrementAndGet();
+    private final String name;
+    final double minEasting;
+    final double minNorthing;
+    final double spacing;
+    final float minEastingFloat;
+    final float minNorthingFloat;
+    final float spacingFloat;
+    final int columns;
+    final int rows;
+    final double scale;
+    final float scaleFloat;
+    private final AtomicReference<ShiftStorage> storage;
+    private final Loader loader;
+
+    private GridModel(String name, double minEasting, double minNorthing, double spacing, int columns, int rows,
+            int scaleFactor, ShiftStorage storage, Loader loader) {
+        if (name == null)
+            throw new NullPointerException("name");
+        if (!(spacing > 0) || Double.isInfinite(spacing) || Double.isNaN(minEasting) || Double.isNaN(minNorthing))
+            throw new IllegalArgumentException("Grid spacing " + spacing + " from " + minEasting + "," + minNorthing);
+        if (columns < 2 || rows < 2 || (long)columns*rows > Integer.MAX_VALUE/2)
+            throw new IllegalArgumentException("Grid of " + columns + "x" + rows + " points");
+        if (scaleFactor < 1)
+            throw new IllegalArgumentException("Scale factor " + scaleFactor);
+        this.name = name;
+        this.minEasting = minEasting;
+        this.minNorthing = minNorthing;
+        this.spacing = spacing;
+        this.minEastingFloat = (float)minEasting;
+        this.minNorthingFloat = (float)minNorthing;
+        this.spacingFloat = (float)spacing;
+        this.columns = columns;
+        this.rows = rows;
+        this.scale = scaleFactor;
+        this.scaleFloat = scaleFactor;
+        this.storage = new AtomicReference<ShiftStorage>(storage);
+        this.loader = loader;
+    }
+
+    /**
+     * Read a table on the OSTN02 grid - 1km spacing from 0,0 to 700km,1250km,
+     * scaled by 10000 - as OSTN15 is.
+     * @param name
+     * @param in the table in the ostn02.bin format.
+     * @throws IOException if the table can't be read or is too short.
+     */
+    public static GridModel read(String name, InputStream in) throws IOException {
+        return read(name, in, GridModel.OSTN02.minEasting, GridModel.OSTN02.minNorthing, GridModel.OSTN02.spacing,
+                GridModel.OSTN02.columns, GridModel.OSTN02.rows, (int)GridModel.OSTN02.scale);
+    }
+
+    /**
+     * Read a table in the ostn02.bin format on any regular grid.
+     * @param name
+     * @param in
+     * @param minEasting easting of the south-west grid point, in metres.
+     * @param minNorthing
+     * @param spacing metres between grid points.
+     * @param columns grid points from west to east.
+     * @param rows grid points from south to north.
+     * @param scaleFactor the shifts are in metres times this.
+     * @throws IOException if the table can't be read or is too short.
+     */
+    public static GridModel read(String name, InputStream in, double minEasting, double minNorthing,
+            double spacing, int columns, int rows, int scaleFactor) throws IOException {
+        long startTime = System.nanoTime();
+        ShiftStorage storage = new HeapShiftStorage(Ostn02LookupTable.readRawData(
+                new BufferedInputStream(in), 2*columns*rows));
+        GridModel model = new GridModel(name, minEasting, minNorthing, spacing, columns, rows, scaleFactor,
+                storage, null);
+        Ostn02Metrics.tableLoaded(name, false, System.nanoTime()-startTime);
+        return model;
+    }
+
+    /**
+     * Memory-map a table on the OSTN02 grid, as <code>read</code>.
+     * @param name
+     * @param file the table in the ostn02.bin format.
+     * @throws IOException if the file can't be mapped or is the wrong size.
+     */
+    public static GridModel map(String name, File file) throws IOException {
+        long startTime = System.nanoTime();
+        GridModel model = ostn02(name, MappedShiftStorage.map(file, 2*GridModel.OSTN02.columns*GridModel.OSTN02.rows));
+        Ostn02Metrics.tableLoaded(file.getPath(), false, System.nanoTime()-startTime);
+        return model;
+    }
+
+    /**
+     * A model on the OSTN02 grid with the given shifts.
+     */
+    static GridModel ostn02(String name, ShiftStorage storage) {
+        return new GridModel(name, GridModel.OSTN02.minEasting, GridModel.OSTN02.minNorthing, GridModel.OSTN02.spacing,
+                GridModel.OSTN02.columns, GridModel.OSTN02.rows, (int)GridModel.OSTN02.scale, storage, null);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return easting of the south-west grid point, in metres.
+     */
+    public double getMinEasting() {
+        return minEasting;
+    }
+
+    public double getMinNorthing() {
+        return minNorthing;
+    }
+
+    /**
+     * @return easting of the north-east grid point, in metres.
+     */
+    public double getMaxEasting() {
+        return minEasting + spacing*(columns-1);
+    }
+
+    public double getMaxNorthing() {
+        return minNorthing + spacing*(rows-1);
+    }
+
+    /**
+     * @return metres between grid points.
+     */
+    public double getSpacing() {
+        return spacing;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the table's shifts are in metres times this.
+     */
+    public int getScaleFactor() {
+        return (int)scale;
+    }
+
+    /**
+     * @param easting ETRS89 easting.
+     * @param northing
+     * @return whether the position is within the grid. Outside it there are
+     * no shifts, and lookups return zero.
+     */
+    public boolean contains(double easting, double northing) {
+        return easting >= minEasting && easting <= getMaxEasting()
+                && northing >= minNorthing && northing <= getMaxNorthing();
+    }
+
+    /**
+     * Load the shifts now rather than on the first lookup. Does nothing if
+     * they're already loaded.
+     * @throws UncheckedIOException if the shifts can't be loaded.
+     */
+    public void preload() {
+        getStorage();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    ShiftStorage getStorage() {
+        ShiftStorage backing = storage.get();
+        if (backing != null)
+            return backing;
+
+        synchronized (storage) {
+            if (storage.get() == null) {
+                try {
+                    storage.compareAndSet(null, loader.load());
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to load " + name + " table", e);
+                }
+            }
+            return storage.get();
+        }
+    }
+
+    /**
+     * Bilinear interpolation in single precision, as
+     * <code>Ostn02LookupTable.getShiftFrom(float,float,float[])</code>.
+     */
+    void interpolate(float easting, float northing, float[] shift) {
+        ShiftStorage backing = getStorage();
+
+        float e = (easting-minEastingFloat)/spacingFloat;
+        float n = (northing-minNorthingFloat)/spacingFloat;
+        // Not ceil(n), which on a grid line would be the same corner as
+        // floor(n) and count it twice.
+        int south=(int)Math.floor(n);
+        int north=south+1;
+        int west=(int)Math.floor(e);
+        int east=west+1;
+
+        int NW = index(west,north);
+        int NE = index(east,north);
+        int SW = index(west,south);
+        int SE = index(east,south);
+
+        float c = north-n;
+        float d = n-south;
+        float f = east-e;
+        float g = e-west;
+
+        shift[0] = (1-c)*(1-g)*value(backing,NW,0)
+                + (1-d)*(1-g)*value(backing,SW,0)
+                + (1-c)*(1-f)*value(backing,NE,0)
+                + (1-d)*(1-f)*value(backing,SE,0);
+
+        shift[1] = (1-c)*(1-g)*value(backing,NW,1)
+                + (1-d)*(1-g)*value(backing,SW,1)
+                + (1-c)*(1-f)*value(backing,NE,1)
+                + (1-d)*(1-f)*value(backing,SE,1);
+    }
+
+    void interpolate(double easting, double northing, double[] shift) {
+        interpolate(getStorage(), easting, northing, shift);
+    }
+
+    /**
+     * Bilinear interpolation, in double precision, of shifts on this grid,
+     * working directly on the scaled integers.
+     */
+    void interpolate(ShiftStorage backing, double easting, double northing, double[] shift) {
+        double e = (easting-minEasting)/spacing;
+        double n = (northing-minNorthing)/spacing;
+        int west = (int)Math.floor(e);
+        int south = (int)Math.floor(n);
+        double g = e-west;
+        double d = n-south;
+
+        int SW = index(west,south);
+        int SE = index(west+1,south);
+        int NW = index(west,south+1);
+        int NE = index(west+1,south+1);
+
+        double sw = (1-g)*(1-d);
+        double se = g*(1-d);
+        double nw = (1-g)*d;
+        double ne = g*d;
+
+        shift[0] = (sw*rawValue(backing,SW,0) + se*rawValue(backing,SE,0)
+                + nw*rawValue(backing,NW,0) + ne*rawValue(backing,NE,0)) / scale;
+        shift[1] = (sw*rawValue(backing,SW,1) + se*rawValue(backing,SE,1)
+                + nw*rawValue(backing,NW,1) + ne*rawValue(backing,NE,1)) / scale;
+    }
+
+    /**
+     * The shifts at the corners of one cell, for <code>ShiftCellCache</code>.
+     * Written to <code>corners</code> from <code>offset</code>: the east
+     * shifts at NW, SW, NE and SE, then the north shifts in the same order.
+     * Corners outside the grid are zero. The same values, still as scaled
+     * integers, are written to <code>rawCorners</code>.
+     */
+    void getCellCorners(int west, int south, float[] corners, int[] rawCorners, int offset) {
+        ShiftStorage backing = getStorage();
+        int NW = index(west,south+1);
+        int SW = index(west,south);
+        int NE = index(west+1,south+1);
+        int SE = index(west+1,south);
+        for (int component=0 ; component<2 ; component++) {
+            rawCorners[offset] = rawValue(backing,NW,component);
+            corners[offset++] = value(backing,NW,component);
+            rawCorners[offset] = rawValue(backing,SW,component);
+            corners[offset++] = value(backing,SW,component);
+            rawCorners[offset] = rawValue(backing,NE,component);
+            corners[offset++] = value(backing,NE,component);
+            rawCorners[offset] = rawValue(backing,SE,component);
+            corners[offset++] = value(backing,SE,component);
+        }
+    }
+
+    /**
+     * Position of a grid point's east shift in the storage, or -1 if the
+     * point lies outside the grid.
+     */
+    int index(int column, int row) {
+        if (column >= columns || column < 0 || row >= rows || row < 0)
+            return -1;
+        return 2*(column+columns*row);
+    }
+
+    private float value(ShiftStorage backing, int i, int component) {
+        if (i < 0)
+            return 0;
+        return backing.get(i+component)/scaleFloat;
+    }
+
+    private static int rawValue(ShiftStorage backing, int i, int component) {
+        if (i < 0)
+            return 0;
+        return backing.get(i+component);
+    }
+
+    /**
+     * Loads a model's shifts on first use, reporting where they came from to
+     * <code>Ostn02Metrics.tableLoaded</code>.
+     */
+    interface Loader {
+        ShiftStorage load() throws IOException;
+    }
+
+}
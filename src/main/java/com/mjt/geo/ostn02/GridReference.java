@@ -0,0 +1,362 @@
+package com.mjt.geo.ostn02;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes Ordnance Survey National Grid references, such as
+ * "TQ 28376 80799", without allocating. A reference is two letters naming a
+ * 100km square, then an easting and northing within it with the same number
+ * of digits each, from 0 to 5, written together ("TQ2880") or separated by
+ * spaces. Letters may be either case. A reference names the south-west corner
+ * of a square, so "TQ 28 80", with 1km precision, parses to 528000,180000.
+ * Formatting truncates to the square containing the point, as the Ordnance
+ * Survey does.
+ *
+ * Batch methods read a column of references straight into the arrays the
+ * batch conversions take, or write one out from them.
+ *
+ * @author Michael Tandy
+ */
+public final class GridReference {
+    /** Easting limit of the 100km squares, in metres. */
+    private static final int MAX_EAST = 700000;
+    /** Northing limit of the 100km squares, in metres. */
+    private static final int MAX_NORTH = 1300000;
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000};
+    private static final long INVALID = -1;
+
+    private GridReference() {
+    }
+
+    /**
+     * Parse a grid reference from <code>text</code>, between
+     * <code>start</code> and <code>end</code>. Spaces and tabs around it are
+     * ignored.
+     * @param text
+     * @param start index of the first character.
+     * @param end index after the last character.
+     * @param sink receives the easting and northing.
+     * @throws IllegalArgumentException if it isn't a grid reference.
+     */
+    public static void parse(CharSequence text, int start, int end, CoordinateSink sink) {
+        checkRange(start, end, text.length());
+        long packed = parse(text, null, start, end);
+        if (packed == INVALID)
+            throw new IllegalArgumentException("Not a grid reference: " + text.subSequence(start, end));
+        sink.accept(unpackEast(packed), unpackNorth(packed));
+    }
+
+    /**
+     * Parse a grid reference from ASCII bytes, between <code>start</code> and
+     * <code>end</code>.
+     * @param bytes
+     * @param start index of the first byte.
+     * @param end index after the last byte.
+     * @param sink receives the easting and northing.
+     * @throws IllegalArgumentException if it isn't a grid reference.
+     */
+    public static void parse(byte[] bytes, int start, int end, CoordinateSink sink) {
+        checkRange(start, end, bytes.length);
+        long packed = parse(null, bytes, start, end);
+        if (packed == INVALID)
+            throw new IllegalArgumentException("Not a grid reference: "
+                    + new String(bytes, start, end-start, StandardCharsets.US_ASCII));
+        sink.accept(unpackEast(packed), unpackNorth(packed));
+    }
+
+    /**
+     * Parse a batch of grid references. References that can't be parsed, and
+     * null entries, get NaN for their easting and northing, which carries
+     * through the batch conversions, so one bad row doesn't stop the rest.
+     * @param references
+     * @param srcOffset index of the first reference.
+     * @param eastings
+     * @param northings
+     * @param dstOffset index the first result is written to.
+     * @param length number of references to parse.
+     * @return the number of references that couldn't be parsed.
+     */
+    public static int parse(CharSequence[] references, int srcOffset,
+            double[] eastings, double[] northings, int dstOffset, int length) {
+        checkArrayRange(references.length, srcOffset, length);
+        checkArrayRange(eastings.length, dstOffset, length);
+        checkArrayRange(northings.length, dstOffset, length);
+
+        int invalid = 0;
+        for (int i=0 ; i<length ; i++) {
+            CharSequence reference = references[srcOffset+i];
+            long packed = reference == null ? INVALID : parse(reference, null, 0, reference.length());
+            if (packed == INVALID) {
+                eastings[dstOffset+i] = Double.NaN;
+                northings[dstOffset+i] = Double.NaN;
+                invalid++;
+            } else {
+                eastings[dstOffset+i] = unpackEast(packed);
+                northings[dstOffset+i] = unpackNorth(packed);
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Parse a batch of grid references and convert them to ETRS89 latitude
+     * and longitude, with <code>Osgb36ToEtrs89.convert</code>. References
+     * that can't be parsed give NaN.
+     * @param references
+     * @param srcOffset index of the first reference.
+     * @param latitudes
+     * @param longitudes
+     * @param dstOffset index the first result is written to.
+     * @param length number of references to convert.
+     * @return the number of references that couldn't be parsed.
+     */
+    public static int toLatitudeLongitude(CharSequence[] references, int srcOffset,
+            double[] latitudes, double[] longitudes, int dstOffset, int length) {
+        int invalid = parse(references, srcOffset, latitudes, longitudes, dstOffset, length);
+        Osgb36ToEtrs89.convert(latitudes, longitudes, dstOffset, latitudes, longitudes, dstOffset, length);
+        return invalid;
+    }
+
+    /**
+     * Append a grid reference, such as "TQ 28376 80799", to <code>out</code>.
+     * @param easting metres.
+     * @param northing metres.
+     * @param digits total digits, an even number from 0 to 10; 10 gives 1m
+     * precision, 6 gives 100m.
+     * @param out
+     * @throws IllegalArgumentException if the point is outside the National
+     * Grid's squares or the digit count isn't valid.
+     */
+    public static void format(double easting, double northing, int digits, StringBuilder out) {
+        checkPoint(easting, northing, digits);
+        int east = (int)easting;
+        int north = (int)northing;
+        out.append(firstLetter(east, north)).append(secondLetter(east, north));
+        if (digits == 0)
+            return;
+        int divisor = POWERS_OF_TEN[5-digits/2];
+        out.append(' ');
+        appendDigits(out, (east%100000)/divisor, digits/2);
+        out.append(' ');
+        appendDigits(out, (north%100000)/divisor, digits/2);
+    }
+
+    /**
+     * Write a grid reference, such as "TQ 28376 80799", as ASCII bytes at
+     * the buffer's position.
+     * @param easting metres.
+     * @param northing metres.
+     * @param digits total digits, an even number from 0 to 10.
+     * @param out
+     * @throws IllegalArgumentException if the point is outside the National
+     * Grid's squares or the digit count isn't valid.
+     * @throws BufferOverflowException if there isn't room, in which
+     * case nothing is written.
+     */
+    public static void format(double easting, double northing, int digits, ByteBuffer out) {
+        checkPoint(easting, northing, digits);
+        if (out.remaining() < formattedLength(digits))
+            throw new BufferOverflowException();
+        int east = (int)easting;
+        int north = (int)northing;
+        out.put((byte)firstLetter(east, north)).put((byte)secondLetter(east, north));
+        if (digits == 0)
+            return;
+        int divisor = POWERS_OF_TEN[5-digits/2];
+        out.put((byte)' ');
+        putDigits(out, (east%100000)/divisor, digits/2);
+        out.put((byte)' ');
+        putDigits(out, (north%100000)/divisor, digits/2);
+    }
+
+    /**
+     * Append a batch of grid references to <code>out</code>, each followed by
+     * <code>separator</code>.
+     * @param eastings
+     * @param northings
+     * @param offset index of the first point.
+     * @param length number of points.
+     * @param digits total digits, an even number from 0 to 10.
+     * @param out
+     * @param separator such as a newline.
+     * @throws IllegalArgumentException if a point is outside the National
+     * Grid's squares; the references before it have been appended.
+     */
+    public static void format(double[] eastings, double[] northings, int offset, int length,
+            int digits, StringBuilder out, char separator) {
+        checkArrayRange(eastings.length, offset, length);
+        checkArrayRange(northings.length, offset, length);
+        out.ensureCapacity(out.length() + length*(formattedLength(digits)+1));
+        for (int i=offset ; i<offset+length ; i++) {
+            format(eastings[i], northings[i], digits, out);
+            out.append(separator);
+        }
+    }
+
+    /**
+     * @param digits
+     * @return characters in a reference formatted with this many digits.
+     */
+    public static int formattedLength(int digits) {
+        return digits == 0 ? 2 : digits+4;
+    }
+
+    /**
+     * Parse from whichever of <code>chars</code> and <code>bytes</code> isn't
+     * null.
+     * @return the easting and northing in whole metres, packed as by
+     * <code>pack</code>, or <code>INVALID</code>.
+     */
+    private static long parse(CharSequence chars, byte[] bytes, int start, int end) {
+        while (start < end && isSpace(charAt(chars, bytes, start)))
+            start++;
+        while (end > start && isSpace(charAt(chars, bytes, end-1)))
+            end--;
+        if (end-start < 2)
+            return INVALID;
+
+        int first = letterIndex(charAt(chars, bytes, start));
+        int second = letterIndex(charAt(chars, bytes, start+1));
+        if (first < 0 || second < 0)
+            return INVALID;
+        int squareEast = ((first-2)%5)*5 + second%5;
+        int squareNorth = (19 - (first/5)*5) - second/5;
+        if (squareEast < 0 || squareEast >= MAX_EAST/100000
+                || squareNorth < 0 || squareNorth >= MAX_NORTH/100000)
+            return INVALID;
+
+        // One run of digits, split in half, or two runs of the same length.
+        long firstRun = 0;
+        int firstDigits = 0;
+        long secondRun = 0;
+        int secondDigits = 0;
+        int runs = 0;
+        boolean inRun = false;
+        for (int i=start+2 ; i<end ; i++) {
+            char c = charAt(chars, bytes, i);
+            if (c >= '0' && c <= '9') {
+                if (!inRun) {
+                    if (++runs > 2)
+                        return INVALID;
+                    inRun = true;
+                }
+                if (runs == 1) {
+                    if (++firstDigits > 10)
+                        return INVALID;
+                    firstRun = 10*firstRun + (c-'0');
+                } else {
+                    if (++secondDigits > 5)
+                        return INVALID;
+                    secondRun = 10*secondRun + (c-'0');
+                }
+            } else if (isSpace(c)) {
+                inRun = false;
+            } else {
+                return INVALID;
+            }
+        }
+
+        int digits;
+        long east;
+        long north;
+        if (runs == 2) {
+            if (firstDigits != secondDigits || firstDigits > 5)
+                return INVALID;
+            digits = firstDigits;
+            east = firstRun;
+            north = secondRun;
+        } else {
+            if (firstDigits%2 != 0)
+                return INVALID;
+            digits = firstDigits/2;
+            east = firstRun/POWERS_OF_TEN[digits];
+            north = firstRun%POWERS_OF_TEN[digits];
+        }
+        int scale = POWERS_OF_TEN[5-digits];
+        return pack(100000*squareEast + (int)east*scale, 100000*squareNorth + (int)north*scale);
+    }
+
+    private static char charAt(CharSequence chars, byte[] bytes, int i) {
+        return chars != null ? chars.charAt(i) : (char)(bytes[i] & 0xff);
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Position of a letter in the 5x5 grid of squares, A to Z without I, or
+     * -1 if it isn't one.
+     */
+    private static int letterIndex(char c) {
+        if (c >= 'a' && c <= 'z')
+            c -= 'a'-'A';
+        if (c < 'A' || c > 'Z' || c == 'I')
+            return -1;
+        int index = c-'A';
+        return index > 7 ? index-1 : index;
+    }
+
+    private static char firstLetter(int east, int north) {
+        int squareEast = east/100000;
+        int squareNorth = north/100000;
+        int index = (19-squareNorth) - (19-squareNorth)%5 + (squareEast+10)/5;
+        return letter(index);
+    }
+
+    private static char secondLetter(int east, int north) {
+        int squareEast = east/100000;
+        int squareNorth = north/100000;
+        int index = (19-squareNorth)*5%25 + squareEast%5;
+        return letter(index);
+    }
+
+    private static char letter(int index) {
+        return (char)('A' + (index > 7 ? index+1 : index));
+    }
+
+    private static void appendDigits(StringBuilder out, int value, int digits) {
+        for (int p=digits-1 ; p>=0 ; p--) {
+            out.append((char)('0' + value/POWERS_OF_TEN[p]%10));
+        }
+    }
+
+    private static void putDigits(ByteBuffer out, int value, int digits) {
+        for (int p=digits-1 ; p>=0 ; p--) {
+            out.put((byte)('0' + value/POWERS_OF_TEN[p]%10));
+        }
+    }
+
+    private static long pack(int east, int north) {
+        return ((long)east << 32) | north;
+    }
+
+    private static int unpackEast(long packed) {
+        return (int)(packed >>> 32);
+    }
+
+    private static int unpackNorth(long packed) {
+        return (int)packed;
+    }
+
+    private static void checkPoint(double easting, double northing, int digits) {
+        if (digits < 0 || digits > 10 || digits%2 != 0)
+            throw new IllegalArgumentException("Digits must be an even number from 0 to 10, not " + digits);
+        if (!(easting >= 0 && easting < MAX_EAST && northing >= 0 && northing < MAX_NORTH))
+            throw new IllegalArgumentException("Outside the National Grid: " + easting + "," + northing);
+    }
+
+    private static void checkRange(int start, int end, int length) {
+        if (start < 0 || end < start || end > length)
+            throw new IndexOutOfBoundsException("Range " + start + "-" + end + " outside length " + length);
+    }
+
+    private static void checkArrayRange(int arrayLength, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > arrayLength - length)
+            throw new ArrayIndexOutOfBoundsException("Range " + offset + "+" + length 
+                    + " outside array of length " + arrayLength);
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * Shift storage backed by an ordinary int array on the heap.
+ * 
+ * @author Michael Tandy
+ */
+class HeapShiftStorage implements ShiftStorage {
+    private final int[] data;
+    
+    HeapShiftStorage(int[] data) {
+        this.data = data;
+    }
+
+    public int get(int i) {
+        return data[i];
+    }
+    
+}
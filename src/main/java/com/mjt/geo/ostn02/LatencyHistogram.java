@@ -0,0 +1,97 @@
+package com.mjt.geo.ostn02;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Counts durations in power-of-two buckets. Recording is a few uncontended
+ * additions, so it can be done from any number of threads at once, and
+ * percentiles are upper bounds, accurate to within a factor of two.
+ *
+ * @author Michael Tandy
+ */
+public class LatencyHistogram {
+    /** Bucket i counts durations from 2^i up to 2^(i+1) nanoseconds. */
+    private static final int BUCKETS = 40;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    }, 0);
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    public LatencyHistogram() {
+        for (int i=0 ; i<BUCKETS ; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos
+     */
+    public void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+        int bucket = 63-Long.numberOfLeadingZeros(Math.max(nanos, 1));
+        buckets[Math.min(bucket, BUCKETS-1)].increment();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return mean in microseconds, or zero if nothing was recorded.
+     */
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum()/1e3/n;
+    }
+
+    public double getMaxMicros() {
+        return maxNanos.get()/1e3;
+    }
+
+    /**
+     * @param fraction between 0 and 1; 0.99 for the 99th percentile.
+     * @return duration in microseconds that at least that fraction of those
+     * recorded were within, or zero if nothing was recorded.
+     */
+    public double getPercentileMicros(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i=0 ; i<BUCKETS ; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long)Math.ceil(fraction*total));
+        long seen = 0;
+        for (int i=0 ; i<BUCKETS ; i++) {
+            seen += counts[i];
+            if (seen >= target)
+                return (1L << (i+1))/1e3;
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Zero everything. Durations recorded while resetting may be partly lost.
+     */
+    public void reset() {
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+    }
+
+}
@@ -3,7 +3,8 @@ package com.mjt.geo.ostn02;
 /**
  * A simple data structure containing a latitude and longitude. If you already
  * have a lat/lon class and don't want another one, consider extending
- * <code>Osgb36ToEtrs89</code> and <code>Etrs89ToOsgb36</code>.
+ * <code>Osgb36ToEtrs89</code> and <code>Etrs89ToOsgb36</code>, or converting
+ * into a <code>CoordinateSink</code>.
  * @author Michael Tandy
  */
 public class LatitudeLongitude {
@@ -24,14 +25,7 @@ public class LatitudeLongitude {
     }
     
     public EastingNorthing toEastingNorthing() {
-        Etrs89ToOsgb36<EastingNorthing> converter = new Etrs89ToOsgb36<EastingNorthing>() {
-            @Override
-            EastingNorthing produceOutput(double east, double north) {
-                return new EastingNorthing(east,north);
-            }
-        };
-        
-        return converter.convert(lat, lon);
+        return Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(lat, lon);
     }
     
 }
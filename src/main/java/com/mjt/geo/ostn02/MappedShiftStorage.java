@@ -0,0 +1,149 @@
+package com.mjt.geo.ostn02;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Shift storage that memory-maps ostn02.bin rather than copying it onto the
+ * heap. The operating system pages the file in as it's used, and processes on
+ * the same machine mapping the same file share one copy in the page cache.
+ * 
+ * @author Michael Tandy
+ */
+class MappedShiftStorage implements ShiftStorage {
+    private final IntBuffer data;
+    
+    private MappedShiftStorage(IntBuffer data) {
+        this.data = data;
+    }
+    
+    public int get(int i) {
+        return data.get(i);
+    }
+    
+    /**
+     * Map a file in the ostn02.bin format.
+     * @param file
+     * @param length number of ints the file must contain.
+     * @throws IOException if the file can't be read or is the wrong size.
+     */
+    static MappedShiftStorage map(File file, int length) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            long expectedSize = 4L*length;
+            if (channel.size() != expectedSize)
+                throw new IOException(file + " is " + channel.size() 
+                        + " bytes, expected " + expectedSize);
+            // The mapping stays valid after the channel is closed.
+            IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY, 0, expectedSize).asIntBuffer();
+            return new MappedShiftStorage(ints);
+        } finally {
+            fis.close();
+        }
+    }
+    
+    /**
+     * Map a classpath resource in the ostn02.bin format. If the resource is
+     * inside a jar it is mapped from a copy extracted as <code>extract</code>
+     * describes, so processes using the same jar share it.
+     * @param resource
+     * @param length number of ints the resource must contain.
+     * @throws IOException if the resource is missing, can't be read or is the
+     * wrong size.
+     */
+    static MappedShiftStorage mapResource(String resource, int length) throws IOException {
+        URL url = MappedShiftStorage.class.getResource(resource);
+        if (url == null)
+            throw new FileNotFoundException("Resource " + resource + " not found");
+        if ("file".equals(url.getProtocol()))
+            return map(new File(URLDecoder.decode(url.getPath(), "UTF-8")), length);
+        return map(extract(url, 4L*length), length);
+    }
+    
+    /**
+     * Copy a resource to a file in <code>java.io.tmpdir</code> named by a
+     * digest of its contents, unless that file already exists with those
+     * contents. The copy is written under a temporary name and renamed into
+     * place, so no process ever maps a partly written file; and it's left for
+     * the next process rather than deleted on exit. On a shared temporary
+     * directory another user may own a file of that name, so an existing file
+     * is only reused if its digest matches, and if it can't be replaced we
+     * map a private copy instead.
+     * @param url
+     * @param size bytes the resource must contain.
+     * @return the extracted file.
+     * @throws IOException if the resource can't be read or is the wrong size.
+     */
+    static File extract(URL url, long size) throws IOException {
+        String name = digestName(url.openStream());
+        File extracted = new File(System.getProperty("java.io.tmpdir"), name);
+        if (extracted.length() == size && name.equals(digestName(new FileInputStream(extracted))))
+            return extracted;
+        
+        File temporary = File.createTempFile("ostn02", ".tmp", extracted.getParentFile());
+        boolean keep = false;
+        try {
+            InputStream is = url.openStream();
+            try {
+                Files.copy(is, temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                is.close();
+            }
+            try {
+                try {
+                    Files.move(temporary.toPath(), extracted.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary.toPath(), extracted.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                // Someone else's file is in the way; keep ours to ourselves.
+                keep = true;
+                temporary.deleteOnExit();
+                return temporary;
+            }
+        } finally {
+            if (!keep)
+                temporary.delete();
+        }
+        return extracted;
+    }
+    
+    /**
+     * The file name for a table: <code>ostn02-</code> followed by the first
+     * 128 bits of the SHA-256 of its contents.
+     * @param is stream of the table's contents, which is closed.
+     */
+    private static String digestName(InputStream is) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            is.close();
+            throw new IOException("SHA-256 unavailable", e);
+        }
+        is = new DigestInputStream(is, digest);
+        try {
+            byte[] buffer = new byte[64*1024];
+            while (is.read(buffer) >= 0) { }
+        } finally {
+            is.close();
+        }
+        StringBuilder name = new StringBuilder("ostn02-");
+        byte[] hash = digest.digest();
+        for (int i=0 ; i<16 ; i++) {
+            name.append(String.format("%02x", hash[i]));
+        }
+        return name.append(".bin").toString();
+    }
+    
+}
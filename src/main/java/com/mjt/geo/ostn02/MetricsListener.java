@@ -0,0 +1,36 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * Receives conversion events while metrics are enabled; see
+ * <code>Ostn02Metrics</code>. Methods are called on the converting thread,
+ * in the middle of a conversion, so they should return quickly.
+ *
+ * @author Michael Tandy
+ */
+public interface MetricsListener {
+
+    /**
+     * A conversion call completed.
+     * @param direction
+     * @param points points converted; one for single point conversions.
+     * @param nanos time the call took.
+     */
+    void converted(Ostn02Metrics.Direction direction, int points, long nanos);
+
+    /**
+     * A point was looked up outside the OSTN02 table, where the shift is
+     * taken to be zero, so its result is not a true OSTN02 conversion.
+     * @param direction
+     * @param easting the easting the shift was looked up at.
+     * @param northing
+     */
+    void outOfGrid(Ostn02Metrics.Direction direction, double easting, double northing);
+
+    /**
+     * A table was loaded or mapped.
+     * @param resource the table's resource name, such as /ostn02.bin.
+     * @param nanos time the load took.
+     */
+    void tableLoaded(String resource, long nanos);
+
+}
@@ -0,0 +1,33 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * A reusable holder for one converted coordinate. Create one per thread and
+ * pass it to the converters' <code>convert</code> methods that take a
+ * <code>CoordinateSink</code>; each conversion overwrites the previous values.
+ * Not thread safe.
+ * @author Michael Tandy
+ */
+public class MutableCoordinate implements CoordinateSink {
+    private double first;
+    private double second;
+    
+    public void accept(double a, double b) {
+        this.first = a;
+        this.second = b;
+    }
+
+    /**
+     * @return the easting or latitude.
+     */
+    public double getFirst() {
+        return first;
+    }
+
+    /**
+     * @return the northing or longitude.
+     */
+    public double getSecond() {
+        return second;
+    }
+    
+}
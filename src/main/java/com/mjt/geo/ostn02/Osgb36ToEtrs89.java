@@ -1,5 +1,9 @@
 package com.mjt.geo.ostn02;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 /**
  * Converts easting/northing (OSGB36 datum) to latitude/longitude (ETRS89
  * datum). Based on calculations documented in the Ordnance Survey 
@@ -7,84 +11,784 @@ package com.mjt.geo.ostn02;
  * <a href="http://www.ordnancesurvey.co.uk/oswebsite/gps/osnetfreeservices/furtherinfo/questdeveloper.html">
  * OSTN02 and OSGM02 for Developers</a>.
  * 
+ * In the default single precision (see 
+ * <code>Ostn02LookupTable.setPrecision</code>) the OSTN02 shift is the
+ * forward shift looked up at the OSGB36 position, as in earlier versions,
+ * which isn't quite its inverse. In double precision the forward shifts are
+ * inverted, so converting the result back gives the input to within 0.1mm.
+ * Either way a <code>ReverseShiftGrid</code> set with
+ * <code>Ostn02LookupTable.setReverseGrid</code> is used instead, if there is
+ * one.
+ * 
+ * Subclass it and implement <code>produceOutput</code> to produce your own
+ * latitude/longitude type, or use <code>TO_LATITUDE_LONGITUDE</code>.
+ * Converters hold no state, so one instance can be shared between threads.
+ * 
+ * As with <code>Etrs89ToOsgb36</code>, each conversion call reads the grid
+ * model once, at the start, unless the instance was constructed with one or
+ * the model is passed in.
+ * 
  * @author Michael Tandy
  */
 public abstract class Osgb36ToEtrs89<E> {
+    /** Metres; how closely the ETRS89 position must reproduce the input. */
+    private static final double SHIFT_TOLERANCE = 0.0001;
+    /** Pixels per task when converting rasters. */
+    private static final int RASTER_PIXELS_PER_TASK = 8192;
+    
+    /** Shared converter producing <code>LatitudeLongitude</code>. */
+    public static final Osgb36ToEtrs89<LatitudeLongitude> TO_LATITUDE_LONGITUDE = new Osgb36ToEtrs89<LatitudeLongitude>() {
+        @Override
+        protected LatitudeLongitude produceOutput(double latitude, double longitude) {
+            return new LatitudeLongitude(latitude,longitude);
+        }
+    };
+    
+    /** Per-thread working space for single point conversions. */
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    
+    private static volatile ConversionCache resultCache = null;
+    
+    private final GridModel model;
+    
+    /**
+     * A converter using whichever grid model is current as each conversion
+     * starts.
+     */
+    protected Osgb36ToEtrs89() {
+        this(null);
+    }
+    
+    /**
+     * @param model grid model to convert with, or null to use whichever is
+     * current as each conversion starts.
+     */
+    protected Osgb36ToEtrs89(GridModel model) {
+        this.model = model;
+    }
     
     public E convert(double east, double north) {
-        return findAndApplyShift(east,north);
+        long startTime = Ostn02Metrics.startTime();
+        GridModel model = this.model != null ? this.model : Ostn02LookupTable.getGridModel();
+        Scratch s = scratch.get();
+        convert(east, north, s, model, startTime != 0);
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, 1, startTime);
+        return produceOutput(s.latLon[0], s.latLon[1]);
+    }
+    
+    /**
+     * Converts one point, passing the latitude and longitude to 
+     * <code>sink</code>. Allocates nothing, once a thread has converted its
+     * first point.
+     * @param east
+     * @param north
+     * @param sink
+     */
+    public static void convert(double east, double north, CoordinateSink sink) {
+        convert(Ostn02LookupTable.getGridModel(), east, north, sink);
+    }
+    
+    /**
+     * As <code>convert(double, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convert(GridModel model, double east, double north, CoordinateSink sink) {
+        long startTime = Ostn02Metrics.startTime();
+        Scratch s = scratch.get();
+        convert(east, north, s, model, startTime != 0);
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, 1, startTime);
+        sink.accept(s.latLon[0], s.latLon[1]);
     }
     
-    private E findAndApplyShift(double east,double north) {
-        Ostn02LookupTable.Shift s = Ostn02LookupTable.getShiftFrom((float)east, (float)north);
-        return TransverseMercatorToLatLon(east-s.getEastShift(), north-s.getNorthShift());
+    /**
+     * Caches the results of single point conversions, including those made
+     * through <code>EastingNorthing.toLatitudeLongitude</code>; batch
+     * conversions don't use it. Results answered from the cache skip the
+     * table, so aren't counted as out of grid by <code>Ostn02Metrics</code>.
+     * @param cache keyed by easting and northing, or null for none.
+     */
+    public static void setResultCache(ConversionCache cache) {
+        resultCache = cache;
     }
     
-    private E TransverseMercatorToLatLon(double east, double north) {
-        // GRS80 parameters:
-        double a = 6378137.000;
-        double b = 6356752.3141;
-        double eSquared = (sq(a)-sq(b))/sq(a);
-        double n0 = -100000;
-        double e0 = 400000;
-        double f0 = 0.9996012717;
-        double lat0 = Math.PI/180.0 * 49;
-        double lon0 = Math.PI/180.0 * -2;
+    public static ConversionCache getResultCache() {
+        return resultCache;
+    }
+    
+    /**
+     * Converts a batch of points held in separate easting and northing arrays,
+     * writing latitudes and longitudes into the caller's arrays. Nothing is
+     * allocated per point, so large batches produce no garbage. The output
+     * arrays may be the same as the input arrays, to convert in place.
+     * @param eastings
+     * @param northings
+     * @param srcOffset index of the first point in the input arrays.
+     * @param latitudes
+     * @param longitudes
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     */
+    public static void convert(double[] eastings, double[] northings, int srcOffset,
+            double[] latitudes, double[] longitudes, int dstOffset, int length) {
+        convert(eastings, northings, srcOffset, latitudes, longitudes, dstOffset, length, new ShiftCellCache());
+    }
+    
+    /**
+     * As <code>convert</code>, looking shifts up through the caller's cache.
+     * Reusing one cache across batches of nearby points, such as successive
+     * chunks of a GPS track, avoids rereading the table, and its hit and miss
+     * counts show how well that's working.
+     * @param eastings
+     * @param northings
+     * @param srcOffset index of the first point in the input arrays.
+     * @param latitudes
+     * @param longitudes
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     * @param cache
+     */
+    public static void convert(double[] eastings, double[] northings, int srcOffset,
+            double[] latitudes, double[] longitudes, int dstOffset, int length, ShiftCellCache cache) {
+        convert(Ostn02LookupTable.getGridModel(), eastings, northings, srcOffset, latitudes, longitudes,
+                dstOffset, length, cache);
+    }
+    
+    /**
+     * As <code>convert(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convert(GridModel model, double[] eastings, double[] northings, int srcOffset,
+            double[] latitudes, double[] longitudes, int dstOffset, int length, ShiftCellCache cache) {
+        checkRange(eastings, srcOffset, length);
+        checkRange(northings, srcOffset, length);
+        checkRange(latitudes, dstOffset, length);
+        checkRange(longitudes, dstOffset, length);
+        
+        long startTime = Ostn02Metrics.startTime();
+        double[] latLon = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        ReverseShiftGrid grid = reverseGrid(model);
+        for (int i=0 ; i<length ; i++) {
+            convert(eastings[srcOffset+i], northings[srcOffset+i], latLon, shift, terms, cache, model, grid, startTime != 0);
+            latitudes[dstOffset+i] = latLon[0];
+            longitudes[dstOffset+i] = latLon[1];
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, length, startTime);
+    }
+    
+    /**
+     * Converts a batch of points with orthometric heights, producing 
+     * latitudes, longitudes and ETRS89 ellipsoid heights. The OSGM02 geoid
+     * height is added to each orthometric height, which is taken to be in
+     * the vertical datum given by the point's datum flag (see
+     * <code>Ostn02LookupTable.getDatumFlag</code>); points outside OSGM02's
+     * coverage get NaN heights. The output arrays may be the same as the
+     * input arrays, to convert in place.
+     * @param eastings
+     * @param northings
+     * @param orthometricHeights heights in metres.
+     * @param srcOffset index of the first point in the input arrays.
+     * @param latitudes
+     * @param longitudes
+     * @param heights receives the ellipsoid heights.
+     * @param datumFlags receives each point's datum flag; may be null.
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     * @throws UncheckedIOException if the geoid table can't be loaded.
+     */
+    public static void convert(double[] eastings, double[] northings, double[] orthometricHeights, int srcOffset,
+            double[] latitudes, double[] longitudes, double[] heights, int[] datumFlags,
+            int dstOffset, int length) {
+        convert(Ostn02LookupTable.getGridModel(), eastings, northings, orthometricHeights, srcOffset,
+                latitudes, longitudes, heights, datumFlags, dstOffset, length);
+    }
+    
+    /**
+     * As <code>convert(double[], double[], double[], ...)</code>, converting
+     * with <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convert(GridModel model, double[] eastings, double[] northings,
+            double[] orthometricHeights, int srcOffset, double[] latitudes, double[] longitudes,
+            double[] heights, int[] datumFlags, int dstOffset, int length) {
+        checkRange(eastings, srcOffset, length);
+        checkRange(northings, srcOffset, length);
+        checkRange(orthometricHeights, srcOffset, length);
+        checkRange(latitudes, dstOffset, length);
+        checkRange(longitudes, dstOffset, length);
+        checkRange(heights, dstOffset, length);
+        if (datumFlags != null && (dstOffset < 0 || dstOffset > datumFlags.length - length))
+            throw new ArrayIndexOutOfBoundsException("Range " + dstOffset + "+" + length 
+                    + " outside array of length " + datumFlags.length);
+        
+        long startTime = Ostn02Metrics.startTime();
+        double[] latLon = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        ShiftCellCache cache = new ShiftCellCache();
+        ShiftCellCache geoidCache = new ShiftCellCache();
+        ReverseShiftGrid grid = reverseGrid(model);
+        for (int i=0 ; i<length ; i++) {
+            double orthometric = orthometricHeights[srcOffset+i];
+            double east = eastings[srcOffset+i];
+            double north = northings[srcOffset+i];
+            findShift(east, north, shift, cache, model, grid, startTime != 0);
+            double etrsEast = east-shift[0];
+            double etrsNorth = north-shift[1];
+            int flag = geoidCache.getDatumFlag(GridModel.OSGM02, etrsEast, etrsNorth);
+            double height = flag == 0 ? Double.NaN 
+                    : orthometric + geoidCache.getGeoidHeight(GridModel.OSGM02, etrsEast, etrsNorth);
+            TransverseMercator.toLatitudeLongitude(etrsEast, etrsNorth, latLon, terms);
+            
+            latitudes[dstOffset+i] = latLon[0];
+            longitudes[dstOffset+i] = latLon[1];
+            heights[dstOffset+i] = height;
+            if (datumFlags != null)
+                datumFlags[dstOffset+i] = flag;
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, length, startTime);
+    }
+    
+    /**
+     * Converts a batch of points held in one interleaved array of
+     * easting,northing pairs, writing latitude,longitude pairs into the 
+     * caller's array. Nothing is allocated per point. The output array may be
+     * the input array with the same offset, to convert in place.
+     * @param eastNorth
+     * @param srcOffset array index of the first point's easting.
+     * @param latLon
+     * @param dstOffset array index the first point's latitude is written to.
+     * @param count number of points (not array elements) to convert.
+     */
+    public static void convertInterleaved(double[] eastNorth, int srcOffset,
+            double[] latLon, int dstOffset, int count) {
+        convertInterleaved(Ostn02LookupTable.getGridModel(), eastNorth, srcOffset, latLon, dstOffset, count);
+    }
+    
+    /**
+     * As <code>convertInterleaved(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertInterleaved(GridModel model, double[] eastNorth, int srcOffset, double[] latLon,
+            int dstOffset, int count) {
+        checkRange(eastNorth, srcOffset, 2*count);
+        checkRange(latLon, dstOffset, 2*count);
         
-        double n = (a-b)/(a+b);
-        double latPrime = (north-n0)/(a*f0) +lat0;
-        double M;
+        long startTime = Ostn02Metrics.startTime();
+        double[] result = new double[2];
+        double[] shift = new double[2];
+        ShiftCellCache cache = new ShiftCellCache();
+        ReverseShiftGrid grid = reverseGrid(model);
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        for (int i=0 ; i<2*count ; i+=2) {
+            convert(eastNorth[srcOffset+i], eastNorth[srcOffset+i+1], result, shift, terms, cache, model, grid, startTime != 0);
+            latLon[dstOffset+i] = result[0];
+            latLon[dstOffset+i+1] = result[1];
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, count, startTime);
+    }
+    
+    /**
+     * Converts a batch of points held off the heap, or anywhere else a
+     * <code>ByteBuffer</code> can see, as separate easting and northing
+     * columns of doubles, writing latitude and longitude columns. Values are
+     * read and written with absolute gets and puts in each buffer's byte
+     * order, so the buffers' positions don't change and nothing is copied.
+     * Records may be wider than a double: <code>srcStride</code> and
+     * <code>dstStride</code> are the bytes from one point's value to the
+     * next. The output buffers may be the input buffers, to convert in place.
+     * On Java versions with <code>java.lang.foreign</code>, pass
+     * <code>MemorySegment.asByteBuffer()</code>.
+     * @param eastings
+     * @param northings
+     * @param srcOffset byte index of the first point's value in each input
+     * buffer.
+     * @param srcStride bytes from one input value to the next, at least 8.
+     * @param latitudes
+     * @param longitudes
+     * @param dstOffset byte index the first point's results are written to
+     * in each output buffer.
+     * @param dstStride bytes from one output value to the next, at least 8.
+     * @param count number of points to convert.
+     */
+    public static void convert(ByteBuffer eastings, ByteBuffer northings, int srcOffset, int srcStride,
+            ByteBuffer latitudes, ByteBuffer longitudes, int dstOffset, int dstStride, int count) {
+        convert(Ostn02LookupTable.getGridModel(), eastings, northings, srcOffset, srcStride, latitudes,
+                longitudes, dstOffset, dstStride, count);
+    }
+    
+    /**
+     * As <code>convert(ByteBuffer, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convert(GridModel model, ByteBuffer eastings, ByteBuffer northings, int srcOffset,
+            int srcStride, ByteBuffer latitudes, ByteBuffer longitudes, int dstOffset, int dstStride,
+            int count) {
+        checkRange(eastings, srcOffset, srcStride, 8, count);
+        checkRange(northings, srcOffset, srcStride, 8, count);
+        checkRange(latitudes, dstOffset, dstStride, 8, count);
+        checkRange(longitudes, dstOffset, dstStride, 8, count);
+        
+        long startTime = Ostn02Metrics.startTime();
+        double[] latLon = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        ShiftCellCache cache = new ShiftCellCache();
+        ReverseShiftGrid grid = reverseGrid(model);
+        for (int i=0 ; i<count ; i++) {
+            int src = srcOffset + i*srcStride;
+            int dst = dstOffset + i*dstStride;
+            convert(eastings.getDouble(src), northings.getDouble(src), latLon, shift, terms, cache, model, grid, startTime != 0);
+            latitudes.putDouble(dst, latLon[0]);
+            longitudes.putDouble(dst, latLon[1]);
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, count, startTime);
+    }
+    
+    /**
+     * As <code>convert(ByteBuffer, ...)</code>, for records holding an
+     * easting followed immediately by its northing, writing a latitude
+     * followed by its longitude. With a stride of 16 that's the layout of
+     * <code>convertInterleaved</code>'s arrays; a wider stride skips other
+     * fields in each record. The output buffer may be the input buffer with
+     * the same offset and stride, to convert in place.
+     * @param eastNorth
+     * @param srcOffset byte index of the first point's easting.
+     * @param srcStride bytes from one point's easting to the next, at least
+     * 16.
+     * @param latLon
+     * @param dstOffset byte index the first point's latitude is written to.
+     * @param dstStride bytes from one point's latitude to the next, at least
+     * 16.
+     * @param count number of points to convert.
+     */
+    public static void convertInterleaved(ByteBuffer eastNorth, int srcOffset, int srcStride,
+            ByteBuffer latLon, int dstOffset, int dstStride, int count) {
+        convertInterleaved(Ostn02LookupTable.getGridModel(), eastNorth, srcOffset, srcStride, latLon,
+                dstOffset, dstStride, count);
+    }
+    
+    /**
+     * As <code>convertInterleaved(ByteBuffer, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertInterleaved(GridModel model, ByteBuffer eastNorth, int srcOffset, int srcStride,
+            ByteBuffer latLon, int dstOffset, int dstStride, int count) {
+        checkRange(eastNorth, srcOffset, srcStride, 16, count);
+        checkRange(latLon, dstOffset, dstStride, 16, count);
         
-        for (int i=0 ; i<5 ; i++) {
-            double ma = (1 + n + (5.0/4.0)*sq(n) + (5.0/4.0)*cube(n)) * (latPrime-lat0);
-            double mb = (3*n + 3*sq(n) + (21.0/8.0)*cube(n)) * Math.sin(latPrime-lat0) * Math.cos(latPrime+lat0);
-            double mc = ((15.0/8.0)*sq(n) + (15.0/8.0)*cube(n)) * Math.sin(2*(latPrime-lat0)) * Math.cos(2*(latPrime+lat0));
-            double md = (35.0/24.0)*cube(n) * Math.sin(3*(latPrime-lat0)) * Math.cos(3*(latPrime+lat0));
-            M = b*f0*(ma-mb+mc-md);
-            latPrime = (north-n0-M)/(a*f0) + latPrime;
+        long startTime = Ostn02Metrics.startTime();
+        double[] result = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        ShiftCellCache cache = new ShiftCellCache();
+        ReverseShiftGrid grid = reverseGrid(model);
+        for (int i=0 ; i<count ; i++) {
+            int src = srcOffset + i*srcStride;
+            int dst = dstOffset + i*dstStride;
+            convert(eastNorth.getDouble(src), eastNorth.getDouble(src+8), result, shift, terms, cache, model, grid, startTime != 0);
+            latLon.putDouble(dst, result[0]);
+            latLon.putDouble(dst+8, result[1]);
         }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, count, startTime);
+    }
+    
+    /**
+     * Converts every pixel centre of a regular easting/northing raster, on
+     * the common fork-join pool. See
+     * <code>convertRaster(..., ForkJoinPool)</code>.
+     */
+    public static void convertRaster(double originEasting, double originNorthing,
+            double eastingStep, double northingStep, int width, int height,
+            double[] latitudes, double[] longitudes) {
+        convertRaster(originEasting, originNorthing, eastingStep, northingStep, width, height,
+                latitudes, longitudes, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Converts every pixel centre of a regular easting/northing raster, much
+     * faster than converting each with <code>convert</code>: the shift cell
+     * corners are fetched once per run of pixels in the same cell, each row
+     * is projected a block at a time by <code>VectorisedProjection</code>,
+     * and rows are spread across <code>pool</code>. Once the shift is
+     * removed a row's northings are no longer equal, so the projection
+     * terms can't simply be reused along it; results agree with
+     * <code>convertVectorised</code> exactly, and with <code>convert</code>
+     * to well under a millimetre.
+     * @param originEasting easting of the centre of the first pixel.
+     * @param originNorthing northing of the centre of the first pixel.
+     * @param eastingStep metres from one column to the next.
+     * @param northingStep metres from one row to the next; negative for
+     * rasters stored north-up.
+     * @param width pixels per row.
+     * @param height rows.
+     * @param latitudes receives the latitude of the pixel at column c and
+     * row r at index <code>c+width*r</code>.
+     * @param longitudes
+     * @param pool pool to convert the rows on.
+     */
+    public static void convertRaster(double originEasting, double originNorthing,
+            double eastingStep, double northingStep, int width, int height,
+            double[] latitudes, double[] longitudes, ForkJoinPool pool) {
+        convertRaster(Ostn02LookupTable.getGridModel(), originEasting, originNorthing, eastingStep,
+                northingStep, width, height, latitudes, longitudes, pool);
+    }
+    
+    /**
+     * As <code>convertRaster(double, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertRaster(GridModel model, double originEasting, double originNorthing,
+            double eastingStep, double northingStep, int width, int height, double[] latitudes,
+            double[] longitudes, ForkJoinPool pool) {
+        long pixels = (long)width*height;
+        if (width < 0 || height < 0 || pixels > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Raster size " + width + "x" + height);
+        checkRange(latitudes, 0, (int)pixels);
+        checkRange(longitudes, 0, (int)pixels);
         
-        double sinLat = Math.sin(latPrime);
-        double secLat = 1/Math.cos(latPrime);
-        double tanLat = Math.tan(latPrime);
+        long startTime = Ostn02Metrics.startTime();
+        pool.invoke(new RasterTask(originEasting, originNorthing, eastingStep, northingStep, width,
+                latitudes, longitudes, 0, height, model, reverseGrid(model), startTime != 0));
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, pixels, startTime);
+    }
+    
+    /**
+     * Converts a batch of points like <code>convert</code>, but evaluates the
+     * projection with <code>VectorisedProjection</code>, which handles a block
+     * of points at a time using polynomial fits in place of the trigonometric
+     * series. Results agree with <code>convert</code> to well under a
+     * millimetre. The input arrays are not modified, even when converting to
+     * different output arrays.
+     * @param eastings
+     * @param northings
+     * @param srcOffset index of the first point in the input arrays.
+     * @param latitudes
+     * @param longitudes
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     */
+    public static void convertVectorised(double[] eastings, double[] northings, int srcOffset,
+            double[] latitudes, double[] longitudes, int dstOffset, int length) {
+        convertVectorised(Ostn02LookupTable.getGridModel(), eastings, northings, srcOffset, latitudes,
+                longitudes, dstOffset, length);
+    }
+    
+    /**
+     * As <code>convertVectorised(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertVectorised(GridModel model, double[] eastings, double[] northings,
+            int srcOffset, double[] latitudes, double[] longitudes, int dstOffset, int length) {
+        checkRange(eastings, srcOffset, length);
+        checkRange(northings, srcOffset, length);
+        checkRange(latitudes, dstOffset, length);
+        checkRange(longitudes, dstOffset, length);
         
-        double v = a*f0 * Math.pow(1-eSquared*sq(sinLat),-0.5);
-        double rho = a*f0*(1-eSquared)*Math.pow(1-eSquared*sq(sinLat),-1.5);
-        double etaSquared = v/rho-1;
+        // The shifted coordinates go in the output arrays, then are projected in place.
+        long startTime = Ostn02Metrics.startTime();
+        double[] shift = new double[2];
+        ShiftCellCache cache = new ShiftCellCache();
+        ReverseShiftGrid grid = reverseGrid(model);
+        for (int i=0 ; i<length ; i++) {
+            double east = eastings[srcOffset+i];
+            double north = northings[srcOffset+i];
+            findShift(east, north, shift, cache, model, grid, startTime != 0);
+            latitudes[dstOffset+i] = east-shift[0];
+            longitudes[dstOffset+i] = north-shift[1];
+        }
+        VectorisedProjection.fromTransverseMercator(latitudes, longitudes, dstOffset,
+                latitudes, longitudes, dstOffset, length);
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, length, startTime);
+    }
+    
+    /**
+     * Converts a batch of points like <code>convert</code>, giving identical
+     * results, but finds the shifts in Z-order of the points' grid cells
+     * rather than in array order. For large batches in no particular spatial
+     * order this reads the table a region at a time instead of jumping about
+     * all 7MB of it, at the cost of a radix sort and about 16 bytes of
+     * working space per point. That only pays where the table doesn't fit in
+     * the CPU's last level cache alongside the batch; measure before using
+     * it. The output arrays may be the same as the input arrays with the
+     * same offset, to convert in place.
+     * @param eastings
+     * @param northings
+     * @param srcOffset index of the first point in the input arrays.
+     * @param latitudes
+     * @param longitudes
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     */
+    public static void convertZOrdered(double[] eastings, double[] northings, int srcOffset,
+            double[] latitudes, double[] longitudes, int dstOffset, int length) {
+        convertZOrdered(Ostn02LookupTable.getGridModel(), eastings, northings, srcOffset, latitudes,
+                longitudes, dstOffset, length);
+    }
+    
+    /**
+     * As <code>convertZOrdered(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertZOrdered(GridModel model, double[] eastings, double[] northings, int srcOffset,
+            double[] latitudes, double[] longitudes, int dstOffset, int length) {
+        checkRange(eastings, srcOffset, length);
+        checkRange(northings, srcOffset, length);
+        checkRange(latitudes, dstOffset, length);
+        checkRange(longitudes, dstOffset, length);
         
-        double VII = tanLat / (2*rho*v);
-        double VIII = tanLat / (24*rho*cube(v)) * (5 + 3*sq(tanLat) + etaSquared - 9*sq(tanLat)*etaSquared);
-        double IX = tanLat / (720*rho*five(v)) * (61 + 90*sq(tanLat) + 45*four(tanLat));
-        double X = secLat / v;
-        double XI = secLat / (6*cube(v)) * (v/rho + 2*sq(tanLat));
-        double XII = secLat / (120*five(v)) * (5 + 28*sq(tanLat) + 24*four(tanLat));
-        double XIIA = secLat / (5040*seven(v)) * (61 + 662*sq(tanLat) + 1320*four(tanLat) + 720*six(tanLat));
+        // The shifted coordinates go in the output arrays in Z-order, then
+        // are projected in place in array order.
+        long startTime = Ostn02Metrics.startTime();
+        int[] order = ZOrder.sort(model, eastings, northings, srcOffset, length);
+        double[] shift = new double[2];
+        ShiftCellCache cache = new ShiftCellCache();
+        ReverseShiftGrid grid = reverseGrid(model);
+        for (int k=0 ; k<length ; k++) {
+            int i = order[k];
+            double east = eastings[srcOffset+i];
+            double north = northings[srcOffset+i];
+            findShift(east, north, shift, cache, model, grid, startTime != 0);
+            latitudes[dstOffset+i] = east-shift[0];
+            longitudes[dstOffset+i] = north-shift[1];
+        }
         
-        double lat = latPrime - VII*sq(east-e0) + VIII*four(east-e0) - IX*six(east-e0);
-        double lon = lon0 + X*(east-e0) - XI*cube(east-e0) + XII*five(east-e0) - XIIA*seven(east-e0);
+        double[] latLon = new double[2];
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        for (int i=dstOffset ; i<dstOffset+length ; i++) {
+            TransverseMercator.toLatitudeLongitude(latitudes[i], longitudes[i], latLon, terms);
+            latitudes[i] = latLon[0];
+            longitudes[i] = latLon[1];
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, length, startTime);
+    }
+    
+    /**
+     * Converts one point like <code>convert</code>, but projects it with
+     * cubic fits to the series over bands of northing rather than the series
+     * itself, so it needs no trigonometry or iteration. The shift is found as
+     * usual. Over Great Britain the result is within 0.01mm of
+     * <code>convert</code>'s, the accuracy the series itself iterates to;
+     * the fits are checked when first used.
+     * @param east
+     * @param north
+     * @param sink
+     */
+    public static void convertApproximate(double east, double north, CoordinateSink sink) {
+        convertApproximate(Ostn02LookupTable.getGridModel(), east, north, sink);
+    }
+    
+    /**
+     * As <code>convertApproximate(double, ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertApproximate(GridModel model, double east, double north, CoordinateSink sink) {
+        long startTime = Ostn02Metrics.startTime();
+        Scratch s = scratch.get();
+        convertApproximate(east, north, s.latLon, s.shift, s.terms, s.cache, model, reverseGrid(model), startTime != 0);
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, 1, startTime);
+        sink.accept(s.latLon[0], s.latLon[1]);
+    }
+    
+    /**
+     * Converts a batch of points as <code>convertApproximate</code> does one.
+     * The output arrays may be the same as the input arrays, to convert in
+     * place.
+     * @param eastings
+     * @param northings
+     * @param srcOffset index of the first point in the input arrays.
+     * @param latitudes
+     * @param longitudes
+     * @param dstOffset index the first result is written to.
+     * @param length number of points to convert.
+     */
+    public static void convertApproximate(double[] eastings, double[] northings, int srcOffset,
+            double[] latitudes, double[] longitudes, int dstOffset, int length) {
+        convertApproximate(Ostn02LookupTable.getGridModel(), eastings, northings, srcOffset, latitudes,
+                longitudes, dstOffset, length);
+    }
+    
+    /**
+     * As <code>convertApproximate(double[], ...)</code>, converting with
+     * <code>model</code> rather than the current grid model.
+     * @param model
+     */
+    public static void convertApproximate(GridModel model, double[] eastings, double[] northings,
+            int srcOffset, double[] latitudes, double[] longitudes, int dstOffset, int length) {
+        checkRange(eastings, srcOffset, length);
+        checkRange(northings, srcOffset, length);
+        checkRange(latitudes, dstOffset, length);
+        checkRange(longitudes, dstOffset, length);
         
-        return produceOutput(180/Math.PI * lat,180/Math.PI * lon);
+        long startTime = Ostn02Metrics.startTime();
+        double[] latLon = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        ShiftCellCache cache = new ShiftCellCache();
+        ReverseShiftGrid grid = reverseGrid(model);
+        for (int i=0 ; i<length ; i++) {
+            convertApproximate(eastings[srcOffset+i], northings[srcOffset+i], latLon, shift, terms, cache, model, grid, startTime != 0);
+            latitudes[dstOffset+i] = latLon[0];
+            longitudes[dstOffset+i] = latLon[1];
+        }
+        Ostn02Metrics.converted(Ostn02Metrics.Direction.TO_ETRS89, length, startTime);
     }
     
-    private static double sq(double a) {
-        return a*a;
+    private static void convert(double east, double north, double[] latLon, double[] shift,
+            double[] terms, ShiftCellCache cache, GridModel model, ReverseShiftGrid grid, boolean metrics) {
+        findShift(east, north, shift, cache, model, grid, metrics);
+        TransverseMercator.toLatitudeLongitude(east-shift[0], north-shift[1], latLon, terms);
     }
-    private static double cube(double a) {
-        return a*a*a;
+    
+    private static void convert(double east, double north, Scratch s, GridModel model, boolean metrics) {
+        ConversionCache results = resultCache;
+        if (results == null) {
+            convert(east, north, s.latLon, s.shift, s.terms, s.cache, model, reverseGrid(model), metrics);
+        } else if (!results.get(model, east, north, s.latLon)) {
+            convert(results.quantise(east), results.quantise(north), s.latLon, s.shift, s.terms, s.cache,
+                    model, reverseGrid(model), metrics);
+            results.put(model, east, north, s.latLon);
+        }
+    }
+    
+    private static void convertApproximate(double east, double north, double[] latLon, double[] shift,
+            double[] terms, ShiftCellCache cache, GridModel model, ReverseShiftGrid grid, boolean metrics) {
+        findShift(east, north, shift, cache, model, grid, metrics);
+        PiecewiseProjection.toLatitudeLongitude(east-shift[0], north-shift[1], latLon, terms);
+    }
+    
+    /**
+     * @return the reverse grid set with
+     * <code>Ostn02LookupTable.setReverseGrid</code>, if it was built from
+     * <code>model</code>; otherwise null.
+     */
+    private static ReverseShiftGrid reverseGrid(GridModel model) {
+        ReverseShiftGrid grid = Ostn02LookupTable.getReverseGrid();
+        return grid != null && grid.getModel() == model ? grid : null;
     }
-    private static double four(double a) {
-        return sq(sq(a));
+    
+    private static void findShift(double east, double north, double[] shift, 
+            ShiftCellCache cache, GridModel model, ReverseShiftGrid grid, boolean metrics) {
+        long startTime = 0;
+        if (metrics) {
+            Ostn02Metrics.lookedUp(Ostn02Metrics.Direction.TO_ETRS89, model, east, north);
+            startTime = System.nanoTime();
+        }
+        if (grid != null)
+            grid.getShiftTo(east, north, shift);
+        else if (Ostn02LookupTable.getPrecision() == Ostn02LookupTable.Precision.DOUBLE)
+            cache.getShiftTo(model, east, north, SHIFT_TOLERANCE, shift);
+        else
+            cache.getShift(model, east, north, shift);
+        if (metrics)
+            Ostn02Metrics.inverseShift(System.nanoTime()-startTime);
     }
-    private static double five(double a) {
-        return four(a)*a;
+    
+    private static void checkRange(double[] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > array.length - length)
+            throw new ArrayIndexOutOfBoundsException("Range " + offset + "+" + length 
+                    + " outside array of length " + array.length);
     }
-    private static double six(double a) {
-        return sq(cube(a));
+    
+    /**
+     * Checks a buffer holds <code>count</code> records of <code>width</code>
+     * bytes, <code>stride</code> bytes apart, from <code>offset</code>.
+     */
+    private static void checkRange(ByteBuffer buffer, int offset, int stride, int width, int count) {
+        if (stride < width)
+            throw new IllegalArgumentException("Stride " + stride + " less than " + width + " bytes");
+        if (offset < 0 || count < 0 
+                || (count > 0 && offset + (long)(count-1)*stride + width > buffer.limit()))
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + count + "*" + stride 
+                    + " outside buffer of limit " + buffer.limit());
     }
-    private static double seven(double a) {
-        return sq(cube(a))*a;
+    
+    protected abstract E produceOutput(double latitude,double longitude);
+    
+    /**
+     * Converts a range of raster rows, splitting it among the pool until
+     * each task has a few thousand pixels.
+     */
+    private static class RasterTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final double originEasting;
+        private final double originNorthing;
+        private final double eastingStep;
+        private final double northingStep;
+        private final int width;
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final int fromRow;
+        private final int toRow;
+        private final GridModel model;
+        private final ReverseShiftGrid grid;
+        private final boolean metrics;
+        
+        RasterTask(double originEasting, double originNorthing, double eastingStep, double northingStep,
+                int width, double[] latitudes, double[] longitudes, int fromRow, int toRow,
+                GridModel model, ReverseShiftGrid grid, boolean metrics) {
+            this.originEasting = originEasting;
+            this.originNorthing = originNorthing;
+            this.eastingStep = eastingStep;
+            this.northingStep = northingStep;
+            this.width = width;
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.model = model;
+            this.grid = grid;
+            this.metrics = metrics;
+        }
+        
+        @Override
+        protected void compute() {
+            if (toRow-fromRow > 1 && (long)(toRow-fromRow)*width > RASTER_PIXELS_PER_TASK) {
+                int middle = (fromRow+toRow) >>> 1;
+                invokeAll(new RasterTask(originEasting, originNorthing, eastingStep, northingStep, width,
+                                latitudes, longitudes, fromRow, middle, model, grid, metrics),
+                        new RasterTask(originEasting, originNorthing, eastingStep, northingStep, width,
+                                latitudes, longitudes, middle, toRow, model, grid, metrics));
+                return;
+            }
+            
+            // The shifted coordinates go in the output arrays, then are projected in place.
+            double[] shift = new double[2];
+            ShiftCellCache cache = new ShiftCellCache();
+            for (int row=fromRow ; row<toRow ; row++) {
+                double north = originNorthing + row*northingStep;
+                for (int column=0, i=width*row ; column<width ; column++, i++) {
+                    double east = originEasting + column*eastingStep;
+                    findShift(east, north, shift, cache, model, grid, metrics);
+                    latitudes[i] = east-shift[0];
+                    longitudes[i] = north-shift[1];
+                }
+            }
+            VectorisedProjection.fromTransverseMercator(latitudes, longitudes, width*fromRow,
+                    latitudes, longitudes, width*fromRow, width*(toRow-fromRow));
+        }
     }
     
-    abstract E produceOutput(double latitude,double longitude);
+    private static class Scratch {
+        final double[] latLon = new double[2];
+        final double[] shift = new double[2];
+        final double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        final ShiftCellCache cache = new ShiftCellCache();
+    }
     
 }
@@ -1,12 +1,48 @@
 package com.mjt.geo.ostn02;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Shift lookup table. The entire table loads into memory on the first query.
- * The data is stored as integers in the resource file ostn02.bin; so stored it
- * takes up 7 MB so it's not too memory-intensive.
+ * Shift lookup table. The entire table loads into memory on the first query,
+ * or when <code>preload</code> is called; if several threads make the first
+ * query at once, one loads the table and the others wait for it. If the table
+ * can't be loaded, queries throw <code>UncheckedIOException</code>. The data
+ * is stored as integers in the resource file ostn02.bin; so stored it takes
+ * up 7 MB so it's not too memory-intensive. If the resource ostn02.compact is
+ * present it's loaded in preference; it holds the same values in a much
+ * smaller file (see <code>CompactTableFormat</code>).
+ * 
+ * The OSGM02 geoid heights and vertical datum flags, for converting between
+ * ETRS89 ellipsoid heights and orthometric heights, are in a separate table on
+ * the same grid: osgm02.compact or osgm02.bin. Applications that only convert
+ * positions never load it; it loads on the first height query, or when
+ * <code>preloadGeoid</code> is called.
+ * 
+ * Shifts are interpolated in single precision by default, matching earlier
+ * versions exactly. Call <code>setPrecision(Precision.DOUBLE)</code>, or set
+ * the system property <code>ostn02.precision=double</code>, to have the
+ * converters interpolate in double precision instead.
+ * 
+ * Alternatively the table can be memory-mapped, keeping it off the heap and
+ * letting processes on the same machine share it through the page cache. Call
+ * <code>useMappedData</code>, or set the system property 
+ * <code>ostn02.mapped=true</code> to map the bundled table or 
+ * <code>ostn02.file=/path/to/ostn02.bin</code> to map a copy on disk.
+ * 
+ * Processes that only work in one region can read the table a 50km tile at
+ * a time, as lookups first need each tile, instead of loading it all: write
+ * a tiled copy with <code>writeTiledData</code>, then call
+ * <code>useTiledData</code> or set the system property
+ * <code>ostn02.tiles=/path/to/ostn02.tiles</code>, and optionally
+ * <code>ostn02.maxTiles</code> to limit the tiles held at once.
+ * 
+ * The shifts come from a <code>GridModel</code>, OSTN02 unless another, such
+ * as OSTN15, is set with <code>setGridModel</code>. Setting one is a single
+ * atomic swap: conversions already under way finish with the model they
+ * started with, and later ones use the new model, without any locking. The
+ * geoid table is OSGM02's whichever model is set.
  * 
  * Note that, according to the Ordnance Survey "Transformations and OSGM02 user 
  * guide":
@@ -24,14 +60,42 @@ import java.util.concurrent.atomic.AtomicReference;
  * @author Michael Tandy
  */
 public class Ostn02LookupTable {
-    private static final float SCALE_FACTOR = 10000;
+    static final float SCALE_FACTOR = 10000;
     private static final int MIN_EAST_KM = 0;
-    private static final int MAX_EAST_KM = 700;
+    static final int MAX_EAST_KM = 700;
     private static final int MIN_NORTH_KM = 0;
-    private static final int MAX_NORTH_KM = 1250;
+    static final int MAX_NORTH_KM = 1250;
     private static final int RECORD_COUNT = (MAX_EAST_KM-MIN_EAST_KM+1)*(MAX_NORTH_KM-MIN_NORTH_KM+1);
     
-    private static final AtomicReference<int[]> data = new AtomicReference<int[]>(null);
+    private static final String RESOURCE = "/ostn02.bin";
+    private static final String COMPACT_RESOURCE = "/ostn02.compact";
+    private static final String GEOID_RESOURCE = "/osgm02.bin";
+    private static final String GEOID_COMPACT_RESOURCE = "/osgm02.compact";
+    
+    private static final AtomicReference<GridModel> model = new AtomicReference<GridModel>(GridModel.OSTN02);
+    
+    private static volatile Precision precision = 
+            "double".equalsIgnoreCase(System.getProperty("ostn02.precision")) ? Precision.DOUBLE : Precision.FLOAT;
+    
+    private static volatile ReverseShiftGrid reverseGrid = null;
+    
+    private static volatile PrintStream noticeStream = System.out;
+    
+    /** Per-thread cache for <code>getShiftTo(double,double,double,double[])</code>. */
+    private static final ThreadLocal<ShiftCellCache> shiftToCache = new ThreadLocal<ShiftCellCache>() {
+        @Override
+        protected ShiftCellCache initialValue() {
+            return new ShiftCellCache(1);
+        }
+    };
+    
+    /** Per-thread cache for geoid height and datum flag lookups. */
+    private static final ThreadLocal<ShiftCellCache> geoidCache = new ThreadLocal<ShiftCellCache>() {
+        @Override
+        protected ShiftCellCache initialValue() {
+            return new ShiftCellCache(1);
+        }
+    };
     
     private Ostn02LookupTable() { }
     
@@ -43,34 +107,72 @@ public class Ostn02LookupTable {
      * @return 
      */
     public static Shift getShiftFrom(float easting, float northing) {
-        float e = easting/1000;
-        float n = northing/1000;
-        int north=(int)Math.ceil(n);
-        int south=(int)Math.floor(n);
-        int east=(int)Math.ceil(e);
-        int west=(int)Math.floor(e);
-        
-        Shift NW = getByKilometres(west,north);
-        Shift NE = getByKilometres(east,north);
-        Shift SW = getByKilometres(west,south);
-        Shift SE = getByKilometres(east,south);
-        
-        float c = north-n;
-        float d = n-south;
-        float f = east-e;
-        float g = e-west;
-        
-        float eastShift = (1-c)*(1-g)*NW.getEastShift() 
-                + (1-d)*(1-g)*SW.getEastShift() 
-                + (1-c)*(1-f)*NE.getEastShift() 
-                + (1-d)*(1-f)*SE.getEastShift();
-        
-        float northShift = (1-c)*(1-g)*NW.getNorthShift() 
-                + (1-d)*(1-g)*SW.getNorthShift() 
-                + (1-c)*(1-f)*NE.getNorthShift() 
-                + (1-d)*(1-f)*SE.getNorthShift();
-        
-        return new Shift(eastShift,northShift);
+        float[] shift = new float[2];
+        getShiftFrom(easting, northing, shift);
+        return new Shift(shift[0],shift[1]);
+    }
+    
+    /**
+     * Get shift from ETRS89 to OSGB36 without allocating a <code>Shift</code>.
+     * The east shift is written to <code>shift[0]</code> and the north shift
+     * to <code>shift[1]</code>; the result is identical to
+     * <code>getShiftFrom(easting,northing)</code>.
+     * @param easting
+     * @param northing
+     * @param shift array of at least two elements to receive the shift.
+     */
+    public static void getShiftFrom(float easting, float northing, float[] shift) {
+        getGridModel().interpolate(easting, northing, shift);
+    }
+    
+    /**
+     * Get shift from ETRS89 to OSGB36 in double precision. The coordinates
+     * aren't rounded to float, and the interpolation works directly on the
+     * table's scaled integers; with floats, northings near the top of the
+     * grid lose over a decimetre of resolution in the interpolation weights.
+     * @param easting
+     * @param northing
+     * @param shift array of at least two elements to receive the east and
+     * north shifts.
+     */
+    public static void getShiftFrom(double easting, double northing, double[] shift) {
+        getGridModel().interpolate(easting, northing, shift);
+    }
+    
+    /**
+     * Convert with a different grid model from now on. Conversions already
+     * under way finish with the model they started with.
+     * @param gridModel
+     * @return the model that was in use.
+     */
+    public static GridModel setGridModel(GridModel gridModel) {
+        if (gridModel == null)
+            throw new NullPointerException("gridModel");
+        return model.getAndSet(gridModel);
+    }
+    
+    /**
+     * @return the grid model conversions start with.
+     */
+    public static GridModel getGridModel() {
+        return model.get();
+    }
+    
+    /**
+     * Use a precomputed reverse grid for OSGB36 to ETRS89 conversions, or go
+     * back to inverting the forward shifts if <code>grid</code> is null. The
+     * grid is only used while the model it was built from is in use.
+     * @param grid
+     */
+    public static void setReverseGrid(ReverseShiftGrid grid) {
+        reverseGrid = grid;
+    }
+    
+    /**
+     * @return the reverse grid in use, or null if none.
+     */
+    public static ReverseShiftGrid getReverseGrid() {
+        return reverseGrid;
     }
     
     /**
@@ -82,55 +184,330 @@ public class Ostn02LookupTable {
      * @return 
      */
     public static Shift getShiftTo(final float easting, final float northing) {
+        float[] shift = new float[2];
+        getShiftTo(easting, northing, shift);
+        return new Shift(shift[0],shift[1]);
+    }
+    
+    /**
+     * Get shift from OSGB36 to ETRS89 without allocating a <code>Shift</code>.
+     * The east shift is written to <code>shift[0]</code> and the north shift
+     * to <code>shift[1]</code>; the result is identical to
+     * <code>getShiftTo(easting,northing)</code>.
+     * @param easting
+     * @param northing
+     * @param shift array of at least two elements to receive the shift.
+     */
+    public static void getShiftTo(final float easting, final float northing, float[] shift) {
+        GridModel gridModel = getGridModel();
         float iterEast = easting;
         float iterNorth = northing;
-        Shift s = new Shift(0,0);
+        shift[0] = 0;
+        shift[1] = 0;
         
         for (int i=0 ; i<3 ; i++) {
-            s = getShiftFrom(iterEast,iterNorth);
-            float shiftedEast = iterEast+s.getEastShift();
-            float shiftedNorth = iterNorth+s.getNorthShift();
+            gridModel.interpolate(iterEast,iterNorth,shift);
+            float shiftedEast = iterEast+shift[0];
+            float shiftedNorth = iterNorth+shift[1];
             iterEast += easting-shiftedEast;
             iterNorth += northing-shiftedNorth;
         }
-        
-        return s;
     }
     
-    private static Shift getByKilometres(int kmEast, int kmNorth) {
-        if (kmEast > MAX_EAST_KM || kmEast < MIN_EAST_KM || kmNorth > MAX_NORTH_KM || kmNorth < MIN_NORTH_KM)
-            return new Shift(0,0);
-        int index = 1+kmEast+(MAX_EAST_KM+1)*kmNorth;
-        return getByIndex(index);
+    /**
+     * Get the OSGM02 geoid height, the height of the geoid above the GRS80
+     * ellipsoid, by bilinear interpolation between the four corners of the
+     * 1km square. Subtract it from an ETRS89 ellipsoid height to get an
+     * orthometric height, or add it to go the other way.
+     * @param easting ETRS89 easting, before any OSTN02 shift.
+     * @param northing ETRS89 northing.
+     * @return geoid height in metres.
+     * @throws UncheckedIOException if the geoid table can't be loaded.
+     */
+    public static float getGeoidHeight(float easting, float northing) {
+        return (float)getGeoidHeight((double)easting, (double)northing);
+    }
+    
+    /**
+     * Get the OSGM02 geoid height in double precision, as the converters'
+     * height conversions do.
+     * @param easting ETRS89 easting, before any OSTN02 shift.
+     * @param northing ETRS89 northing.
+     * @return geoid height in metres.
+     * @throws UncheckedIOException if the geoid table can't be loaded.
+     */
+    public static double getGeoidHeight(double easting, double northing) {
+        return geoidCache.get().getGeoidHeight(GridModel.OSGM02, easting, northing);
+    }
+    
+    /**
+     * Get the OSGM02 vertical datum flag of the grid point nearest a
+     * position, which says which datum its orthometric heights are in:
+     * 1 Newlyn (ODN), 2 St Mary's, 3 Douglas02, 4 Stornoway, 5 St Kilda, 
+     * 6 Lerwick, 7 Newlyn (Orkney), 8 Fair Isle, 9 Flannan Isles, 
+     * 10 North Rona, 11 Sule Skerry, 12 Foula, 13 Malin Head, 14 Belfast,
+     * 15 offshore. Zero means the position is outside OSGM02's coverage and
+     * has no orthometric height.
+     * @param easting ETRS89 easting, before any OSTN02 shift.
+     * @param northing ETRS89 northing.
+     * @return the datum flag.
+     * @throws UncheckedIOException if the geoid table can't be loaded.
+     */
+    public static int getDatumFlag(float easting, float northing) {
+        return geoidCache.get().getDatumFlag(GridModel.OSGM02, easting, northing);
+    }
+    
+    /**
+     * Get shift from OSGB36 to ETRS89 in double precision, stopping once the
+     * ETRS89 position is found to within <code>tolerance</code> metres. See
+     * <code>ShiftCellCache.getShiftTo</code>, which this calls with a
+     * per-thread cache of one cell; converting many points through one larger
+     * cache is quicker.
+     * @param easting
+     * @param northing
+     * @param tolerance metres.
+     * @param shift array of at least two elements to receive the shift.
+     * @return the number of cells solved in.
+     */
+    public static int getShiftTo(double easting, double northing, double tolerance, double[] shift) {
+        return shiftToCache.get().getShiftTo(easting, northing, tolerance, shift);
+    }
+    
+    /**
+     * @param easting ETRS89 easting.
+     * @param northing
+     * @return whether the position is within the current grid model. Outside
+     * it there are no shifts, and lookups return zero.
+     */
+    public static boolean isOnGrid(double easting, double northing) {
+        return getGridModel().contains(easting, northing);
+    }
+    
+    /**
+     * @param precision how the converters interpolate shifts from now on.
+     */
+    public static void setPrecision(Precision precision) {
+        if (precision == null)
+            throw new NullPointerException("precision");
+        Ostn02LookupTable.precision = precision;
+    }
+    
+    public static Precision getPrecision() {
+        return precision;
+    }
+    
+    /**
+     * Memory-map the table bundled with this library instead of loading it
+     * onto the heap, and convert with it from now on. If the table is inside
+     * a jar, it's extracted first to a file in <code>java.io.tmpdir</code>
+     * named by its contents, which later processes reuse.
+     * @throws IOException if the table can't be mapped.
+     */
+    public static void useMappedData() throws IOException {
+        long startTime = System.nanoTime();
+        setGridModel(GridModel.ostn02("OSTN02", MappedShiftStorage.mapResource(RESOURCE, 2*RECORD_COUNT)));
+        Ostn02Metrics.tableLoaded(RESOURCE, false, System.nanoTime()-startTime);
+        printCopyrightNotice();
+    }
+    
+    /**
+     * Memory-map a copy of ostn02.bin on disk instead of loading the bundled
+     * table onto the heap, and convert with it from now on.
+     * @param file
+     * @throws IOException if the file can't be mapped or is the wrong size.
+     */
+    public static void useMappedData(File file) throws IOException {
+        long startTime = System.nanoTime();
+        setGridModel(GridModel.ostn02("OSTN02", MappedShiftStorage.map(file, 2*RECORD_COUNT)));
+        Ostn02Metrics.tableLoaded(file.getPath(), false, System.nanoTime()-startTime);
+        printCopyrightNotice();
+    }
+    
+    /**
+     * Read the table from a tiled file, made by <code>writeTiledData</code>,
+     * a tile at a time as lookups need them, instead of loading it all. Only
+     * the file's header and index are read now. Conversions use it from now
+     * on.
+     * @param file
+     * @param maxTiles most tiles to hold at once, each around 20KB, or zero
+     * for no limit. Beyond it, tiles that haven't been used lately are
+     * dropped, and read again if they're needed again.
+     * @throws IOException if the file can't be read or isn't a tiled table.
+     */
+    public static void useTiledData(File file, int maxTiles) throws IOException {
+        long startTime = System.nanoTime();
+        setGridModel(GridModel.ostn02("OSTN02", openTiledData(file, maxTiles)));
+        Ostn02Metrics.tableLoaded(file.getPath(), false, System.nanoTime()-startTime);
+        printCopyrightNotice();
+    }
+    
+    /**
+     * Write the current model's table in the tiled format read by
+     * <code>useTiledData</code>. Loads the table if it isn't already loaded.
+     * @param out
+     * @throws IOException if the table can't be written.
+     */
+    public static void writeTiledData(OutputStream out) throws IOException {
+        GridModel gridModel = getGridModel();
+        ShiftStorage backing = gridModel.getStorage();
+        int[] values = new int[2*gridModel.columns*gridModel.rows];
+        for (int i=0 ; i<values.length ; i++) {
+            values[i] = backing.get(i);
+        }
+        TiledShiftStorage.write(out, values, 2, gridModel.columns, 
+                TiledShiftStorage.DEFAULT_TILE_SIZE, gridModel.getScaleFactor());
+    }
+    
+    /**
+     * Load the current model's table now rather than on the first query, so
+     * a service can pay the cost during startup. Does nothing if the table is
+     * already loaded.
+     * @throws UncheckedIOException if the table can't be loaded.
+     */
+    public static void preload() {
+        getGridModel().preload();
+    }
+    
+    /**
+     * Load the geoid table now rather than on the first height query. Does
+     * nothing if it's already loaded.
+     * @throws UncheckedIOException if the geoid table can't be loaded.
+     */
+    public static void preloadGeoid() {
+        GridModel.OSGM02.preload();
+    }
+    
+    /**
+     * Load the table the system properties choose, or else the bundled one,
+     * reporting where it came from to <code>Ostn02Metrics</code>.
+     */
+    static ShiftStorage loadData() throws IOException {
+        printCopyrightNotice();
+        long startTime = System.nanoTime();
+        String source;
+        ShiftStorage storage;
+        String tiles = System.getProperty("ostn02.tiles");
+        String file = System.getProperty("ostn02.file");
+        if (tiles != null) {
+            source = tiles;
+            storage = openTiledData(new File(tiles), Integer.getInteger("ostn02.maxTiles", 0));
+        } else if (file != null) {
+            source = file;
+            storage = MappedShiftStorage.map(new File(file), 2*RECORD_COUNT);
+        } else if (Boolean.getBoolean("ostn02.mapped")) {
+            source = RESOURCE;
+            storage = MappedShiftStorage.mapResource(RESOURCE, 2*RECORD_COUNT);
+        } else {
+            InputStream compact = Ostn02LookupTable.class.getResourceAsStream(COMPACT_RESOURCE);
+            if (compact != null) {
+                source = COMPACT_RESOURCE;
+                try {
+                    storage = new HeapShiftStorage(CompactTableFormat.read(
+                            new BufferedInputStream(compact), 2, RECORD_COUNT, (int)SCALE_FACTOR));
+                } finally {
+                    compact.close();
+                }
+            } else {
+                InputStream resource = Ostn02LookupTable.class.getResourceAsStream(RESOURCE);
+                if (resource == null)
+                    throw new FileNotFoundException("Resource " + RESOURCE + " not found");
+                source = RESOURCE;
+                try {
+                    storage = new HeapShiftStorage(readRawData(resource, 2*RECORD_COUNT));
+                } finally {
+                    resource.close();
+                }
+            }
+        }
+        Ostn02Metrics.tableLoaded(source, false, System.nanoTime()-startTime);
+        return storage;
+    }
+    
+    private static TiledShiftStorage openTiledData(File file, int maxTiles) throws IOException {
+        return TiledShiftStorage.open(file, 2, MAX_EAST_KM-MIN_EAST_KM+1, MAX_NORTH_KM-MIN_NORTH_KM+1,
+                (int)SCALE_FACTOR, maxTiles);
     }
     
-    private static Shift getByIndex(int index) {
-        try {
-            int[] backing = data.get();
-            if (backing == null) {
-                backing = loadData();
-                data.set(backing);
+    /**
+     * Load osgm02.compact, or failing that osgm02.bin. Both hold two values
+     * per grid point, the geoid height scaled like the shifts and the datum
+     * flag, in the same order as ostn02.bin. Reports which was loaded to
+     * <code>Ostn02Metrics</code>.
+     */
+    static ShiftStorage loadGeoidData() throws IOException {
+        long startTime = System.nanoTime();
+        String source;
+        ShiftStorage storage;
+        InputStream compact = Ostn02LookupTable.class.getResourceAsStream(GEOID_COMPACT_RESOURCE);
+        if (compact != null) {
+            source = GEOID_COMPACT_RESOURCE;
+            try {
+                storage = new HeapShiftStorage(CompactTableFormat.read(
+                        new BufferedInputStream(compact), 2, RECORD_COUNT, (int)SCALE_FACTOR));
+            } finally {
+                compact.close();
+            }
+        } else {
+            InputStream resource = Ostn02LookupTable.class.getResourceAsStream(GEOID_RESOURCE);
+            if (resource == null)
+                throw new FileNotFoundException("Resource " + GEOID_RESOURCE + " not found");
+            source = GEOID_RESOURCE;
+            try {
+                storage = new HeapShiftStorage(readRawData(resource, 2*RECORD_COUNT));
+            } finally {
+                resource.close();
             }
-            int i = 2*(index-1);
-            float east = backing[i]/SCALE_FACTOR;
-            float north = backing[i+1]/SCALE_FACTOR;
-            return new Shift(east,north);
-        } catch (IOException e) {
-            // This should never happen.
-            return new Shift(0,0);
         }
+        Ostn02Metrics.tableLoaded(source, true, System.nanoTime()-startTime);
+        return storage;
     }
     
-    private static int[] loadData() throws IOException {
-        System.out.println("Ordnance Survey(r) OSTN02(tm) Enabled. OSTN02 data (c) Crown copyright 2002");
-        int[] rawData = new int[2*RECORD_COUNT];
-        DataInputStream is = new DataInputStream(new BufferedInputStream(Ostn02LookupTable.class.getResourceAsStream("/ostn02.bin")));
-        for (int i=0 ; i<rawData.length ; i++) {
-            rawData[i] = is.readInt();
+    /**
+     * Read big-endian ints in the ostn02.bin format, a block at a time.
+     */
+    static int[] readRawData(InputStream in, int length) throws IOException {
+        int[] rawData = new int[length];
+        byte[] buffer = new byte[64*1024];
+        DataInputStream is = new DataInputStream(in);
+        for (int i=0 ; i<length ; ) {
+            int count = Math.min(buffer.length/4, length-i);
+            is.readFully(buffer, 0, 4*count);
+            ByteBuffer.wrap(buffer, 0, 4*count).asIntBuffer().get(rawData, i, count);
+            i += count;
         }
         return rawData;
     }
     
+    /**
+     * @param stream where the copyright notice is printed when a table is
+     * loaded; standard output unless changed.
+     */
+    static void setNoticeStream(PrintStream stream) {
+        noticeStream = stream;
+    }
+    
+    static void printCopyrightNotice() {
+        noticeStream.println("Ordnance Survey(r) OSTN02(tm) Enabled. OSTN02 data (c) Crown copyright 2002");
+    }
+    
+    /**
+     * How the converters interpolate shifts.
+     */
+    public enum Precision {
+        /**
+         * Single precision, as <code>getShiftFrom(float,float)</code>. OSGB36
+         * to ETRS89 conversions subtract the forward shift at the OSGB36
+         * position, as earlier versions did.
+         */
+        FLOAT,
+        /**
+         * Double precision, as <code>getShiftFrom(double,double,double[])</code>.
+         * OSGB36 to ETRS89 conversions invert the forward shifts, as
+         * <code>getShiftTo(double,double,double,double[])</code>.
+         */
+        DOUBLE
+    }
+    
     public static class Shift {
         private final float eastShift;
         private final float northShift;
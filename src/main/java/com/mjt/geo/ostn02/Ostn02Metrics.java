@@ -0,0 +1,327 @@
+package com.mjt.geo.ostn02;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts conversions, their latency, and points that fall outside the OSTN02
+ * table (which otherwise convert silently with a zero shift), and records
+ * how long the tables took to load. Disabled by default; enable it with
+ * <code>setEnabled(true)</code>, or with the system property
+ * <code>ostn02.metrics=true</code>, which also registers the MBean. While
+ * disabled, each conversion call costs one extra read of a volatile flag and
+ * nothing per point. While enabled, each call reads the clock twice, and
+ * reverse conversions read it twice more per point to time the shift lookup;
+ * where reading the clock takes 40ns, that roughly doubles the cost of
+ * converting single points.
+ *
+ * Counts can be read here, through JMX once <code>registerMBean</code> has
+ * been called, or as they happen by adding a <code>MetricsListener</code>.
+ * Batch conversions count as one call of many points, and their latency is
+ * the time for the whole batch.
+ *
+ * @author Michael Tandy
+ */
+public final class Ostn02Metrics {
+
+    public enum Direction {
+        /** Latitude/longitude (ETRS89) to easting/northing (OSGB36). */
+        TO_OSGB36,
+        /** Easting/northing (OSGB36) to latitude/longitude (ETRS89). */
+        TO_ETRS89
+    }
+
+    public static final String MBEAN_NAME = "com.mjt.geo.ostn02:type=Metrics";
+
+    private static volatile boolean enabled = Boolean.getBoolean("ostn02.metrics");
+    private static final List<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+
+    private static final LongAdder[] conversions = newAdders();
+    private static final LongAdder[] points = newAdders();
+    private static final LongAdder[] outOfGrid = newAdders();
+    private static final LatencyHistogram[] conversionLatency = {
+        new LatencyHistogram(), new LatencyHistogram()
+    };
+    private static final LatencyHistogram inverseShiftLatency = new LatencyHistogram();
+    private static volatile long tableLoadNanos = -1;
+    private static volatile long geoidLoadNanos = -1;
+
+    static {
+        if (enabled) {
+            try {
+                registerMBean();
+            } catch (JMException e) {
+                // Still readable through this class and listeners.
+            }
+        }
+    }
+
+    private Ostn02Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled whether conversions are counted and listeners called.
+     * Table load times are recorded either way.
+     */
+    public static void setEnabled(boolean enabled) {
+        Ostn02Metrics.enabled = enabled;
+    }
+
+    public static void addListener(MetricsListener listener) {
+        if (listener == null)
+            throw new NullPointerException("listener");
+        listeners.add(listener);
+    }
+
+    public static void removeListener(MetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param direction
+     * @return conversion calls completed.
+     */
+    public static long getConversions(Direction direction) {
+        return conversions[direction.ordinal()].sum();
+    }
+
+    /**
+     * @param direction
+     * @return points converted, over all calls.
+     */
+    public static long getPoints(Direction direction) {
+        return points[direction.ordinal()].sum();
+    }
+
+    /**
+     * @param direction
+     * @return points looked up outside the table, which were given a zero
+     * shift.
+     */
+    public static long getOutOfGridPoints(Direction direction) {
+        return outOfGrid[direction.ordinal()].sum();
+    }
+
+    /**
+     * @param direction
+     * @return latency of conversion calls.
+     */
+    public static LatencyHistogram getConversionLatency(Direction direction) {
+        return conversionLatency[direction.ordinal()];
+    }
+
+    /**
+     * @return latency of finding each OSGB36 to ETRS89 shift, whether by
+     * inverting the forward shifts or from a reverse grid.
+     */
+    public static LatencyHistogram getInverseShiftLatency() {
+        return inverseShiftLatency;
+    }
+
+    /**
+     * @return milliseconds the OSTN02 table took to load or map, or -1 if
+     * it hasn't been.
+     */
+    public static double getTableLoadMillis() {
+        long nanos = tableLoadNanos;
+        return nanos < 0 ? -1 : nanos/1e6;
+    }
+
+    /**
+     * @return milliseconds the OSGM02 table took to load, or -1 if it hasn't
+     * been.
+     */
+    public static double getGeoidLoadMillis() {
+        long nanos = geoidLoadNanos;
+        return nanos < 0 ? -1 : nanos/1e6;
+    }
+
+    /**
+     * Zero the conversion counts and latencies. Load times are kept.
+     */
+    public static void reset() {
+        for (int i=0 ; i<conversions.length ; i++) {
+            conversions[i].reset();
+            points[i].reset();
+            outOfGrid[i].reset();
+            conversionLatency[i].reset();
+        }
+        inverseShiftLatency.reset();
+    }
+
+    /**
+     * Register <code>Ostn02MetricsMXBean</code> with the platform MBean
+     * server, under <code>MBEAN_NAME</code>, if it isn't already.
+     * @throws JMException if it can't be registered.
+     */
+    public static synchronized void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MBEAN_NAME);
+        if (!server.isRegistered(name))
+            server.registerMBean(new MBean(), name);
+    }
+
+    /**
+     * Called at the start of a conversion call.
+     * @return the time, or zero if metrics are disabled, in which case the
+     * rest of the call records nothing.
+     */
+    static long startTime() {
+        if (!enabled)
+            return 0;
+        long now = System.nanoTime();
+        return now == 0 ? 1 : now;
+    }
+
+    /**
+     * Called at the end of a conversion call with the value
+     * <code>startTime</code> returned.
+     */
+    static void converted(Direction direction, long pointCount, long startTime) {
+        if (startTime == 0)
+            return;
+        long nanos = System.nanoTime()-startTime;
+        conversions[direction.ordinal()].increment();
+        points[direction.ordinal()].add(pointCount);
+        conversionLatency[direction.ordinal()].record(nanos);
+        for (MetricsListener listener : listeners) {
+            // No single call converts more than an array holds.
+            listener.converted(direction, (int)pointCount, nanos);
+        }
+    }
+
+    /**
+     * Called, while metrics are enabled, with each position a shift is
+     * looked up at in <code>model</code>.
+     */
+    static void lookedUp(Direction direction, GridModel model, double easting, double northing) {
+        if (model.contains(easting, northing))
+            return;
+        outOfGrid[direction.ordinal()].increment();
+        for (MetricsListener listener : listeners) {
+            listener.outOfGrid(direction, easting, northing);
+        }
+    }
+
+    static void inverseShift(long nanos) {
+        inverseShiftLatency.record(nanos);
+    }
+
+    static void tableLoaded(String resource, boolean geoid, long nanos) {
+        if (geoid)
+            geoidLoadNanos = nanos;
+        else
+            tableLoadNanos = nanos;
+        if (!enabled)
+            return;
+        for (MetricsListener listener : listeners) {
+            listener.tableLoaded(resource, nanos);
+        }
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[Direction.values().length];
+        for (int i=0 ; i<adders.length ; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static class MBean implements Ostn02MetricsMXBean {
+
+        @Override
+        public boolean isEnabled() {
+            return Ostn02Metrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            Ostn02Metrics.setEnabled(enabled);
+        }
+
+        @Override
+        public long getConversionsToOsgb36() {
+            return getConversions(Direction.TO_OSGB36);
+        }
+
+        @Override
+        public long getConversionsToEtrs89() {
+            return getConversions(Direction.TO_ETRS89);
+        }
+
+        @Override
+        public long getPointsToOsgb36() {
+            return getPoints(Direction.TO_OSGB36);
+        }
+
+        @Override
+        public long getPointsToEtrs89() {
+            return getPoints(Direction.TO_ETRS89);
+        }
+
+        @Override
+        public long getOutOfGridPointsToOsgb36() {
+            return getOutOfGridPoints(Direction.TO_OSGB36);
+        }
+
+        @Override
+        public long getOutOfGridPointsToEtrs89() {
+            return getOutOfGridPoints(Direction.TO_ETRS89);
+        }
+
+        @Override
+        public double getConversionMeanMicrosToOsgb36() {
+            return getConversionLatency(Direction.TO_OSGB36).getMeanMicros();
+        }
+
+        @Override
+        public double getConversionP99MicrosToOsgb36() {
+            return getConversionLatency(Direction.TO_OSGB36).getPercentileMicros(0.99);
+        }
+
+        @Override
+        public double getConversionMeanMicrosToEtrs89() {
+            return getConversionLatency(Direction.TO_ETRS89).getMeanMicros();
+        }
+
+        @Override
+        public double getConversionP99MicrosToEtrs89() {
+            return getConversionLatency(Direction.TO_ETRS89).getPercentileMicros(0.99);
+        }
+
+        @Override
+        public double getInverseShiftMeanMicros() {
+            return inverseShiftLatency.getMeanMicros();
+        }
+
+        @Override
+        public double getInverseShiftP99Micros() {
+            return inverseShiftLatency.getPercentileMicros(0.99);
+        }
+
+        @Override
+        public double getTableLoadMillis() {
+            return Ostn02Metrics.getTableLoadMillis();
+        }
+
+        @Override
+        public double getGeoidLoadMillis() {
+            return Ostn02Metrics.getGeoidLoadMillis();
+        }
+
+        @Override
+        public void reset() {
+            Ostn02Metrics.reset();
+        }
+    }
+
+}
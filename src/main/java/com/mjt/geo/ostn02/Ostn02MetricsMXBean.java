@@ -0,0 +1,47 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * JMX view of <code>Ostn02Metrics</code>, registered with
+ * <code>Ostn02Metrics.registerMBean</code>. Latencies are in microseconds.
+ *
+ * @author Michael Tandy
+ */
+public interface Ostn02MetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getConversionsToOsgb36();
+
+    long getConversionsToEtrs89();
+
+    long getPointsToOsgb36();
+
+    long getPointsToEtrs89();
+
+    long getOutOfGridPointsToOsgb36();
+
+    long getOutOfGridPointsToEtrs89();
+
+    double getConversionMeanMicrosToOsgb36();
+
+    double getConversionP99MicrosToOsgb36();
+
+    double getConversionMeanMicrosToEtrs89();
+
+    double getConversionP99MicrosToEtrs89();
+
+    double getInverseShiftMeanMicros();
+
+    double getInverseShiftP99Micros();
+
+    /** @return -1 if the table hasn't been loaded. */
+    double getTableLoadMillis();
+
+    /** @return -1 if the geoid table hasn't been loaded. */
+    double getGeoidLoadMillis();
+
+    void reset();
+
+}
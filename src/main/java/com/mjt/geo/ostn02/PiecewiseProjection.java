@@ -0,0 +1,195 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * Single point transverse mercator projection without trigonometry. As
+ * <code>VectorisedProjection</code> notes, the forward series coefficients
+ * depend only on latitude and the inverse ones only on northing. Here each is
+ * fitted by a cubic over a narrow band - an eighth of a degree of latitude,
+ * or 10km of northing - so projecting a point costs a band lookup and a few
+ * dozen multiply-adds, with no sin, cos or iteration, and the coefficients
+ * for all bands take under 80KB.
+ *
+ * Every band's fit is checked when the class loads, against the series at
+ * points between the fitting nodes, and the worst error over the area the
+ * fits cover is kept; see <code>getMaxError</code>. For the inverse that's
+ * mostly the 0.01mm the series itself iterates to. Points outside that area
+ * (or NaN) use the series.
+ *
+ * @author Michael Tandy
+ */
+final class PiecewiseProjection {
+    /** Latitudes (degrees) covered by the forward fits. */
+    static final double MIN_LATITUDE = 48;
+    static final double MAX_LATITUDE = 62;
+    /** Degrees of longitude either side of the central meridian covered. */
+    static final double MAX_LONGITUDE_OFFSET = 10;
+    /** Northings (metres) covered by the inverse fits. */
+    static final double MIN_NORTHING = -150000;
+    static final double MAX_NORTHING = 1400000;
+    /** Metres of easting either side of the central meridian covered. */
+    static final double MAX_EASTING_OFFSET = 450000;
+
+    private static final double LON0_DEGREES = 180/Math.PI * TransverseMercator.LON0;
+    private static final int BANDS_PER_DEGREE = 8;
+    private static final double BAND_NORTHING = 10000;
+    private static final int FORWARD_BANDS = (int)((MAX_LATITUDE-MIN_LATITUDE)*BANDS_PER_DEGREE);
+    private static final int INVERSE_BANDS = (int)Math.ceil((MAX_NORTHING-MIN_NORTHING)/BAND_NORTHING);
+    private static final int DEGREE = 3;
+    private static final int COEFFICIENTS = DEGREE+1;
+    /** Points per band the fits are checked at. */
+    private static final int CHECKS = 16;
+    /**
+     * The largest radius of curvature of the ellipsoid, which turns an
+     * angle on it into an upper bound on the distance along the ground.
+     */
+    private static final double MAX_RADIUS = TransverseMercator.A/Math.sqrt(1-TransverseMercator.E_SQUARED);
+
+    /** Cubic coefficients per band, per term, constant first, in t on [-1,1]. */
+    private static final double[] FORWARD = new double[FORWARD_BANDS*TransverseMercator.FORWARD_TERMS*COEFFICIENTS];
+    private static final double[] INVERSE = new double[INVERSE_BANDS*TransverseMercator.INVERSE_TERMS*COEFFICIENTS];
+    private static final double MAX_FORWARD_ERROR;
+    private static final double MAX_INVERSE_ERROR;
+
+    static {
+        final double[] terms = new double[Math.max(TransverseMercator.FORWARD_TERMS, TransverseMercator.INVERSE_TERMS)];
+        for (int band=0 ; band<FORWARD_BANDS ; band++) {
+            final double middle = MIN_LATITUDE + (band+0.5)/BANDS_PER_DEGREE;
+            for (int k=0 ; k<TransverseMercator.FORWARD_TERMS ; k++) {
+                final int term = k;
+                double[] fit = VectorisedProjection.fit(DEGREE, new VectorisedProjection.Function() {
+                    public double at(double t) {
+                        TransverseMercator.forwardTerms(middle + t/(2*BANDS_PER_DEGREE), terms);
+                        return terms[term];
+                    }
+                });
+                System.arraycopy(fit, 0, FORWARD, (band*TransverseMercator.FORWARD_TERMS + k)*COEFFICIENTS, COEFFICIENTS);
+            }
+        }
+        for (int band=0 ; band<INVERSE_BANDS ; band++) {
+            final double middle = MIN_NORTHING + (band+0.5)*BAND_NORTHING;
+            for (int k=0 ; k<TransverseMercator.INVERSE_TERMS ; k++) {
+                final int term = k;
+                double[] fit = VectorisedProjection.fit(DEGREE, new VectorisedProjection.Function() {
+                    public double at(double t) {
+                        TransverseMercator.inverseTerms(middle + t*BAND_NORTHING/2, terms);
+                        return terms[term];
+                    }
+                });
+                System.arraycopy(fit, 0, INVERSE, (band*TransverseMercator.INVERSE_TERMS + k)*COEFFICIENTS, COEFFICIENTS);
+            }
+        }
+        MAX_FORWARD_ERROR = checkForward();
+        MAX_INVERSE_ERROR = checkInverse();
+    }
+
+    private PiecewiseProjection() { }
+
+    /**
+     * As <code>TransverseMercator.toEastingNorthing</code>.
+     * @param latitude degrees.
+     * @param longitude degrees.
+     * @param eastNorth receives the easting and northing.
+     * @param terms scratch space of at least <code>FORWARD_TERMS</code>
+     * elements.
+     */
+    static void toEastingNorthing(double latitude, double longitude, double[] eastNorth, double[] terms) {
+        if (!(latitude >= MIN_LATITUDE && latitude < MAX_LATITUDE
+                && Math.abs(longitude-LON0_DEGREES) <= MAX_LONGITUDE_OFFSET)) {
+            TransverseMercator.toEastingNorthing(latitude, longitude, eastNorth, terms);
+            return;
+        }
+        double x = (latitude-MIN_LATITUDE)*BANDS_PER_DEGREE;
+        int band = (int)x;
+        evaluate(FORWARD, band*TransverseMercator.FORWARD_TERMS, TransverseMercator.FORWARD_TERMS,
+                2*(x-band)-1, terms);
+        TransverseMercator.evaluateForward(terms, longitude, eastNorth);
+    }
+
+    /**
+     * As <code>TransverseMercator.toLatitudeLongitude</code>.
+     * @param east metres.
+     * @param north metres.
+     * @param latLon receives the latitude and longitude in degrees.
+     * @param terms scratch space of at least <code>INVERSE_TERMS</code>
+     * elements.
+     */
+    static void toLatitudeLongitude(double east, double north, double[] latLon, double[] terms) {
+        if (!(north >= MIN_NORTHING && north < MAX_NORTHING
+                && Math.abs(east-TransverseMercator.E0) <= MAX_EASTING_OFFSET)) {
+            TransverseMercator.toLatitudeLongitude(east, north, latLon, terms);
+            return;
+        }
+        double x = (north-MIN_NORTHING)/BAND_NORTHING;
+        int band = (int)x;
+        evaluate(INVERSE, band*TransverseMercator.INVERSE_TERMS, TransverseMercator.INVERSE_TERMS,
+                2*(x-band)-1, terms);
+        TransverseMercator.evaluateInverse(terms, east, latLon);
+    }
+
+    /**
+     * @return the largest distance, in metres, between a point projected
+     * here and by the series, in either direction, anywhere in the area the
+     * fits cover. For the forward projection that's a distance on the grid,
+     * and for the inverse one on the ground.
+     */
+    static double getMaxError() {
+        return Math.max(MAX_FORWARD_ERROR, MAX_INVERSE_ERROR);
+    }
+
+    private static void evaluate(double[] fits, int firstTerm, int count, double t, double[] terms) {
+        for (int k=0 ; k<count ; k++) {
+            int i = (firstTerm+k)*COEFFICIENTS;
+            terms[k] = fits[i] + t*(fits[i+1] + t*(fits[i+2] + t*fits[i+3]));
+        }
+    }
+
+    /**
+     * The series' terms are multiplied by powers of the longitude offset up
+     * to the sixth, so an error in each, times the largest such power, bounds
+     * its part of the error in the result.
+     */
+    private static double checkForward() {
+        double l = Math.PI/180.0 * MAX_LONGITUDE_OFFSET;
+        double[] exact = new double[TransverseMercator.FORWARD_TERMS];
+        double[] fitted = new double[TransverseMercator.FORWARD_TERMS];
+        double max = 0;
+        for (int band=0 ; band<FORWARD_BANDS ; band++) {
+            for (int j=0 ; j<CHECKS ; j++) {
+                double t = (2*j+1.0)/CHECKS - 1;
+                TransverseMercator.forwardTerms(MIN_LATITUDE + (band+(t+1)/2)/BANDS_PER_DEGREE, exact);
+                evaluate(FORWARD, band*TransverseMercator.FORWARD_TERMS, TransverseMercator.FORWARD_TERMS, t, fitted);
+                double north = Math.abs(fitted[0]-exact[0]) + Math.abs(fitted[1]-exact[1])*Math.pow(l, 2)
+                        + Math.abs(fitted[2]-exact[2])*Math.pow(l, 4) + Math.abs(fitted[3]-exact[3])*Math.pow(l, 6);
+                double east = Math.abs(fitted[4]-exact[4])*l + Math.abs(fitted[5]-exact[5])*Math.pow(l, 3)
+                        + Math.abs(fitted[6]-exact[6])*Math.pow(l, 5);
+                max = Math.max(max, Math.hypot(east, north));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * As <code>checkForward</code>, with powers of the easting offset up to
+     * the seventh, and the angles turned into distances.
+     */
+    private static double checkInverse() {
+        double e = MAX_EASTING_OFFSET;
+        double[] exact = new double[TransverseMercator.INVERSE_TERMS];
+        double[] fitted = new double[TransverseMercator.INVERSE_TERMS];
+        double max = 0;
+        for (int band=0 ; band<INVERSE_BANDS ; band++) {
+            for (int j=0 ; j<CHECKS ; j++) {
+                double t = (2*j+1.0)/CHECKS - 1;
+                TransverseMercator.inverseTerms(MIN_NORTHING + (band+(t+1)/2)*BAND_NORTHING, exact);
+                evaluate(INVERSE, band*TransverseMercator.INVERSE_TERMS, TransverseMercator.INVERSE_TERMS, t, fitted);
+                double lat = Math.abs(fitted[0]-exact[0]) + Math.abs(fitted[1]-exact[1])*Math.pow(e, 2)
+                        + Math.abs(fitted[2]-exact[2])*Math.pow(e, 4) + Math.abs(fitted[3]-exact[3])*Math.pow(e, 6);
+                double lon = Math.abs(fitted[4]-exact[4])*e + Math.abs(fitted[5]-exact[5])*Math.pow(e, 3)
+                        + Math.abs(fitted[6]-exact[6])*Math.pow(e, 5) + Math.abs(fitted[7]-exact[7])*Math.pow(e, 7);
+                max = Math.max(max, MAX_RADIUS*Math.hypot(lat, lon));
+            }
+        }
+        return max;
+    }
+
+}
@@ -0,0 +1,426 @@
+package com.mjt.geo.ostn02;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Converts files of coordinates too big to hold in memory. The input is read
+ * in chunks, each chunk is converted on a fork-join pool with the batch
+ * conversion methods, and the results are written out in input order. At
+ * most <code>maxChunksInFlight</code> chunks are held at once; when that many
+ * are queued, reading waits for the oldest to be written.
+ *
+ * Two formats are supported. CSV has one point per line, the two coordinates
+ * in the first two fields; any further fields are copied to the output
+ * unchanged. Binary has one point per 16 bytes, as two little-endian doubles.
+ * Coordinates are latitude,longitude in degrees or easting,northing in
+ * metres, depending on the direction. Points are converted exactly, as
+ * <code>convert</code>, unless <code>setVectorised</code> chooses the faster
+ * <code>convertVectorised</code>.
+ *
+ * It can be run from the command line with
+ * <code>java -jar ostn02.jar [options] input output</code>; run it with no
+ * arguments for the options.
+ *
+ * @author Michael Tandy
+ */
+public class PointFileConverter {
+
+    public enum Direction {
+        /** Latitude/longitude (ETRS89) to easting/northing (OSGB36). */
+        TO_OSGB36,
+        /** Easting/northing (OSGB36) to latitude/longitude (ETRS89). */
+        TO_ETRS89
+    }
+
+    public enum Format {
+        CSV,
+        /** Pairs of little-endian doubles. */
+        BINARY
+    }
+
+    private static final int BINARY_RECORD = 16;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final Direction direction;
+    private final Format format;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int chunkSize = 4*1024*1024;
+    private int maxChunksInFlight = 2*pool.getParallelism();
+    private boolean header = false;
+    private boolean vectorised = false;
+
+    public PointFileConverter(Direction direction, Format format) {
+        this.direction = direction;
+        this.format = format;
+    }
+
+    /**
+     * @param pool pool chunks are converted on; the common pool by default.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param chunkSize bytes read per chunk; 4 MB by default.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < BINARY_RECORD)
+            throw new IllegalArgumentException("Chunk size must be at least " + BINARY_RECORD);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param maxChunksInFlight chunks read but not yet written, which bounds
+     * memory use to about twice this many chunks. Twice the pool's
+     * parallelism by default.
+     */
+    public void setMaxChunksInFlight(int maxChunksInFlight) {
+        if (maxChunksInFlight < 1)
+            throw new IllegalArgumentException("Need at least one chunk in flight");
+        this.maxChunksInFlight = maxChunksInFlight;
+    }
+
+    /**
+     * @param header whether the first line of a CSV file is a header, to be
+     * copied to the output unchanged.
+     */
+    public void setHeader(boolean header) {
+        this.header = header;
+    }
+
+    /**
+     * @param vectorised whether to convert with <code>convertVectorised</code>,
+     * which agrees with <code>convert</code> to well under a millimetre,
+     * rather than <code>convert</code>. False by default.
+     */
+    public void setVectorised(boolean vectorised) {
+        this.vectorised = vectorised;
+    }
+
+    /**
+     * Convert everything from <code>in</code> to <code>out</code>. Neither
+     * channel is closed.
+     * @param in
+     * @param out
+     * @return number of points converted.
+     * @throws IOException on a read or write error, or if the input is
+     * malformed.
+     */
+    public long convert(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        Deque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+        long points = 0;
+        byte[] pending = new byte[0];
+        boolean first = true;
+        boolean eof = false;
+
+        while (!eof) {
+            ByteBuffer buffer = ByteBuffer.allocate(pending.length + chunkSize);
+            buffer.put(pending);
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            byte[] bytes = buffer.array();
+            int filled = buffer.position();
+            int start = 0;
+
+            if (first && header && format == Format.CSV) {
+                int lineEnd = indexOf(bytes, (byte)'\n', 0, filled);
+                if (lineEnd < 0 && !eof) {
+                    pending = Arrays.copyOf(bytes, filled);
+                    continue;
+                }
+                start = lineEnd < 0 ? filled : lineEnd+1;
+                write(out, ByteBuffer.wrap(bytes, 0, start));
+            }
+            first = false;
+
+            int end = eof ? filled : recordBoundary(bytes, start, filled);
+            if (eof && format == Format.BINARY && (end-start) % BINARY_RECORD != 0)
+                throw new IOException("Binary input ends part way through a record");
+            pending = Arrays.copyOfRange(bytes, end, filled);
+            if (end == start)
+                continue;
+
+            if (inFlight.size() >= maxChunksInFlight)
+                points += writeChunk(out, inFlight.removeFirst());
+            inFlight.addLast(pool.submit(new ChunkTask(bytes, start, end)));
+        }
+
+        while (!inFlight.isEmpty()) {
+            points += writeChunk(out, inFlight.removeFirst());
+        }
+        return points;
+    }
+
+    /**
+     * End of the last complete record in bytes[start, end).
+     */
+    private int recordBoundary(byte[] bytes, int start, int end) {
+        if (format == Format.BINARY)
+            return start + (end-start)/BINARY_RECORD*BINARY_RECORD;
+        for (int i=end-1 ; i>=start ; i--) {
+            if (bytes[i] == '\n')
+                return i+1;
+        }
+        return start;
+    }
+
+    private static int writeChunk(WritableByteChannel out, Future<Chunk> future) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for conversion");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException("Conversion failed", e.getCause());
+        }
+        write(out, chunk.output);
+        return chunk.points;
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int start, int end) {
+        for (int i=start ; i<end ; i++) {
+            if (bytes[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private void convert(double[] a, double[] b, int count) {
+        if (direction == Direction.TO_OSGB36) {
+            if (vectorised)
+                Etrs89ToOsgb36.convertVectorised(a, b, 0, a, b, 0, count);
+            else
+                Etrs89ToOsgb36.convert(a, b, 0, a, b, 0, count);
+        } else {
+            if (vectorised)
+                Osgb36ToEtrs89.convertVectorised(a, b, 0, a, b, 0, count);
+            else
+                Osgb36ToEtrs89.convert(a, b, 0, a, b, 0, count);
+        }
+    }
+
+    private static class Chunk {
+        final ByteBuffer output;
+        final int points;
+        Chunk(ByteBuffer output, int points) {
+            this.output = output;
+            this.points = points;
+        }
+    }
+
+    private class ChunkTask implements Callable<Chunk> {
+        private final byte[] bytes;
+        private final int start;
+        private final int end;
+
+        ChunkTask(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        public Chunk call() throws IOException {
+            return format == Format.BINARY ? convertBinary() : convertCsv();
+        }
+
+        private Chunk convertBinary() {
+            int count = (end-start)/BINARY_RECORD;
+            DoubleBuffer values = ByteBuffer.wrap(bytes, start, end-start)
+                    .slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            double[] a = new double[count];
+            double[] b = new double[count];
+            for (int i=0 ; i<count ; i++) {
+                a[i] = values.get(2*i);
+                b[i] = values.get(2*i+1);
+            }
+
+            convert(a, b, count);
+
+            ByteBuffer output = ByteBuffer.allocate(count*BINARY_RECORD).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i=0 ; i<count ; i++) {
+                output.putDouble(a[i]).putDouble(b[i]);
+            }
+            output.flip();
+            return new Chunk(output, count);
+        }
+
+        private Chunk convertCsv() throws IOException {
+            int lines = 0;
+            for (int i=start ; i<end ; i++) {
+                if (bytes[i] == '\n')
+                    lines++;
+            }
+            if (end > start && bytes[end-1] != '\n')
+                lines++;
+
+            // Points are numbered separately from lines, as blank lines have
+            // none. Each line's remaining bytes - any further fields and the
+            // line ending - are copied from restStart to restEnd.
+            double[] a = new double[lines];
+            double[] b = new double[lines];
+            boolean[] blank = new boolean[lines];
+            int[] restStart = new int[lines];
+            int[] restEnd = new int[lines];
+            int count = 0;
+            int lineStart = start;
+            for (int line=0 ; line<lines ; line++) {
+                int newline = indexOf(bytes, (byte)'\n', lineStart, end);
+                int lineEnd = newline < 0 ? end : newline+1;
+                int contentEnd = newline < 0 ? end : newline;
+                if (contentEnd > lineStart && bytes[contentEnd-1] == '\r')
+                    contentEnd--;
+
+                if (contentEnd == lineStart) {
+                    blank[line] = true;
+                    restStart[line] = lineStart;
+                    restEnd[line] = lineEnd;
+                } else {
+                    int firstComma = indexOf(bytes, (byte)',', lineStart, contentEnd);
+                    if (firstComma < 0)
+                        throw new IOException("Expected two fields in line: " + text(lineStart, contentEnd));
+                    int secondComma = indexOf(bytes, (byte)',', firstComma+1, contentEnd);
+                    int fieldEnd = secondComma < 0 ? contentEnd : secondComma;
+                    try {
+                        a[count] = Double.parseDouble(text(lineStart, firstComma));
+                        b[count] = Double.parseDouble(text(firstComma+1, fieldEnd));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Can't parse coordinates in line: " + text(lineStart, contentEnd));
+                    }
+                    count++;
+                    restStart[line] = fieldEnd;
+                    restEnd[line] = lineEnd;
+                }
+                lineStart = lineEnd;
+            }
+
+            convert(a, b, count);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(2*(end-start));
+            int point = 0;
+            for (int line=0 ; line<lines ; line++) {
+                if (!blank[line]) {
+                    byte[] formatted = (Double.toString(a[point]) + "," + Double.toString(b[point])).getBytes(ASCII);
+                    output.write(formatted, 0, formatted.length);
+                    point++;
+                }
+                output.write(bytes, restStart[line], restEnd[line]-restStart[line]);
+            }
+            return new Chunk(ByteBuffer.wrap(output.toByteArray()), count);
+        }
+
+        private String text(int from, int to) {
+            return new String(bytes, from, to-from, ASCII);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Direction direction = null;
+        Format format = Format.CSV;
+        boolean header = false;
+        boolean vectorised = false;
+        int threads = 0;
+        String input = null;
+        String output = null;
+
+        for (int i=0 ; i<args.length ; i++) {
+            String arg = args[i];
+            if (arg.equals("--to-osgb36")) {
+                direction = Direction.TO_OSGB36;
+            } else if (arg.equals("--to-etrs89")) {
+                direction = Direction.TO_ETRS89;
+            } else if (arg.equals("--csv")) {
+                format = Format.CSV;
+            } else if (arg.equals("--binary")) {
+                format = Format.BINARY;
+            } else if (arg.equals("--header")) {
+                header = true;
+            } else if (arg.equals("--vectorised")) {
+                vectorised = true;
+            } else if (arg.equals("--threads") && i+1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (input == null) {
+                input = arg;
+            } else if (output == null) {
+                output = arg;
+            } else {
+                direction = null;
+                break;
+            }
+        }
+
+        if (direction == null || input == null || output == null) {
+            System.err.println("Usage: java -jar ostn02.jar --to-osgb36|--to-etrs89 [--csv|--binary] [--header] [--vectorised] [--threads n] input output");
+            System.err.println("  --to-osgb36  convert latitude,longitude (ETRS89) to easting,northing (OSGB36)");
+            System.err.println("  --to-etrs89  convert easting,northing (OSGB36) to latitude,longitude (ETRS89)");
+            System.err.println("  --csv        one point per line, first two fields (default)");
+            System.err.println("  --binary     pairs of little-endian doubles");
+            System.err.println("  --header     copy the first CSV line unchanged");
+            System.err.println("  --vectorised faster approximate conversion, within a millimetre (default: exact)");
+            System.err.println("  --threads    conversion threads (default: one per processor)");
+            System.err.println("Use - for standard input or output.");
+            System.exit(2);
+            return;
+        }
+
+        PointFileConverter converter = new PointFileConverter(direction, format);
+        converter.setHeader(header);
+        converter.setVectorised(vectorised);
+        if (threads > 0) {
+            converter.setPool(new ForkJoinPool(threads));
+            converter.setMaxChunksInFlight(2*threads);
+        }
+
+        // Standard output may be the converted points.
+        Ostn02LookupTable.setNoticeStream(System.err);
+        Ostn02LookupTable.preload();
+        long startTime = System.nanoTime();
+        ReadableByteChannel in = input.equals("-") ? Channels.newChannel(System.in)
+                : FileChannel.open(Paths.get(input), StandardOpenOption.READ);
+        WritableByteChannel out = output.equals("-") ? Channels.newChannel(System.out)
+                : FileChannel.open(Paths.get(output), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        long points;
+        try {
+            points = converter.convert(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        double seconds = (System.nanoTime()-startTime)/1e9;
+        System.err.printf("Converted %d points in %.3f s (%.0f points/s)%n",
+                points, seconds, points/seconds);
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.mjt.geo.ostn02;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The OSGB36 to ETRS89 shifts, resampled onto the OSGB36 lattice, so a
+ * reverse lookup is a single bilinear interpolation rather than an inversion
+ * of the forward shifts. The two aren't exactly the same - the inverse of a
+ * bilinear surface isn't bilinear - so building a grid also measures the
+ * largest difference from the exact inverse, at the centre of every cell
+ * where interpolation strays furthest. Check <code>getMaxDiscrepancy</code>
+ * before accepting it. Cells within a kilometre of the table's edges aren't
+ * measured: beyond the edges the forward shifts are zero, so they fall from
+ * around 100m to nothing across one cell, and no grid follows that closely.
+ *
+ * To have <code>Osgb36ToEtrs89</code> use a grid, pass it to
+ * <code>Ostn02LookupTable.setReverseGrid</code>. It's used only for
+ * conversions with the grid model it was built from.
+ *
+ * @author Michael Tandy
+ */
+public class ReverseShiftGrid {
+    /** Metres; tolerance of the exact inverse the grid is sampled from. */
+    private static final double TOLERANCE = 0.00001;
+    /** Rows per task when building. */
+    private static final int ROWS_PER_TASK = 16;
+
+    private final GridModel model;
+    private final ShiftStorage values;
+    private final double maxDiscrepancy;
+
+    private ReverseShiftGrid(GridModel model, int[] values, double maxDiscrepancy) {
+        this.model = model;
+        this.values = new HeapShiftStorage(values);
+        this.maxDiscrepancy = maxDiscrepancy;
+    }
+
+    /**
+     * Build a grid for the current grid model on the common fork-join pool.
+     * Loads the forward table if it isn't already loaded.
+     * @return the grid.
+     */
+    public static ReverseShiftGrid build() {
+        return build(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool pool to build the grid on.
+     * @return the grid.
+     */
+    public static ReverseShiftGrid build(ForkJoinPool pool) {
+        return build(Ostn02LookupTable.getGridModel(), pool);
+    }
+
+    /**
+     * @param model grid model to build the grid for.
+     * @param pool pool to build the grid on.
+     * @return the grid.
+     */
+    public static ReverseShiftGrid build(GridModel model, ForkJoinPool pool) {
+        model.preload();
+        int[] values = new int[2*model.columns*model.rows];
+        pool.invoke(new RowTask(model, values, 0, model.rows, false));
+        double maxDiscrepancy = pool.invoke(new RowTask(model, values, 0, model.rows-1, true));
+        return new ReverseShiftGrid(model, values, maxDiscrepancy);
+    }
+
+    /**
+     * Get shift from OSGB36 to ETRS89: the ETRS89 position is the OSGB36
+     * position minus the shift. Points off the grid have no shift, as with
+     * the forward table.
+     * @param easting OSGB36 easting.
+     * @param northing OSGB36 northing.
+     * @param shift array of at least two elements to receive the shift.
+     */
+    public void getShiftTo(double easting, double northing, double[] shift) {
+        model.interpolate(values, easting, northing, shift);
+    }
+
+    /**
+     * @return the grid model this grid was built from.
+     */
+    public GridModel getModel() {
+        return model;
+    }
+
+    /**
+     * @return the largest distance, in metres, between this grid's shift and
+     * the exact inverse of the forward shifts, over the centres of all cells
+     * away from the table's edges.
+     */
+    public double getMaxDiscrepancy() {
+        return maxDiscrepancy;
+    }
+
+    /**
+     * Fills in, or measures, a range of rows, splitting it among the pool
+     * until each task has a few rows.
+     */
+    private static class RowTask extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+        private final GridModel model;
+        private final int[] values;
+        private final int fromRow;
+        private final int toRow;
+        private final boolean measure;
+
+        RowTask(GridModel model, int[] values, int fromRow, int toRow, boolean measure) {
+            this.model = model;
+            this.values = values;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.measure = measure;
+        }
+
+        @Override
+        protected Double compute() {
+            if (toRow-fromRow > ROWS_PER_TASK) {
+                int middle = (fromRow+toRow) >>> 1;
+                RowTask upper = new RowTask(model, values, middle, toRow, measure);
+                upper.fork();
+                double lower = new RowTask(model, values, fromRow, middle, measure).compute();
+                return Math.max(lower, upper.join());
+            }
+
+            ShiftCellCache cache = new ShiftCellCache();
+            double[] exact = new double[2];
+            if (!measure) {
+                for (int row=fromRow ; row<toRow ; row++) {
+                    for (int column=0 ; column<model.columns ; column++) {
+                        cache.getShiftTo(model, model.minEasting + model.spacing*column,
+                                model.minNorthing + model.spacing*row, TOLERANCE, exact);
+                        int i = 2*(column+model.columns*row);
+                        values[i] = (int)Math.round(exact[0]*model.scale);
+                        values[i+1] = (int)Math.round(exact[1]*model.scale);
+                    }
+                }
+                return 0.0;
+            }
+
+            HeapShiftStorage storage = new HeapShiftStorage(values);
+            double[] sampled = new double[2];
+            double max = 0;
+            for (int row=fromRow ; row<toRow ; row++) {
+                for (int column=0 ; column<model.columns-1 ; column++) {
+                    double east = model.minEasting + model.spacing*column + model.spacing/2;
+                    double north = model.minNorthing + model.spacing*row + model.spacing/2;
+                    cache.getShiftTo(model, east, north, TOLERANCE, exact);
+                    if (!inInterior(model, east-exact[0], north-exact[1]))
+                        continue;
+                    model.interpolate(storage, east, north, sampled);
+                    max = Math.max(max, Math.hypot(sampled[0]-exact[0], sampled[1]-exact[1]));
+                }
+            }
+            return max;
+        }
+    }
+
+    private static boolean inInterior(GridModel model, double east, double north) {
+        return east >= model.minEasting + model.spacing && east <= model.getMaxEasting() - model.spacing
+                && north >= model.minNorthing + model.spacing && north <= model.getMaxNorthing() - model.spacing;
+    }
+
+}
@@ -0,0 +1,403 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * Remembers the corner shifts of the last few grid cells looked up, so that
+ * runs of points in the same square - GPS tracks, buildings on one street -
+ * cost only the interpolation arithmetic rather than four index calculations
+ * and table reads. Results are identical to
+ * <code>Ostn02LookupTable.getShiftFrom</code> and <code>getShiftTo</code>, in
+ * either precision. Lookups use the current grid model (see
+ * <code>Ostn02LookupTable.setGridModel</code>), and the cache forgets its
+ * cells when that changes.
+ *
+ * A cache isn't thread safe; use one per thread, or one per batch. The batch
+ * conversion methods make their own unless given one.
+ *
+ * @author Michael Tandy
+ */
+public class ShiftCellCache {
+    private static final int DEFAULT_CELLS = 4;
+    private static final int EMPTY = -1;
+    /** Cells the inverse may visit before settling for its latest estimate. */
+    private static final int MAX_INVERSE_CELLS = 8;
+
+    /** The model the cells were read from. */
+    private GridModel model;
+    private int rowLength;
+    private int rows;
+    private double scale;
+    /** A cell's width in the table's scaled units. */
+    private double cell;
+    /** Cell index, west+rowLength*south, of each slot; or EMPTY. */
+    private final int[] keys;
+    /**
+     * Eight corner values per slot, in the order of getCellCorners. One
+     * extra slot, never keyed, holds cells off the edge of the table.
+     */
+    private final float[] corners;
+    /** The same as scaled integers, for double precision. */
+    private final int[] rawCorners;
+    private final float[] floatShift = new float[2];
+    private int mostRecent = 0;
+    private int nextReplaced = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long inverseLookups = 0;
+    private long inverseIterations = 0;
+    private double lastInverseShiftEast = 0;
+    private double lastInverseShiftNorth = 0;
+
+    public ShiftCellCache() {
+        this(DEFAULT_CELLS);
+    }
+
+    /**
+     * @param cells how many cells to remember.
+     */
+    public ShiftCellCache(int cells) {
+        if (cells < 1)
+            throw new IllegalArgumentException("Cache needs at least one cell");
+        keys = new int[cells];
+        corners = new float[8*(cells+1)];
+        rawCorners = new int[8*(cells+1)];
+        clear();
+    }
+
+    /**
+     * As <code>Ostn02LookupTable.getShiftFrom(easting, northing, shift)</code>.
+     * @param easting
+     * @param northing
+     * @param shift array of at least two elements to receive the shift.
+     */
+    public void getShiftFrom(float easting, float northing, float[] shift) {
+        getShiftFrom(Ostn02LookupTable.getGridModel(), easting, northing, shift);
+    }
+
+    void getShiftFrom(GridModel gridModel, float easting, float northing, float[] shift) {
+        bind(gridModel);
+        float e = (easting-gridModel.minEastingFloat)/gridModel.spacingFloat;
+        float n = (northing-gridModel.minNorthingFloat)/gridModel.spacingFloat;
+        int south=(int)Math.floor(n);
+        int north=south+1;
+        int west=(int)Math.floor(e);
+        int east=west+1;
+
+        // Cells off the edges don't have unique keys; they're rare, so go
+        // direct.
+        if (!keyed(west, south)) {
+            misses++;
+            gridModel.interpolate(easting, northing, shift);
+            return;
+        }
+
+        int base = 8*slotFor(west, south);
+        float c = north-n;
+        float d = n-south;
+        float f = east-e;
+        float g = e-west;
+
+        shift[0] = (1-c)*(1-g)*corners[base]
+                + (1-d)*(1-g)*corners[base+1]
+                + (1-c)*(1-f)*corners[base+2]
+                + (1-d)*(1-f)*corners[base+3];
+
+        shift[1] = (1-c)*(1-g)*corners[base+4]
+                + (1-d)*(1-g)*corners[base+5]
+                + (1-c)*(1-f)*corners[base+6]
+                + (1-d)*(1-f)*corners[base+7];
+    }
+
+    /**
+     * As <code>Ostn02LookupTable.getShiftFrom(easting, northing, shift)</code>
+     * in double precision.
+     * @param easting
+     * @param northing
+     * @param shift array of at least two elements to receive the shift.
+     */
+    public void getShiftFrom(double easting, double northing, double[] shift) {
+        getShiftFrom(Ostn02LookupTable.getGridModel(), easting, northing, shift);
+    }
+
+    void getShiftFrom(GridModel gridModel, double easting, double northing, double[] shift) {
+        bind(gridModel);
+        double e = (easting-gridModel.minEasting)/gridModel.spacing;
+        double n = (northing-gridModel.minNorthing)/gridModel.spacing;
+        int west = (int)Math.floor(e);
+        int south = (int)Math.floor(n);
+        if (!keyed(west, south)) {
+            misses++;
+            gridModel.interpolate(easting, northing, shift);
+            return;
+        }
+
+        int base = 8*slotFor(west, south);
+        double g = e-west;
+        double d = n-south;
+        double sw = (1-g)*(1-d);
+        double se = g*(1-d);
+        double nw = (1-g)*d;
+        double ne = g*d;
+
+        shift[0] = (sw*rawCorners[base+1] + se*rawCorners[base+3]
+                + nw*rawCorners[base] + ne*rawCorners[base+2]) / gridModel.scale;
+        shift[1] = (sw*rawCorners[base+5] + se*rawCorners[base+7]
+                + nw*rawCorners[base+4] + ne*rawCorners[base+6]) / gridModel.scale;
+    }
+
+    /**
+     * Geoid height at a position in a model of geoid heights and datum flags,
+     * such as <code>GridModel.OSGM02</code>, interpolated in double precision
+     * as <code>getShiftFrom</code> interpolates east shifts.
+     */
+    double getGeoidHeight(GridModel gridModel, double easting, double northing) {
+        bind(gridModel);
+        double e = (easting-gridModel.minEasting)/gridModel.spacing;
+        double n = (northing-gridModel.minNorthing)/gridModel.spacing;
+        int west = (int)Math.floor(e);
+        int south = (int)Math.floor(n);
+        int base = cellBase(west, south);
+        double g = e-west;
+        double d = n-south;
+        return ((1-g)*(1-d)*rawCorners[base+1] + g*(1-d)*rawCorners[base+3]
+                + (1-g)*d*rawCorners[base] + g*d*rawCorners[base+2]) / gridModel.scale;
+    }
+
+    /**
+     * Datum flag of the grid point nearest a position in a model of geoid
+     * heights and datum flags; zero off the grid.
+     */
+    int getDatumFlag(GridModel gridModel, double easting, double northing) {
+        bind(gridModel);
+        double e = (easting-gridModel.minEasting)/gridModel.spacing;
+        double n = (northing-gridModel.minNorthing)/gridModel.spacing;
+        int west = (int)Math.floor(e);
+        int south = (int)Math.floor(n);
+        int base = cellBase(west, south);
+        // Halves round up, as Math.round does. The flags are the second
+        // component: NW, SW, NE, SE.
+        boolean east = e-west >= 0.5;
+        boolean north = n-south >= 0.5;
+        return rawCorners[base + 4 + (east ? 2 : 0) + (north ? 0 : 1)];
+    }
+
+    /**
+     * Shift from ETRS89 to OSGB36 in the precision currently selected by
+     * <code>Ostn02LookupTable.setPrecision</code>.
+     */
+    void getShift(GridModel gridModel, double easting, double northing, double[] shift) {
+        if (Ostn02LookupTable.getPrecision() == Ostn02LookupTable.Precision.DOUBLE) {
+            getShiftFrom(gridModel, easting, northing, shift);
+        } else {
+            getShiftFrom(gridModel, (float)easting, (float)northing, floatShift);
+            shift[0] = floatShift[0];
+            shift[1] = floatShift[1];
+        }
+    }
+
+    /**
+     * As <code>Ostn02LookupTable.getShiftTo(easting, northing, shift)</code>.
+     * @param easting
+     * @param northing
+     * @param shift array of at least two elements to receive the shift.
+     */
+    public void getShiftTo(float easting, float northing, float[] shift) {
+        GridModel gridModel = Ostn02LookupTable.getGridModel();
+        float iterEast = easting;
+        float iterNorth = northing;
+        shift[0] = 0;
+        shift[1] = 0;
+
+        for (int i=0 ; i<3 ; i++) {
+            getShiftFrom(gridModel,iterEast,iterNorth,shift);
+            float shiftedEast = iterEast+shift[0];
+            float shiftedNorth = iterNorth+shift[1];
+            iterEast += easting-shiftedEast;
+            iterNorth += northing-shiftedNorth;
+        }
+    }
+
+    /**
+     * Get shift from OSGB36 to ETRS89, to within <code>tolerance</code>
+     * metres, in double precision. Within one cell the shifts are bilinear,
+     * so rather than iterating we solve for the ETRS89 position in closed
+     * form - a quadratic - and only move on if the solution lies in another
+     * cell. Usually the first or second cell tried holds the answer.
+     * 
+     * The shift is such that the ETRS89 position is the OSGB36 position minus
+     * the shift, and the ETRS89 position plus
+     * <code>getShiftFrom</code> there is the OSGB36 position.
+     * @param easting OSGB36 easting.
+     * @param northing OSGB36 northing.
+     * @param tolerance metres; how far outside a cell a solution may lie and
+     * still be accepted.
+     * @param shift array of at least two elements to receive the shift.
+     * @return the number of cells solved in.
+     */
+    public int getShiftTo(double easting, double northing, double tolerance, double[] shift) {
+        return getShiftTo(Ostn02LookupTable.getGridModel(), easting, northing, tolerance, shift);
+    }
+
+    int getShiftTo(GridModel gridModel, double easting, double northing, double tolerance, double[] shift) {
+        bind(gridModel);
+        inverseLookups++;
+        if (Double.isNaN(easting) || Double.isNaN(northing)) {
+            shift[0] = Double.NaN;
+            shift[1] = Double.NaN;
+            return 0;
+        }
+        
+        // Shifts vary slowly, so the last point's shift gives a good first cell.
+        double slack = tolerance/gridModel.spacing;
+        double x = (easting-lastInverseShiftEast-gridModel.minEasting)/gridModel.spacing;
+        double y = (northing-lastInverseShiftNorth-gridModel.minNorthing)/gridModel.spacing;
+        int cells = 0;
+        while (cells < MAX_INVERSE_CELLS) {
+            cells++;
+            int west = (int)Math.floor(x);
+            int south = (int)Math.floor(y);
+            int base = cellBase(west, south);
+            
+            // Shift at (west+u, south+v) is a0 + a1 u + a2 v + a3 u v, in the
+            // table's scaled units.
+            double sw = rawCorners[base+1], se = rawCorners[base+3];
+            double nw = rawCorners[base], ne = rawCorners[base+2];
+            double a0 = sw, a1 = se-sw, a2 = nw-sw, a3 = ne-nw-se+sw;
+            sw = rawCorners[base+5]; se = rawCorners[base+7];
+            nw = rawCorners[base+4]; ne = rawCorners[base+6];
+            double b0 = sw, b1 = se-sw, b2 = nw-sw, b3 = ne-nw-se+sw;
+            
+            // Solve cell u + eastShift(u,v) = p and cell v + northShift(u,v) = q.
+            double p = (easting - (gridModel.minEasting + gridModel.spacing*west))*scale - a0;
+            double q = (northing - (gridModel.minNorthing + gridModel.spacing*south))*scale - b0;
+            double A1 = cell+a1;
+            double B2 = cell+b2;
+            double k2 = B2*a3 - b3*a2;
+            double k1 = B2*A1 - b1*a2 + b3*p - a3*q;
+            double k0 = b1*p - q*A1;
+            // The root near -k0/k1, in a form that's stable when k2 is tiny.
+            double root = Math.sqrt(k1*k1 - 4*k2*k0);
+            double v = -2*k0 / (k1 + (k1 < 0 ? -root : root));
+            double u = (p - a2*v) / (A1 + a3*v);
+            
+            shift[0] = (a0 + a1*u + a2*v + a3*u*v) / scale;
+            shift[1] = (b0 + b1*u + b2*v + b3*u*v) / scale;
+            x = west+u;
+            y = south+v;
+            if (u >= -slack && u <= 1+slack && v >= -slack && v <= 1+slack)
+                break;
+        }
+        
+        if (!Double.isNaN(shift[0]) && !Double.isNaN(shift[1])) {
+            lastInverseShiftEast = shift[0];
+            lastInverseShiftNorth = shift[1];
+        }
+        inverseIterations += cells;
+        return cells;
+    }
+
+    /**
+     * Offset of a cell's corners, loading them if they're not cached.
+     */
+    private int cellBase(int west, int south) {
+        if (!keyed(west, south)) {
+            misses++;
+            int base = 8*keys.length;
+            model.getCellCorners(west, south, corners, rawCorners, base);
+            return base;
+        }
+        return 8*slotFor(west, south);
+    }
+
+    /**
+     * Whether a cell has a key of its own: cells off the edges of the table
+     * don't, and far enough north <code>west+rowLength*south</code> would
+     * overflow onto a real cell's.
+     */
+    private boolean keyed(int west, int south) {
+        return west >= 0 && west < rowLength && south >= 0 && south < rows;
+    }
+
+    private int slotFor(int west, int south) {
+        int key = west+rowLength*south;
+        if (keys[mostRecent] == key) {
+            hits++;
+            return mostRecent;
+        }
+        for (int i=0 ; i<keys.length ; i++) {
+            if (keys[i] == key) {
+                hits++;
+                mostRecent = i;
+                return i;
+            }
+        }
+
+        misses++;
+        int slot = nextReplaced;
+        nextReplaced = (nextReplaced+1) % keys.length;
+        model.getCellCorners(west, south, corners, rawCorners, 8*slot);
+        keys[slot] = key;
+        mostRecent = slot;
+        return slot;
+    }
+
+    /**
+     * Start reading cells from <code>gridModel</code>, forgetting any read
+     * from another.
+     */
+    private void bind(GridModel gridModel) {
+        if (gridModel == model)
+            return;
+        model = gridModel;
+        rowLength = gridModel.columns;
+        rows = gridModel.rows;
+        scale = gridModel.scale;
+        cell = gridModel.spacing*gridModel.scale;
+        for (int i=0 ; i<keys.length ; i++) {
+            keys[i] = EMPTY;
+        }
+        lastInverseShiftEast = 0;
+        lastInverseShiftNorth = 0;
+    }
+
+    /**
+     * @return lookups answered from the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return lookups that had to read the table.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return calls to <code>getShiftTo(double,double,double,double[])</code>.
+     */
+    public long getInverseLookups() {
+        return inverseLookups;
+    }
+
+    /**
+     * @return cells solved in by those calls, in total.
+     */
+    public long getInverseIterations() {
+        return inverseIterations;
+    }
+
+    /**
+     * Forget all cells and reset the counters.
+     */
+    public void clear() {
+        for (int i=0 ; i<keys.length ; i++) {
+            keys[i] = EMPTY;
+        }
+        hits = 0;
+        misses = 0;
+        inverseLookups = 0;
+        inverseIterations = 0;
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * Where the lookup table's shifts are kept. Values are the scaled integers
+ * from ostn02.bin, east and north shifts alternating, in record order.
+ * 
+ * @author Michael Tandy
+ */
+interface ShiftStorage {
+    
+    /**
+     * @param i position in the table; east shift of record r is at 2r, north
+     * shift at 2r+1.
+     * @return the scaled shift value.
+     */
+    int get(int i);
+    
+}
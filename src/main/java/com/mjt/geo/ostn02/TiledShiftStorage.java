@@ -0,0 +1,320 @@
+package com.mjt.geo.ostn02;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+/**
+ * Shift storage that reads the table from a tiled file one square tile at a
+ * time, as lookups first touch each tile, so a process working in one region
+ * only ever reads and holds that region's tiles. Opening the file reads just
+ * its header and index.
+ *
+ * Loaded tiles are published through an <code>AtomicReferenceArray</code>,
+ * so lookups take no locks; two threads wanting the same tile at once may
+ * both read it, and one copy wins. With a limit on the number of tiles held,
+ * loading one more evicts a tile that hasn't been used since the clock hand
+ * last passed it. Lookups already holding an evicted tile finish with it, and
+ * a later lookup reads it again.
+ *
+ * The file is big-endian: a header (magic "OSTT", version, values per record,
+ * records per row, rows, tile size, scale factor), then an index giving each
+ * tile's file offset and CRC32, tiles in rows from the south-west. Each tile
+ * holds its records row by row, in the layout of ostn02.bin. Tiles whose
+ * values are all zero - out at sea, beyond OSTN02's coverage - have offset
+ * zero and aren't stored.
+ *
+ * @author Michael Tandy
+ */
+class TiledShiftStorage implements ShiftStorage {
+    static final int MAGIC = 0x4F535454;
+    static final int VERSION = 1;
+    /** Kilometres along each side of a tile. */
+    static final int DEFAULT_TILE_SIZE = 50;
+    private static final int HEADER_BYTES = 24;
+    private static final int INDEX_ENTRY_BYTES = 12;
+
+    private final File file;
+    private final int columns;
+    private final int rowLength;
+    private final int rows;
+    private final int tileSize;
+    private final int tileColumns;
+    private final long[] offsets;
+    private final int[] checksums;
+    private final int maxTiles;
+    private final AtomicReferenceArray<int[]> tiles;
+    /** Set when a tile is used, cleared as the clock hand passes it. */
+    private final AtomicIntegerArray used;
+    private final AtomicInteger loadedTiles = new AtomicInteger();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private final int[] emptyTile;
+    private int clockHand = 0;
+    private volatile FileChannel channel;
+
+    private TiledShiftStorage(File file, FileChannel channel, int columns, int rowLength, int rows,
+            int tileSize, long[] offsets, int[] checksums, int maxTiles) {
+        this.file = file;
+        this.channel = channel;
+        this.columns = columns;
+        this.rowLength = rowLength;
+        this.rows = rows;
+        this.tileSize = tileSize;
+        this.tileColumns = (rowLength+tileSize-1)/tileSize;
+        this.offsets = offsets;
+        this.checksums = checksums;
+        this.maxTiles = maxTiles;
+        this.tiles = new AtomicReferenceArray<int[]>(offsets.length);
+        this.used = new AtomicIntegerArray(offsets.length);
+        this.emptyTile = new int[columns*tileSize*tileSize];
+    }
+
+    /**
+     * Open a tiled file, reading its header and index.
+     * @param file
+     * @param columns values per record the caller expects.
+     * @param rowLength records per row the caller expects.
+     * @param rows rows the caller expects.
+     * @param scaleFactor scale factor the caller expects.
+     * @param maxTiles most tiles to hold at once, or zero for no limit.
+     * @throws IOException if the file can't be read, isn't in this format or
+     * doesn't match the expected layout.
+     */
+    static TiledShiftStorage open(File file, int columns, int rowLength, int rows, int scaleFactor,
+            int maxTiles) throws IOException {
+        if (maxTiles < 0)
+            throw new IllegalArgumentException("maxTiles must not be negative");
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        boolean opened = false;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC)
+                throw new IOException(file + " is not a tiled OSTN table");
+            int version = header.getShort(4) & 0xFFFF;
+            if (version != VERSION)
+                throw new IOException("Unsupported tiled table version " + version);
+            int fileColumns = header.getShort(6) & 0xFFFF;
+            int fileRowLength = header.getInt(8);
+            int fileRows = header.getInt(12);
+            int tileSize = header.getInt(16);
+            int fileScaleFactor = header.getInt(20);
+            if (fileColumns != columns || fileRowLength != rowLength || fileRows != rows
+                    || fileScaleFactor != scaleFactor)
+                throw new IOException("Tiled table has " + fileColumns + " columns, " + fileRowLength + "x"
+                        + fileRows + " records at scale " + fileScaleFactor + "; expected " + columns + ", "
+                        + rowLength + "x" + rows + " at " + scaleFactor);
+            if (tileSize < 1)
+                throw new IOException("Tiled table has tile size " + tileSize);
+
+            int tileCount = tileCount(rowLength, rows, tileSize);
+            ByteBuffer index = ByteBuffer.allocate(tileCount*INDEX_ENTRY_BYTES);
+            readFully(channel, index, HEADER_BYTES);
+            long[] offsets = new long[tileCount];
+            int[] checksums = new int[tileCount];
+            for (int t=0 ; t<tileCount ; t++) {
+                offsets[t] = index.getLong(t*INDEX_ENTRY_BYTES);
+                checksums[t] = index.getInt(t*INDEX_ENTRY_BYTES+8);
+            }
+            TiledShiftStorage storage = new TiledShiftStorage(file, channel, columns, rowLength, rows,
+                    tileSize, offsets, checksums, maxTiles);
+            opened = true;
+            return storage;
+        } finally {
+            if (!opened)
+                channel.close();
+        }
+    }
+
+    /**
+     * @param out
+     * @param values record-ordered values, all columns of record 0 followed
+     * by all columns of record 1 and so on; the layout of ostn02.bin.
+     * @param columns values per record.
+     * @param rowLength records per row of the grid.
+     * @param tileSize records along each side of a tile.
+     * @param scaleFactor the values' scale factor, recorded in the header.
+     * @throws IOException
+     */
+    static void write(OutputStream out, int[] values, int columns, int rowLength, int tileSize,
+            int scaleFactor) throws IOException {
+        int rows = values.length/columns/rowLength;
+        int tileCount = tileCount(rowLength, rows, tileSize);
+        int tileColumns = (rowLength+tileSize-1)/tileSize;
+        byte[][] tileBytes = new byte[tileCount][];
+        long[] offsets = new long[tileCount];
+        int[] checksums = new int[tileCount];
+        long offset = HEADER_BYTES + (long)tileCount*INDEX_ENTRY_BYTES;
+        for (int t=0 ; t<tileCount ; t++) {
+            int firstColumn = (t % tileColumns)*tileSize;
+            int firstRow = (t / tileColumns)*tileSize;
+            int width = Math.min(tileSize, rowLength-firstColumn);
+            int height = Math.min(tileSize, rows-firstRow);
+            ByteBuffer tile = ByteBuffer.allocate(4*columns*width*height);
+            boolean empty = true;
+            for (int row=firstRow ; row<firstRow+height ; row++) {
+                for (int i=columns*(firstColumn+rowLength*row) ; i<columns*(firstColumn+width+rowLength*row) ; i++) {
+                    tile.putInt(values[i]);
+                    empty &= values[i] == 0;
+                }
+            }
+            if (empty)
+                continue;
+            tileBytes[t] = tile.array();
+            offsets[t] = offset;
+            checksums[t] = checksum(tileBytes[t]);
+            offset += tileBytes[t].length;
+        }
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeShort(VERSION);
+        dos.writeShort(columns);
+        dos.writeInt(rowLength);
+        dos.writeInt(rows);
+        dos.writeInt(tileSize);
+        dos.writeInt(scaleFactor);
+        for (int t=0 ; t<tileCount ; t++) {
+            dos.writeLong(offsets[t]);
+            dos.writeInt(checksums[t]);
+        }
+        for (byte[] tile : tileBytes) {
+            if (tile != null)
+                dos.write(tile);
+        }
+        dos.flush();
+    }
+
+    public int get(int i) {
+        int record = i/columns;
+        int row = record/rowLength;
+        int column = record - row*rowLength;
+        int tileRow = row/tileSize;
+        int tileColumn = column/tileSize;
+        int t = tileColumn + tileColumns*tileRow;
+
+        int[] tile = tiles.get(t);
+        if (tile == null)
+            tile = load(t);
+        if (used.get(t) == 0)
+            used.lazySet(t, 1);
+        int width = Math.min(tileSize, rowLength-tileColumn*tileSize);
+        int local = (column-tileColumn*tileSize) + width*(row-tileRow*tileSize);
+        return tile[columns*local + (i - columns*record)];
+    }
+
+    /**
+     * @return tiles currently held.
+     */
+    int getLoadedTiles() {
+        return loadedTiles.get();
+    }
+
+    /**
+     * @return tiles read from the file so far, counting rereads.
+     */
+    long getLoads() {
+        return loads.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    int getTileCount() {
+        return offsets.length;
+    }
+
+    private int[] load(int t) {
+        if (offsets[t] == 0)
+            return emptyTile;
+        int[] tile;
+        try {
+            tile = read(t);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to load OSTN02 tile " + t + " from " + file, e);
+        }
+        if (!tiles.compareAndSet(t, null, tile))
+            return tiles.get(t) != null ? tiles.get(t) : tile;
+        loads.incrementAndGet();
+        used.set(t, 1);
+        if (loadedTiles.incrementAndGet() > maxTiles && maxTiles > 0)
+            evict(t);
+        return tile;
+    }
+
+    private int[] read(int t) throws IOException {
+        int firstColumn = (t % tileColumns)*tileSize;
+        int firstRow = (t / tileColumns)*tileSize;
+        int width = Math.min(tileSize, rowLength-firstColumn);
+        int height = Math.min(tileSize, rows-firstRow);
+        ByteBuffer bytes = ByteBuffer.allocate(4*columns*width*height);
+        try {
+            readFully(channel, bytes, offsets[t]);
+        } catch (ClosedChannelException e) {
+            // An interrupted reader closes the channel for everyone.
+            readFully(reopen(), bytes, offsets[t]);
+        }
+        if (checksum(bytes.array()) != checksums[t])
+            throw new IOException("Tile " + t + " checksum mismatch");
+        int[] tile = new int[bytes.capacity()/4];
+        bytes.flip();
+        bytes.asIntBuffer().get(tile);
+        return tile;
+    }
+
+    private synchronized FileChannel reopen() throws IOException {
+        if (!channel.isOpen())
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return channel;
+    }
+
+    /**
+     * Drop tiles until within the limit, sparing <code>keep</code>, the tile
+     * just loaded. Loading is rare, so one lock here costs lookups nothing.
+     */
+    private void evict(int keep) {
+        synchronized (evictionLock) {
+            while (loadedTiles.get() > maxTiles) {
+                int t = clockHand;
+                clockHand = (clockHand+1) % offsets.length;
+                if (t == keep || tiles.get(t) == null)
+                    continue;
+                if (used.get(t) != 0) {
+                    used.set(t, 0);
+                } else if (tiles.getAndSet(t, null) != null) {
+                    loadedTiles.decrementAndGet();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static int tileCount(int rowLength, int rows, int tileSize) {
+        return ((rowLength+tileSize-1)/tileSize) * ((rows+tileSize-1)/tileSize);
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int)crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position+buffer.position());
+            if (read < 0)
+                throw new EOFException("Tiled table truncated");
+        }
+    }
+
+}
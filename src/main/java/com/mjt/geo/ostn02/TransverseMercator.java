@@ -0,0 +1,191 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * The National Grid transverse mercator projection on the GRS80 ellipsoid,
+ * as documented in the Ordnance Survey "Transformations and OSGM02 user
+ * guide". This is the projection only; the OSTN02 shift is applied by the
+ * converters.
+ *
+ * Everything that doesn't depend on the point - the ellipsoid constants and
+ * the meridional arc coefficients - is computed once. The multiple-angle
+ * sines and cosines in the meridional arc come from the sine and cosine of
+ * the latitude by trig identities, the radii of curvature use one square
+ * root rather than two calls to <code>Math.pow</code>, and the inverse
+ * iterates only until the meridional arc is within 0.01 mm.
+ *
+ * @author Michael Tandy
+ */
+class TransverseMercator {
+    // GRS80 parameters:
+    static final double A = 6378137.000;
+    static final double B = 6356752.3141;
+    static final double E_SQUARED = (A*A-B*B)/(A*A);
+    static final double N0 = -100000;
+    static final double E0 = 400000;
+    static final double F0 = 0.9996012717;
+    static final double LAT0 = Math.PI/180.0 * 49;
+    static final double LON0 = Math.PI/180.0 * -2;
+
+    private static final double N = (A-B)/(A+B);
+    private static final double AF0 = A*F0;
+    private static final double ONE_MINUS_E_SQUARED = 1-E_SQUARED;
+    private static final double SIN_LAT0 = Math.sin(LAT0);
+    private static final double COS_LAT0 = Math.cos(LAT0);
+
+    private static final double MA = B*F0*(1 + N + (5.0/4.0)*N*N + (5.0/4.0)*N*N*N);
+    private static final double MB = B*F0*(3*N + 3*N*N + (21.0/8.0)*N*N*N);
+    private static final double MC = B*F0*((15.0/8.0)*N*N + (15.0/8.0)*N*N*N);
+    private static final double MD = B*F0*(35.0/24.0)*N*N*N;
+
+    /** Metres; the OS guide iterates until N - N0 - M is below 0.01 mm. */
+    static final double ARC_TOLERANCE = 0.00001;
+    private static final int MAX_ITERATIONS = 20;
+
+    static final int FORWARD_TERMS = 7;
+    static final int INVERSE_TERMS = 8;
+
+    private TransverseMercator() { }
+
+    /**
+     * @param latitude degrees.
+     * @param longitude degrees.
+     * @param eastNorth receives the easting in element 0 and the northing in
+     * element 1.
+     * @param terms scratch space of at least <code>FORWARD_TERMS</code>
+     * elements, so converting many points allocates nothing.
+     */
+    static void toEastingNorthing(double latitude, double longitude, double[] eastNorth, double[] terms) {
+        forwardTerms(latitude, terms);
+        evaluateForward(terms, longitude, eastNorth);
+    }
+
+    /**
+     * @param east metres.
+     * @param north metres.
+     * @param latLon receives the latitude in element 0 and the longitude in
+     * element 1, in degrees.
+     * @param terms scratch space of at least <code>INVERSE_TERMS</code>
+     * elements.
+     */
+    static void toLatitudeLongitude(double east, double north, double[] latLon, double[] terms) {
+        inverseTerms(north, terms);
+        evaluateInverse(terms, east, latLon);
+    }
+
+    /**
+     * The forward series coefficients I, II, III, IIIA, IV, V and VI, which
+     * depend only on latitude.
+     * @param latitude degrees.
+     * @param terms receives the seven coefficients.
+     */
+    static void forwardTerms(double latitude, double[] terms) {
+        double lat = Math.PI/180.0 * latitude;
+        double sinLat = Math.sin(lat);
+        double cosLat = Math.cos(lat);
+        double tanLat = sinLat/cosLat;
+        double tan2 = tanLat*tanLat;
+        double tan4 = tan2*tan2;
+        double cos3 = cosLat*cosLat*cosLat;
+        double cos5 = cos3*cosLat*cosLat;
+
+        double w = 1-E_SQUARED*sinLat*sinLat;
+        double v = AF0/Math.sqrt(w);
+        double vOverRho = w/ONE_MINUS_E_SQUARED;
+        double etaSquared = vOverRho-1;
+
+        terms[0] = meridionalArc(lat, sinLat, cosLat) + N0;
+        terms[1] = v/2*sinLat*cosLat;
+        terms[2] = v/24*sinLat*cos3*(5-tan2+9*etaSquared);
+        terms[3] = v/720*sinLat*cos5*(61-58*tan2+tan4);
+        terms[4] = v*cosLat;
+        terms[5] = (v/6)*cos3*(vOverRho - tan2);
+        terms[6] = (v/120)*cos5*(5-18*tan2+tan4+14*etaSquared-58*tan2*etaSquared);
+    }
+
+    /**
+     * @param terms the coefficients from <code>forwardTerms</code>.
+     * @param longitude degrees.
+     * @param eastNorth receives the easting and northing.
+     */
+    static void evaluateForward(double[] terms, double longitude, double[] eastNorth) {
+        double l = Math.PI/180.0 * longitude - LON0;
+        double l2 = l*l;
+        eastNorth[0] = E0 + l*(terms[4] + l2*(terms[5] + l2*terms[6]));
+        eastNorth[1] = terms[0] + l2*(terms[1] + l2*(terms[2] + l2*terms[3]));
+    }
+
+    /**
+     * The footpoint latitude latPrime (radians) and the inverse series
+     * coefficients VII, VIII, IX, X, XI, XII and XIIA, which depend only on
+     * northing.
+     * @param north metres.
+     * @param terms receives the eight values.
+     */
+    static void inverseTerms(double north, double[] terms) {
+        double latPrime = (north-N0)/AF0 + LAT0;
+        double sinLat = Math.sin(latPrime);
+        double cosLat = Math.cos(latPrime);
+        double residual = north-N0-meridionalArc(latPrime, sinLat, cosLat);
+        for (int i=0 ; i<MAX_ITERATIONS && Math.abs(residual) >= ARC_TOLERANCE ; i++) {
+            latPrime += residual/AF0;
+            sinLat = Math.sin(latPrime);
+            cosLat = Math.cos(latPrime);
+            residual = north-N0-meridionalArc(latPrime, sinLat, cosLat);
+        }
+
+        double secLat = 1/cosLat;
+        double tanLat = sinLat*secLat;
+        double tan2 = tanLat*tanLat;
+        double tan4 = tan2*tan2;
+
+        double w = 1-E_SQUARED*sinLat*sinLat;
+        double v = AF0/Math.sqrt(w);
+        double rho = v*ONE_MINUS_E_SQUARED/w;
+        double vOverRho = w/ONE_MINUS_E_SQUARED;
+        double etaSquared = vOverRho-1;
+        double v3 = v*v*v;
+        double v5 = v3*v*v;
+        double v7 = v5*v*v;
+
+        terms[0] = latPrime;
+        terms[1] = tanLat / (2*rho*v);
+        terms[2] = tanLat / (24*rho*v3) * (5 + 3*tan2 + etaSquared - 9*tan2*etaSquared);
+        terms[3] = tanLat / (720*rho*v5) * (61 + 90*tan2 + 45*tan4);
+        terms[4] = secLat / v;
+        terms[5] = secLat / (6*v3) * (vOverRho + 2*tan2);
+        terms[6] = secLat / (120*v5) * (5 + 28*tan2 + 24*tan4);
+        terms[7] = secLat / (5040*v7) * (61 + 662*tan2 + 1320*tan4 + 720*tan4*tan2);
+    }
+
+    /**
+     * @param terms the values from <code>inverseTerms</code>.
+     * @param east metres.
+     * @param latLon receives the latitude and longitude in degrees.
+     */
+    static void evaluateInverse(double[] terms, double east, double[] latLon) {
+        double e = east-E0;
+        double e2 = e*e;
+        double lat = terms[0] - e2*(terms[1] - e2*(terms[2] - e2*terms[3]));
+        double lon = LON0 + e*(terms[4] - e2*(terms[5] - e2*(terms[6] - e2*terms[7])));
+        latLon[0] = 180/Math.PI * lat;
+        latLon[1] = 180/Math.PI * lon;
+    }
+
+    /**
+     * Meridional arc M from the true origin to a latitude, given the latitude
+     * in radians and its sine and cosine.
+     */
+    static double meridionalArc(double lat, double sinLat, double cosLat) {
+        // sin(lat-lat0), cos(lat-lat0), cos(lat+lat0) by angle sum identities.
+        double sinDiff = sinLat*COS_LAT0 - cosLat*SIN_LAT0;
+        double cosDiff = cosLat*COS_LAT0 + sinLat*SIN_LAT0;
+        double cosSum = cosLat*COS_LAT0 - sinLat*SIN_LAT0;
+        // Double and triple angles.
+        double sin2Diff = 2*sinDiff*cosDiff;
+        double cos2Sum = 2*cosSum*cosSum - 1;
+        double sin3Diff = sinDiff*(3 - 4*sinDiff*sinDiff);
+        double cos3Sum = cosSum*(4*cosSum*cosSum - 3);
+        return MA*(lat-LAT0) - MB*sinDiff*cosSum + MC*sin2Diff*cos2Sum - MD*sin3Diff*cos3Sum;
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.mjt.geo.ostn02;
+
+/**
+ * Batch transverse mercator projection that works on blocks of points at a
+ * time. In the forward series of <code>TransverseMercator</code>, every
+ * coefficient (I, II, III, IIIA, IV, V, VI) depends only on latitude, and in
+ * the inverse series every coefficient depends only on northing. Over Great
+ * Britain those are smooth functions, so we replace each with a Chebyshev
+ * fit, converted to an ordinary polynomial, that matches the series to well
+ * under a millimetre.
+ *
+ * Evaluating the projection then needs no sin/cos/tan/pow calls, just
+ * multiply-adds over arrays with no branches, which HotSpot compiles to SIMD
+ * instructions processing several points per instruction. Points outside the
+ * fitted band (or NaN) fall back to the scalar series.
+ *
+ * @author Michael Tandy
+ */
+class VectorisedProjection {
+    private static final double E0 = TransverseMercator.E0;
+    private static final double LON0_DEGREES = 180/Math.PI * TransverseMercator.LON0;
+
+    /** Latitudes (degrees) covered by the forward fit. */
+    static final double MIN_LATITUDE = 48;
+    static final double MAX_LATITUDE = 62;
+    /** Northings (metres) covered by the inverse fit. */
+    static final double MIN_NORTHING = -150000;
+    static final double MAX_NORTHING = 1400000;
+
+    private static final int DEGREE = 12;
+    private static final int BLOCK = 256;
+
+    private static final double LAT_MID = (MAX_LATITUDE+MIN_LATITUDE)/2;
+    private static final double LAT_SCALE = 2/(MAX_LATITUDE-MIN_LATITUDE);
+    private static final double NORTH_MID = (MAX_NORTHING+MIN_NORTHING)/2;
+    private static final double NORTH_SCALE = 2/(MAX_NORTHING-MIN_NORTHING);
+
+    /** Forward coefficients I, II, III, IIIA, IV, V, VI as polynomials in t. */
+    private static final double[][] FORWARD = new double[TransverseMercator.FORWARD_TERMS][];
+    /** Inverse latPrime, VII, VIII, IX, X, XI, XII, XIIA as polynomials in t. */
+    private static final double[][] INVERSE = new double[TransverseMercator.INVERSE_TERMS][];
+
+    static {
+        final double[] terms = new double[Math.max(FORWARD.length, INVERSE.length)];
+        for (int k=0 ; k<FORWARD.length ; k++) {
+            final int term = k;
+            FORWARD[k] = fit(DEGREE, new Function() {
+                public double at(double t) {
+                    TransverseMercator.forwardTerms(LAT_MID + t/LAT_SCALE, terms);
+                    return terms[term];
+                }
+            });
+        }
+        for (int k=0 ; k<INVERSE.length ; k++) {
+            final int term = k;
+            INVERSE[k] = fit(DEGREE, new Function() {
+                public double at(double t) {
+                    TransverseMercator.inverseTerms(NORTH_MID + t/NORTH_SCALE, terms);
+                    return terms[term];
+                }
+            });
+        }
+    }
+
+    private VectorisedProjection() { }
+
+    /**
+     * Project latitude/longitude (degrees, GRS80) to transverse mercator
+     * easting/northing, before any OSTN02 shift.
+     */
+    static void toTransverseMercator(double[] latitudes, double[] longitudes, int srcOffset,
+            double[] eastings, double[] northings, int dstOffset, int length) {
+        // Inputs are copied into the block first, so outputs may overwrite them.
+        double[] latitude = new double[BLOCK];
+        double[] longitude = new double[BLOCK];
+        double[] t = new double[BLOCK];
+        double[] lon = new double[BLOCK];
+        double[][] terms = new double[FORWARD.length][BLOCK];
+        double[] eastNorth = new double[2];
+        double[] scalarTerms = new double[TransverseMercator.FORWARD_TERMS];
+
+        for (int start=0 ; start<length ; start+=BLOCK) {
+            int count = Math.min(BLOCK, length-start);
+            int dst = dstOffset+start;
+
+            System.arraycopy(latitudes, srcOffset+start, latitude, 0, count);
+            System.arraycopy(longitudes, srcOffset+start, longitude, 0, count);
+            for (int i=0 ; i<count ; i++) {
+                t[i] = Math.max(-1, Math.min(1, (latitude[i]-LAT_MID)*LAT_SCALE));
+                lon[i] = Math.PI/180.0 * (longitude[i]-LON0_DEGREES);
+            }
+            for (int k=0 ; k<FORWARD.length ; k++) {
+                horner(FORWARD[k], t, terms[k], count);
+            }
+            double[] I = terms[0], II = terms[1], III = terms[2], IIIA = terms[3];
+            double[] IV = terms[4], V = terms[5], VI = terms[6];
+            for (int i=0 ; i<count ; i++) {
+                double l = lon[i];
+                double l2 = l*l;
+                northings[dst+i] = I[i] + l2*(II[i] + l2*(III[i] + l2*IIIA[i]));
+                eastings[dst+i] = E0 + l*(IV[i] + l2*(V[i] + l2*VI[i]));
+            }
+
+            for (int i=0 ; i<count ; i++) {
+                if (!(latitude[i] >= MIN_LATITUDE && latitude[i] <= MAX_LATITUDE)) {
+                    TransverseMercator.toEastingNorthing(latitude[i], longitude[i], eastNorth, scalarTerms);
+                    eastings[dst+i] = eastNorth[0];
+                    northings[dst+i] = eastNorth[1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Project transverse mercator easting/northing, after removing any
+     * OSTN02 shift, to latitude/longitude (degrees, GRS80).
+     */
+    static void fromTransverseMercator(double[] eastings, double[] northings, int srcOffset,
+            double[] latitudes, double[] longitudes, int dstOffset, int length) {
+        // Inputs are copied into the block first, so outputs may overwrite them.
+        double[] easting = new double[BLOCK];
+        double[] northing = new double[BLOCK];
+        double[] t = new double[BLOCK];
+        double[] east = new double[BLOCK];
+        double[][] terms = new double[INVERSE.length][BLOCK];
+        double[] latLon = new double[2];
+        double[] scalarTerms = new double[TransverseMercator.INVERSE_TERMS];
+
+        for (int start=0 ; start<length ; start+=BLOCK) {
+            int count = Math.min(BLOCK, length-start);
+            int dst = dstOffset+start;
+
+            System.arraycopy(eastings, srcOffset+start, easting, 0, count);
+            System.arraycopy(northings, srcOffset+start, northing, 0, count);
+            for (int i=0 ; i<count ; i++) {
+                t[i] = Math.max(-1, Math.min(1, (northing[i]-NORTH_MID)*NORTH_SCALE));
+                east[i] = easting[i]-E0;
+            }
+            for (int k=0 ; k<INVERSE.length ; k++) {
+                horner(INVERSE[k], t, terms[k], count);
+            }
+            double[] latPrime = terms[0], VII = terms[1], VIII = terms[2], IX = terms[3];
+            double[] X = terms[4], XI = terms[5], XII = terms[6], XIIA = terms[7];
+            for (int i=0 ; i<count ; i++) {
+                double e = east[i];
+                double e2 = e*e;
+                double lat = latPrime[i] - e2*(VII[i] - e2*(VIII[i] - e2*IX[i]));
+                double lon = e*(X[i] - e2*(XI[i] - e2*(XII[i] - e2*XIIA[i])));
+                latitudes[dst+i] = 180/Math.PI * lat;
+                longitudes[dst+i] = LON0_DEGREES + 180/Math.PI * lon;
+            }
+
+            for (int i=0 ; i<count ; i++) {
+                if (!(northing[i] >= MIN_NORTHING && northing[i] <= MAX_NORTHING)) {
+                    TransverseMercator.toLatitudeLongitude(easting[i], northing[i], latLon, scalarTerms);
+                    latitudes[dst+i] = latLon[0];
+                    longitudes[dst+i] = latLon[1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluate one polynomial at <code>count</code> points. The loop over
+     * points is innermost so each step is the same multiply-add across the
+     * whole block.
+     */
+    private static void horner(double[] coefficients, double[] t, double[] result, int count) {
+        double top = coefficients[coefficients.length-1];
+        for (int i=0 ; i<count ; i++) {
+            result[i] = top;
+        }
+        for (int k=coefficients.length-2 ; k>=0 ; k--) {
+            double c = coefficients[k];
+            for (int i=0 ; i<count ; i++) {
+                result[i] = result[i]*t[i] + c;
+            }
+        }
+    }
+
+    interface Function {
+        double at(double t);
+    }
+
+    /**
+     * Interpolate at Chebyshev nodes on [-1,1] and return the interpolant's
+     * ordinary polynomial coefficients, constant term first.
+     */
+    static double[] fit(int degree, Function f) {
+        int nodes = degree+1;
+        double[] values = new double[nodes];
+        for (int j=0 ; j<nodes ; j++) {
+            values[j] = f.at(Math.cos(Math.PI*(j+0.5)/nodes));
+        }
+
+        double[] result = new double[nodes];
+        double[] previous = new double[nodes];
+        double[] current = new double[nodes];
+        previous[0] = 1;
+        current[1] = 1;
+        for (int k=0 ; k<nodes ; k++) {
+            double c = 0;
+            for (int j=0 ; j<nodes ; j++) {
+                c += values[j]*Math.cos(Math.PI*k*(j+0.5)/nodes);
+            }
+            c *= (k == 0 ? 1.0 : 2.0)/nodes;
+
+            double[] chebyshev = k == 0 ? previous : current;
+            for (int p=0 ; p<nodes ; p++) {
+                result[p] += c*chebyshev[p];
+            }
+            if (k > 0) {
+                // T(k+1) = 2t T(k) - T(k-1)
+                double[] next = new double[nodes];
+                for (int p=0 ; p<nodes-1 ; p++) {
+                    next[p+1] = 2*current[p];
+                }
+                for (int p=0 ; p<nodes ; p++) {
+                    next[p] -= previous[p];
+                }
+                previous = current;
+                current = next;
+            }
+        }
+        return result;
+    }
+
+}
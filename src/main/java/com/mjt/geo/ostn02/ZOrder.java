@@ -0,0 +1,116 @@
+package com.mjt.geo.ostn02;
+
+import java.util.Arrays;
+
+/**
+ * Orders points by the Morton code (Z-order) of the grid model cell they
+ * fall in, so that working through a batch in that order visits each part of
+ * the table once, while its rows are in the CPU cache, rather than jumping
+ * about the whole table. Points in the same cell end up next to each other,
+ * and neighbouring cells mostly so.
+ *
+ * @author Michael Tandy
+ */
+final class ZOrder {
+    /** Bits per radix sort pass; OSTN02's 1251 rows fit in one. */
+    private static final int BITS = 11;
+    private static final int MASK = (1 << BITS) - 1;
+    /**
+     * Most bits of each cell coordinate in a key, keeping keys positive.
+     * Larger grids group neighbouring cells together.
+     */
+    private static final int MAX_COORDINATE_BITS = 15;
+
+    private ZOrder() {
+    }
+
+    /**
+     * @param model the grid model whose cells the points are grouped by.
+     * @param eastings
+     * @param northings
+     * @param offset index of the first point.
+     * @param length number of points.
+     * @return the points' indices relative to <code>offset</code>, in Z-order
+     * of their cells. Points in the same cell keep their original order.
+     */
+    static int[] sort(GridModel model, double[] eastings, double[] northings, int offset, int length) {
+        int[] keys = new int[length];
+        int[] order = new int[length];
+        for (int i=0 ; i<length ; i++) {
+            keys[i] = key(model, eastings[offset+i], northings[offset+i]);
+            order[i] = i;
+        }
+
+        // Least significant digit first, over as many bits as the keys use.
+        int keyBits = 2*(coordinateBits(model)-coarsening(model));
+        int[] sortedKeys = new int[length];
+        int[] sortedOrder = new int[length];
+        int[] counts = new int[MASK+1];
+        for (int shift=0 ; shift<keyBits ; shift+=BITS) {
+            Arrays.fill(counts, 0);
+            for (int i=0 ; i<length ; i++) {
+                counts[(keys[i] >>> shift) & MASK]++;
+            }
+            int position = 0;
+            for (int b=0 ; b<=MASK ; b++) {
+                int count = counts[b];
+                counts[b] = position;
+                position += count;
+            }
+            for (int i=0 ; i<length ; i++) {
+                int p = counts[(keys[i] >>> shift) & MASK]++;
+                sortedKeys[p] = keys[i];
+                sortedOrder[p] = order[i];
+            }
+            int[] swap = keys;
+            keys = sortedKeys;
+            sortedKeys = swap;
+            swap = order;
+            order = sortedOrder;
+            sortedOrder = swap;
+        }
+        return order;
+    }
+
+    /**
+     * @return the Morton code of the point's cell in <code>model</code>: the
+     * cell's column and row bits interleaved, column in the even bits. Points
+     * off the table are clamped to its edge.
+     */
+    static int key(GridModel model, double easting, double northing) {
+        int column = clamp((int)Math.floor((easting-model.minEasting)/model.spacing), model.columns-1);
+        int row = clamp((int)Math.floor((northing-model.minNorthing)/model.spacing), model.rows-1);
+        int coarsening = coarsening(model);
+        return spread(column >>> coarsening) | (spread(row >>> coarsening) << 1);
+    }
+
+    /**
+     * @return bits needed for the model's largest column or row number.
+     */
+    private static int coordinateBits(GridModel model) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(model.columns, model.rows) - 1);
+    }
+
+    /**
+     * @return low bits dropped from each cell coordinate to fit the key.
+     */
+    private static int coarsening(GridModel model) {
+        return Math.max(0, coordinateBits(model) - MAX_COORDINATE_BITS);
+    }
+
+    private static int clamp(int value, int max) {
+        return value < 0 ? 0 : value > max ? max : value;
+    }
+
+    /**
+     * Moves bit i of a 16 bit value to bit 2i.
+     */
+    private static int spread(int value) {
+        value = (value | (value << 8)) & 0x00ff00ff;
+        value = (value | (value << 4)) & 0x0f0f0f0f;
+        value = (value | (value << 2)) & 0x33333333;
+        value = (value | (value << 1)) & 0x55555555;
+        return value;
+    }
+
+}
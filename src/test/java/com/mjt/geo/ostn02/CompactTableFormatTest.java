@@ -0,0 +1,121 @@
+package com.mjt.geo.ostn02;
+
+import java.io.*;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class CompactTableFormatTest {
+    private static final int ROW_LENGTH = 71;
+    private static final int ROWS = 126;
+    
+    public CompactTableFormatTest() {
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        int[] values = smoothTable();
+        byte[] encoded = encode(values);
+        
+        int[] result = CompactTableFormat.read(new ByteArrayInputStream(encoded), 2, ROW_LENGTH*ROWS, 10000);
+        
+        assertArrayEquals(values, result);
+        assertTrue("Expected under 1.5 bytes per value, got " + encoded.length,
+                encoded.length < 1.5*values.length);
+    }
+    
+    @Test
+    public void testRoundTripExtremes() throws IOException {
+        int[] values = new int[2*ROW_LENGTH*ROWS];
+        Random random = new Random(1);
+        for (int i=0 ; i<values.length ; i++) {
+            values[i] = random.nextInt();
+        }
+        values[0] = Integer.MIN_VALUE;
+        values[1] = Integer.MAX_VALUE;
+        
+        int[] result = CompactTableFormat.read(new ByteArrayInputStream(encode(values)), 2, ROW_LENGTH*ROWS, 10000);
+        
+        assertArrayEquals(values, result);
+    }
+    
+    @Test(expected=IOException.class)
+    public void testChecksumMismatch() throws IOException {
+        byte[] encoded = encode(smoothTable());
+        encoded[encoded.length/2] ^= 0x10;
+        CompactTableFormat.read(new ByteArrayInputStream(encoded), 2, ROW_LENGTH*ROWS, 10000);
+    }
+    
+    @Test(expected=IOException.class)
+    public void testWrongLayout() throws IOException {
+        byte[] encoded = encode(smoothTable());
+        CompactTableFormat.read(new ByteArrayInputStream(encoded), 2, ROW_LENGTH*ROWS+1, 10000);
+    }
+    
+    @Test
+    public void testPayloadLengthOutOfRange() throws IOException {
+        for (int length : new int[] {-1, Integer.MAX_VALUE}) {
+            byte[] encoded = encode(smoothTable());
+            // The payload length follows the 20 byte header.
+            encoded[20] = (byte)(length >>> 24);
+            encoded[21] = (byte)(length >>> 16);
+            encoded[22] = (byte)(length >>> 8);
+            encoded[23] = (byte)length;
+            try {
+                CompactTableFormat.read(new ByteArrayInputStream(encoded), 2, ROW_LENGTH*ROWS, 10000);
+                fail("Payload length " + length + " accepted");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("out of range"));
+            }
+        }
+    }
+    
+    @Test(expected=IOException.class)
+    public void testRawFormatRejected() throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(raw);
+        for (int value : smoothTable()) {
+            out.writeInt(value);
+        }
+        CompactTableFormat.read(new ByteArrayInputStream(raw.toByteArray()), 2, ROW_LENGTH*ROWS, 10000);
+    }
+    
+    @Test
+    public void testReadRawData() throws IOException {
+        int[] values = smoothTable();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(raw);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+        
+        int[] result = Ostn02LookupTable.readRawData(new ByteArrayInputStream(raw.toByteArray()), values.length);
+        
+        assertArrayEquals(values, result);
+    }
+    
+    /**
+     * Shifts shaped roughly like OSTN02's, scaled by 10000.
+     */
+    private static int[] smoothTable() {
+        int[] values = new int[2*ROW_LENGTH*ROWS];
+        for (int north=0 ; north<ROWS ; north++) {
+            for (int east=0 ; east<ROW_LENGTH ; east++) {
+                int record = east + ROW_LENGTH*north;
+                values[2*record] = (int)Math.round(10000*(95 + 8*Math.sin(east/9.0) + 0.5*Math.cos(north/3.7)));
+                values[2*record+1] = (int)Math.round(10000*(-60 - 20*Math.cos(north/15.0) + 1.5*Math.sin(east/4.5)));
+            }
+        }
+        return values;
+    }
+    
+    private static byte[] encode(int[] values) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompactTableFormat.write(out, values, 2, ROW_LENGTH, 10000);
+        return out.toByteArray();
+    }
+}
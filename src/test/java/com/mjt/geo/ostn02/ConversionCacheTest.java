@@ -0,0 +1,176 @@
+package com.mjt.geo.ostn02;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class ConversionCacheTest {
+
+    public ConversionCacheTest() {
+    }
+
+    @Test
+    public void testConvertersUseCache() {
+        ConversionCache forward = new ConversionCache(1000, 1e-8, ConversionCache.Eviction.CLOCK);
+        ConversionCache reverse = new ConversionCache(1000, 0.001, ConversionCache.Eviction.LRU);
+        EastingNorthing expectedEN = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(51.50000001, -0.12);
+        LatitudeLongitude expectedLL = Osgb36ToEtrs89.TO_LATITUDE_LONGITUDE.convert(530000.001, 180000);
+        Etrs89ToOsgb36.setResultCache(forward);
+        Osgb36ToEtrs89.setResultCache(reverse);
+        try {
+            for (int i=0 ; i<3 ; i++) {
+                EastingNorthing en = new LatitudeLongitude(51.500000012, -0.120000003).toEastingNorthing();
+                assertEquals(expectedEN.getEast(), en.getEast(), 0);
+                assertEquals(expectedEN.getNorth(), en.getNorth(), 0);
+                LatitudeLongitude ll = new EastingNorthing(530000.0012, 179999.9996).toLatitudeLongitude();
+                assertEquals(expectedLL.getLat(), ll.getLat(), 0);
+                assertEquals(expectedLL.getLon(), ll.getLon(), 0);
+            }
+        } finally {
+            Etrs89ToOsgb36.setResultCache(null);
+            Osgb36ToEtrs89.setResultCache(null);
+        }
+        assertEquals(2, forward.getHits());
+        assertEquals(1, forward.getMisses());
+        assertEquals(2, reverse.getHits());
+        assertEquals(1, reverse.getSize());
+        assertEquals(2.0/3, reverse.getHitRate(), 1e-12);
+    }
+
+    @Test
+    public void testBounded() {
+        ConversionCache cache = new ConversionCache(100, 1, ConversionCache.Eviction.CLOCK);
+        assertEquals(128, cache.getCapacity());
+        double[] result = new double[2];
+        for (int i=0 ; i<1000 ; i++) {
+            result[0] = i;
+            cache.put(GridModel.OSTN02, i, 7, result);
+        }
+        assertTrue(cache.getSize() <= 128);
+        assertEquals(1000, cache.getSize() + cache.getEvictions());
+        int found = 0;
+        for (int i=0 ; i<1000 ; i++) {
+            if (cache.get(GridModel.OSTN02, i, 7, result)) {
+                assertEquals(i, result[0], 0);
+                found++;
+            }
+        }
+        assertEquals(cache.getSize(), found);
+    }
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() {
+        ConversionCache cache = new ConversionCache(8, 1, ConversionCache.Eviction.LRU);
+        double[] result = new double[2];
+        for (int i=0 ; i<8 ; i++) {
+            cache.put(GridModel.OSTN02, i, 0, result);
+        }
+        assertTrue(cache.get(GridModel.OSTN02, 0, 0, result));
+        cache.put(GridModel.OSTN02, 8, 0, result);
+        assertTrue(cache.get(GridModel.OSTN02, 0, 0, result));
+        assertFalse(cache.get(GridModel.OSTN02, 1, 0, result));
+        assertTrue(cache.get(GridModel.OSTN02, 8, 0, result));
+        assertTrue(cache.get(GridModel.OSTN02, 2, 0, result));
+        cache.put(GridModel.OSTN02, 9, 0, result);
+        assertFalse(cache.get(GridModel.OSTN02, 3, 0, result));
+        assertTrue(cache.get(GridModel.OSTN02, 2, 0, result));
+    }
+
+    @Test
+    public void testClockSparesReferencedEntries() {
+        ConversionCache cache = new ConversionCache(8, 1, ConversionCache.Eviction.CLOCK);
+        double[] result = new double[2];
+        for (int i=0 ; i<9 ; i++) {
+            cache.put(GridModel.OSTN02, i, 0, result);
+        }
+        assertFalse(cache.get(GridModel.OSTN02, 0, 0, result));
+        assertTrue(cache.get(GridModel.OSTN02, 1, 0, result));
+        cache.put(GridModel.OSTN02, 9, 0, result);
+        assertTrue(cache.get(GridModel.OSTN02, 1, 0, result));
+        assertFalse(cache.get(GridModel.OSTN02, 2, 0, result));
+        assertEquals(8, cache.getSize());
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void testQuantise() {
+        ConversionCache cache = new ConversionCache(16, 0.25, ConversionCache.Eviction.CLOCK);
+        assertEquals(1.25, cache.quantise(1.3), 0);
+        assertEquals(-1.25, cache.quantise(-1.2), 0);
+        assertTrue(Double.isNaN(cache.quantise(Double.NaN)));
+        assertEquals(1e300, cache.quantise(1e300), 0);
+
+        double[] result = {1, 2};
+        cache.put(GridModel.OSTN02, Double.NaN, 0, result);
+        cache.put(GridModel.OSTN02, 1e300, 0, result);
+        assertFalse(cache.get(GridModel.OSTN02, Double.NaN, 0, result));
+        assertFalse(cache.get(GridModel.OSTN02, 1e300, 0, result));
+        assertEquals(0, cache.getSize());
+        cache.put(GridModel.OSTN02, 1.3, 0, result);
+        assertTrue(cache.get(GridModel.OSTN02, 1.2, 0.1, result));
+    }
+
+    @Test
+    public void testClear() {
+        ConversionCache cache = new ConversionCache(64, 1, ConversionCache.Eviction.LRU);
+        double[] result = new double[2];
+        for (int i=0 ; i<20 ; i++) {
+            cache.put(GridModel.OSTN02, i, i, result);
+        }
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertFalse(cache.get(GridModel.OSTN02, 3, 3, result));
+        cache.resetStatistics();
+        assertEquals(0, cache.getMisses());
+        assertEquals(0, cache.getHitRate(), 0);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testZeroResolution() {
+        new ConversionCache(16, 0, ConversionCache.Eviction.LRU);
+    }
+
+    @Test
+    public void testConcurrentReadersSeeWholeEntries() throws Exception {
+        final ConversionCache cache = new ConversionCache(64, 1, ConversionCache.Eviction.CLOCK);
+        final AtomicInteger torn = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t=0 ; t<4 ; t++) {
+            final int seed = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    double[] result = new double[2];
+                    for (int i=0 ; i<200000 ; i++) {
+                        int key = random.nextInt(500);
+                        if (cache.get(GridModel.OSTN02, key, -key, result)) {
+                            if (result[0] != key || result[1] != 3*key)
+                                torn.incrementAndGet();
+                        } else {
+                            result[0] = key;
+                            result[1] = 3*key;
+                            cache.put(GridModel.OSTN02, key, -key, result);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, torn.get());
+        assertTrue(cache.getSize() <= cache.getCapacity());
+    }
+
+}
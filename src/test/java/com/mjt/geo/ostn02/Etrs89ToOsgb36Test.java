@@ -1,5 +1,10 @@
 package com.mjt.geo.ostn02;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -25,6 +30,282 @@ public class Etrs89ToOsgb36Test {
         assertEquals(expResult.getNorth(), result.getNorth(), 0.001);
     }
     
+    @Test
+    public void testConvertArrays() {
+        double[] latitudes = {0, 52.658007833, 51.511547, 55.5, 0};
+        double[] longitudes = {0, 1.716073973, -0.151412, -3.25, 0};
+        double[] eastings = new double[4];
+        double[] northings = new double[4];
+        Wgs84ToOstn02Impl instance = new Wgs84ToOstn02Impl();
+        
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 1, eastings, northings, 1, 3);
+        
+        assertEquals(0, eastings[0], 0);
+        for (int i=1 ; i<4 ; i++) {
+            EastingNorthing expResult = instance.convert(latitudes[i], longitudes[i]);
+            assertEquals(expResult.getEast(), eastings[i], 0);
+            assertEquals(expResult.getNorth(), northings[i], 0);
+        }
+    }
+    
+    @Test
+    public void testConvertZOrderedMatchesConvert() {
+        Random random = new Random(7);
+        int length = 5000;
+        double[] latitudes = new double[length+1];
+        double[] longitudes = new double[length+1];
+        for (int i=1 ; i<=length ; i++) {
+            latitudes[i] = 49.9 + random.nextDouble()*10.8;
+            longitudes[i] = -7.5 + random.nextDouble()*9.3;
+        }
+        double[] eastings = new double[length];
+        double[] northings = new double[length];
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 1, eastings, northings, 0, length);
+        
+        double[] zEastings = new double[length];
+        double[] zNorthings = new double[length];
+        Etrs89ToOsgb36.convertZOrdered(latitudes, longitudes, 1, zEastings, zNorthings, 0, length);
+        assertArrayEquals(eastings, zEastings, 0);
+        assertArrayEquals(northings, zNorthings, 0);
+        
+        Etrs89ToOsgb36.convertZOrdered(latitudes, longitudes, 1, latitudes, longitudes, 1, length);
+        assertArrayEquals(eastings, Arrays.copyOfRange(latitudes, 1, length+1), 0);
+        assertArrayEquals(northings, Arrays.copyOfRange(longitudes, 1, length+1), 0);
+    }
+    
+    @Test
+    public void testConvertRasterMatchesConvert() {
+        int width = 150;
+        int height = 90;
+        double[] eastings = new double[width*height];
+        double[] northings = new double[width*height];
+        Etrs89ToOsgb36.convertRaster(51.6, -0.5, -0.002, 0.003, width, height, eastings, northings,
+                new ForkJoinPool(3));
+        
+        double[] latitudes = new double[width*height];
+        double[] longitudes = new double[width*height];
+        for (int row=0 ; row<height ; row++) {
+            for (int column=0 ; column<width ; column++) {
+                latitudes[column+width*row] = 51.6 + row*-0.002;
+                longitudes[column+width*row] = -0.5 + column*0.003;
+            }
+        }
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, latitudes, longitudes, 0, width*height);
+        assertArrayEquals(latitudes, eastings, 0);
+        assertArrayEquals(longitudes, northings, 0);
+    }
+    
+    @Test
+    public void testConvertEmptyRaster() {
+        Etrs89ToOsgb36.convertRaster(51.6, -0.5, 0.01, 0.01, 0, 5, new double[0], new double[0]);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testConvertRasterNegativeSize() {
+        Etrs89ToOsgb36.convertRaster(51.6, -0.5, 0.01, 0.01, -1, 5, new double[10], new double[10]);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testConvertRasterTooLarge() {
+        // 65536*65537 wraps to 65536 as an int.
+        Etrs89ToOsgb36.convertRaster(51.6, -0.5, 0.01, 0.01, 65536, 65537, new double[65536], new double[65536]);
+    }
+    
+    @Test
+    public void testConvertInterleavedInPlace() {
+        double[] points = {52.658007833, 1.716073973, 51.511547, -0.151412};
+        Wgs84ToOstn02Impl instance = new Wgs84ToOstn02Impl();
+        EastingNorthing first = instance.convert(points[0], points[1]);
+        EastingNorthing second = instance.convert(points[2], points[3]);
+        
+        Etrs89ToOsgb36.convertInterleaved(points, 0, points, 0, 2);
+        
+        assertEquals(first.getEast(), points[0], 0);
+        assertEquals(first.getNorth(), points[1], 0);
+        assertEquals(second.getEast(), points[2], 0);
+        assertEquals(second.getNorth(), points[3], 0);
+    }
+    
+    @Test
+    public void testConvertDirectBufferColumns() {
+        double[] latitudes = {52.658007833, 51.511547, 55.5};
+        double[] longitudes = {1.716073973, -0.151412, -3.25};
+        double[] eastings = new double[3];
+        double[] northings = new double[3];
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, eastings, northings, 0, 3);
+        
+        ByteBuffer in = ByteBuffer.allocateDirect(56).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0 ; i<3 ; i++) {
+            in.putDouble(8+8*i, latitudes[i]);
+            in.putDouble(32+8*i, longitudes[i]);
+        }
+        ByteBuffer latitudeColumn = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        latitudeColumn.position(8);
+        latitudeColumn = latitudeColumn.slice().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer longitudeColumn = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        longitudeColumn.position(32);
+        longitudeColumn = longitudeColumn.slice().order(ByteOrder.LITTLE_ENDIAN);
+        // Output records of easting, northing and 16 other bytes.
+        ByteBuffer out = ByteBuffer.allocateDirect(96);
+        ByteBuffer northOut = out.duplicate();
+        northOut.position(8);
+        northOut = northOut.slice();
+        
+        Etrs89ToOsgb36.convert(latitudeColumn, longitudeColumn, 0, 8, out, northOut, 0, 32, 3);
+        
+        assertEquals(0, latitudeColumn.position());
+        for (int i=0 ; i<3 ; i++) {
+            assertEquals(eastings[i], out.getDouble(32*i), 0);
+            assertEquals(northings[i], out.getDouble(32*i+8), 0);
+        }
+        
+        Etrs89ToOsgb36.convert(latitudeColumn, longitudeColumn, 0, 8, latitudeColumn, longitudeColumn, 0, 8, 3);
+        for (int i=0 ; i<3 ; i++) {
+            assertEquals(eastings[i], latitudeColumn.getDouble(8*i), 0);
+            assertEquals(northings[i], longitudeColumn.getDouble(8*i), 0);
+        }
+    }
+    
+    @Test
+    public void testConvertInterleavedBufferInPlace() {
+        double[] points = {52.658007833, 1.716073973, 51.511547, -0.151412};
+        double[] expected = new double[4];
+        Etrs89ToOsgb36.convertInterleaved(points, 0, expected, 0, 2);
+        
+        // Records of latitude, longitude and a height that isn't touched.
+        ByteBuffer buffer = ByteBuffer.allocate(4+2*24).order(ByteOrder.BIG_ENDIAN);
+        for (int i=0 ; i<2 ; i++) {
+            buffer.putDouble(4+24*i, points[2*i]);
+            buffer.putDouble(12+24*i, points[2*i+1]);
+            buffer.putDouble(20+24*i, 100+i);
+        }
+        
+        Etrs89ToOsgb36.convertInterleaved(buffer, 4, 24, buffer, 4, 24, 2);
+        
+        for (int i=0 ; i<2 ; i++) {
+            assertEquals(expected[2*i], buffer.getDouble(4+24*i), 0);
+            assertEquals(expected[2*i+1], buffer.getDouble(12+24*i), 0);
+            assertEquals(100+i, buffer.getDouble(20+24*i), 0);
+        }
+        assertEquals(0, buffer.position());
+    }
+    
+    @Test(expected=IndexOutOfBoundsException.class)
+    public void testConvertBufferOutOfRange() {
+        ByteBuffer buffer = ByteBuffer.allocate(40);
+        Etrs89ToOsgb36.convertInterleaved(buffer, 0, 16, buffer, 0, 16, 3);
+    }
+    
+    @Test(expected=ArrayIndexOutOfBoundsException.class)
+    public void testConvertArraysOutOfRange() {
+        double[] in = new double[4];
+        double[] out = new double[3];
+        Etrs89ToOsgb36.convert(in, in, 0, out, out, 0, 4);
+    }
+    
+    @Test
+    public void testConvertWithHeights() {
+        double[] latitudes = {52.658007833, 51.511547, 55.5};
+        double[] longitudes = {1.716073973, -0.151412, -3.25};
+        double[] heights = {108.05, 60, -10};
+        double[] eastings = new double[3];
+        double[] northings = new double[3];
+        double[] orthometric = new double[3];
+        int[] flags = new int[3];
+        double[] expectedEast = new double[3];
+        double[] expectedNorth = new double[3];
+        
+        Etrs89ToOsgb36.convert(latitudes, longitudes, heights, 0, eastings, northings, orthometric, flags, 0, 3);
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, expectedEast, expectedNorth, 0, 3);
+        
+        double[] eastNorth = new double[2];
+        for (int i=0 ; i<3 ; i++) {
+            assertEquals(expectedEast[i], eastings[i], 0);
+            assertEquals(expectedNorth[i], northings[i], 0);
+            TransverseMercator.toEastingNorthing(latitudes[i], longitudes[i], eastNorth, 
+                    new double[TransverseMercator.FORWARD_TERMS]);
+            double geoid = Ostn02LookupTable.getGeoidHeight(eastNorth[0], eastNorth[1]);
+            assertEquals(heights[i]-geoid, orthometric[i], 1e-9);
+            assertEquals(1, flags[i]);
+        }
+    }
+    
+    @Test
+    public void testDoublePrecision() {
+        double[] latitudes = {52.658007833, 51.511547, 55.5, 60.8};
+        double[] longitudes = {1.716073973, -0.151412, -3.25, -0.9};
+        double[] eastings = new double[4];
+        double[] northings = new double[4];
+        double[] expectedEast = new double[4];
+        double[] expectedNorth = new double[4];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, expectedEast, expectedNorth, 0, 4);
+        Ostn02LookupTable.setPrecision(Ostn02LookupTable.Precision.DOUBLE);
+        try {
+            Etrs89ToOsgb36.convert(latitudes, longitudes, 0, eastings, northings, 0, 4);
+        } finally {
+            Ostn02LookupTable.setPrecision(Ostn02LookupTable.Precision.FLOAT);
+        }
+        
+        for (int i=0 ; i<4 ; i++) {
+            TransverseMercator.toEastingNorthing(latitudes[i], longitudes[i], shift, terms);
+            double east = shift[0];
+            double north = shift[1];
+            Ostn02LookupTable.getShiftFrom(east, north, shift);
+            assertEquals(east+shift[0], eastings[i], 0);
+            assertEquals(north+shift[1], northings[i], 0);
+            assertEquals(expectedEast[i], eastings[i], 0.001);
+            assertEquals(expectedNorth[i], northings[i], 0.001);
+        }
+    }
+    
+    @Test
+    public void testConvertToSink() {
+        MutableCoordinate holder = new MutableCoordinate();
+        Etrs89ToOsgb36.convert(52.658007833, 1.716073973, holder);
+        EastingNorthing expResult = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.658007833, 1.716073973);
+        assertEquals(expResult.getEast(), holder.getFirst(), 0);
+        assertEquals(expResult.getNorth(), holder.getSecond(), 0);
+    }
+    
+    @Test
+    public void testSharedConverterAcrossThreads() throws Exception {
+        final double[] latitudes = new double[1000];
+        final double[] longitudes = new double[1000];
+        final double[] eastings = new double[1000];
+        final double[] northings = new double[1000];
+        for (int i=0 ; i<latitudes.length ; i++) {
+            latitudes[i] = 50 + i*0.008;
+            longitudes[i] = -5 + i*0.006;
+        }
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, eastings, northings, 0, latitudes.length);
+        
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int t=0 ; t<threads.length ; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int repeat=0 ; repeat<20 ; repeat++) {
+                        for (int i=offset ; i<latitudes.length ; i+=3) {
+                            EastingNorthing result = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(latitudes[i], longitudes[i]);
+                            if (result.getEast() != eastings[i] || result.getNorth() != northings[i])
+                                failed[0] = true;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed[0]);
+    }
+    
     public class Wgs84ToOstn02Impl extends Etrs89ToOsgb36<EastingNorthing> {
         public EastingNorthing produceOutput(double east, double north) {
             return new EastingNorthing(east,north);
@@ -0,0 +1,290 @@
+package com.mjt.geo.ostn02;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class GridModelTest {
+
+    public GridModelTest() {
+    }
+
+    /**
+     * A 100km square grid at 10km spacing, shifting everything 100m east and
+     * 50m north.
+     */
+    private static GridModel constantModel() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i=0 ; i<11*11 ; i++) {
+            out.writeInt(100000);
+            out.writeInt(50000);
+        }
+        return GridModel.read("Constant", new ByteArrayInputStream(bytes.toByteArray()),
+                400000, 200000, 10000, 11, 11, 1000);
+    }
+
+    @Test
+    public void testGeometry() throws IOException {
+        GridModel model = constantModel();
+        assertEquals("Constant", model.getName());
+        assertEquals(400000, model.getMinEasting(), 0);
+        assertEquals(500000, model.getMaxEasting(), 0);
+        assertEquals(300000, model.getMaxNorthing(), 0);
+        assertEquals(1000, model.getScaleFactor());
+        assertTrue(model.contains(450000, 250000));
+        assertFalse(model.contains(399999, 250000));
+
+        double[] shift = new double[2];
+        model.interpolate(456789.5, 234567.5, shift);
+        assertEquals(100, shift[0], 1e-9);
+        assertEquals(50, shift[1], 1e-9);
+        float[] floatShift = new float[2];
+        model.interpolate(456789.5f, 234567.5f, floatShift);
+        assertEquals(100, floatShift[0], 1e-4);
+        assertEquals(50, floatShift[1], 1e-4);
+    }
+
+    @Test
+    public void testDoublePrecisionScale() throws IOException {
+        // 100000001 isn't representable as a float.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i=0 ; i<4*4 ; i++) {
+            out.writeInt(100000001);
+            out.writeInt(-100000001);
+        }
+        GridModel model = GridModel.read("Fine", new ByteArrayInputStream(bytes.toByteArray()),
+                0, 0, 1000, 4, 4, 100000001);
+
+        double[] shift = new double[2];
+        model.interpolate(250.0, 750.0, shift);
+        assertEquals(1, shift[0], 1e-12);
+        assertEquals(-1, shift[1], 1e-12);
+        
+        double[] cached = new double[2];
+        new ShiftCellCache().getShiftFrom(model, 250.0, 750.0, cached);
+        assertEquals(shift[0], cached[0], 0);
+        assertEquals(shift[1], cached[1], 0);
+        
+        ReverseShiftGrid.build(model, ForkJoinPool.commonPool()).getShiftTo(1500.0, 1500.0, shift);
+        assertEquals(1, shift[0], 1e-12);
+        assertEquals(-1, shift[1], 1e-12);
+    }
+
+    @Test
+    public void testLoadReportsSource() throws IOException {
+        final List<String> loaded = new ArrayList<String>();
+        MetricsListener listener = new MetricsListener() {
+            @Override
+            public void converted(Ostn02Metrics.Direction direction, int points, long nanos) {
+            }
+
+            @Override
+            public void outOfGrid(Ostn02Metrics.Direction direction, double easting, double northing) {
+            }
+
+            @Override
+            public void tableLoaded(String resource, long nanos) {
+                loaded.add(resource);
+            }
+        };
+        String file = URLDecoder.decode(GridModelTest.class.getResource("/ostn02.bin").getPath(), "UTF-8");
+        boolean enabled = Ostn02Metrics.isEnabled();
+        Ostn02Metrics.addListener(listener);
+        Ostn02Metrics.setEnabled(true);
+        System.setProperty("ostn02.file", file);
+        try {
+            Ostn02LookupTable.loadData();
+        } finally {
+            System.clearProperty("ostn02.file");
+            Ostn02Metrics.setEnabled(enabled);
+            Ostn02Metrics.removeListener(listener);
+        }
+        assertEquals(1, loaded.size());
+        assertEquals(file, loaded.get(0));
+    }
+
+    @Test
+    public void testReadOstn02Grid() throws IOException {
+        InputStream in = GridModelTest.class.getResourceAsStream("/ostn02.bin");
+        GridModel model;
+        try {
+            model = GridModel.read("Copy", in);
+        } finally {
+            in.close();
+        }
+
+        double[] expected = new double[2];
+        double[] actual = new double[2];
+        for (double e=1500 ; e<700000 ; e+=33333) {
+            for (double n=2500 ; n<1250000 ; n+=55555) {
+                GridModel.OSTN02.interpolate(e, n, expected);
+                model.interpolate(e, n, actual);
+                assertEquals(expected[0], actual[0], 0);
+                assertEquals(expected[1], actual[1], 0);
+            }
+        }
+    }
+
+    @Test
+    public void testSwapModel() throws IOException {
+        GridModel model = constantModel();
+        double[] eastNorth = new double[2];
+        TransverseMercator.toEastingNorthing(52.2, -1.5, eastNorth, new double[TransverseMercator.FORWARD_TERMS]);
+
+        assertSame(GridModel.OSTN02, Ostn02LookupTable.setGridModel(model));
+        try {
+            assertSame(model, Ostn02LookupTable.getGridModel());
+            EastingNorthing en = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.2, -1.5);
+            assertEquals(eastNorth[0]+100, en.getEast(), 0.001);
+            assertEquals(eastNorth[1]+50, en.getNorth(), 0.001);
+
+            double[] latLon = new double[2];
+            TransverseMercator.toLatitudeLongitude(en.getEast()-100, en.getNorth()-50, latLon,
+                    new double[TransverseMercator.INVERSE_TERMS]);
+            LatitudeLongitude ll = Osgb36ToEtrs89.TO_LATITUDE_LONGITUDE.convert(en.getEast(), en.getNorth());
+            assertEquals(latLon[0], ll.getLat(), 1e-8);
+            assertEquals(latLon[1], ll.getLon(), 1e-8);
+        } finally {
+            Ostn02LookupTable.setGridModel(GridModel.OSTN02);
+        }
+        assertSame(GridModel.OSTN02, Ostn02LookupTable.getGridModel());
+    }
+
+    @Test
+    public void testConverterWithModel() throws IOException {
+        GridModel model = constantModel();
+        Etrs89ToOsgb36<EastingNorthing> converter = new Etrs89ToOsgb36<EastingNorthing>(model) {
+            @Override
+            protected EastingNorthing produceOutput(double east, double north) {
+                return new EastingNorthing(east, north);
+            }
+        };
+        double[] eastNorth = new double[2];
+        TransverseMercator.toEastingNorthing(52.2, -1.5, eastNorth, new double[TransverseMercator.FORWARD_TERMS]);
+
+        EastingNorthing en = converter.convert(52.2, -1.5);
+        assertEquals(eastNorth[0]+100, en.getEast(), 0.001);
+        assertEquals(eastNorth[1]+50, en.getNorth(), 0.001);
+
+        EastingNorthing current = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.2, -1.5);
+        double[] shift = new double[2];
+        GridModel.OSTN02.interpolate(eastNorth[0], eastNorth[1], shift);
+        assertEquals(eastNorth[0]+shift[0], current.getEast(), 0.001);
+        assertEquals(eastNorth[1]+shift[1], current.getNorth(), 0.001);
+    }
+
+    @Test
+    public void testBatchWithModel() throws IOException {
+        GridModel model = constantModel();
+        double[] lat = {52.2, 52.21, 52.3, 51.9};
+        double[] lon = {-1.5, -1.49, -1.2, -1.7};
+        int n = lat.length;
+        double[] east = new double[n];
+        double[] north = new double[n];
+        double[] ostnEast = new double[n];
+        double[] ostnNorth = new double[n];
+        double[] zEast = new double[n];
+        double[] zNorth = new double[n];
+        Etrs89ToOsgb36.convert(model, lat, lon, 0, east, north, 0, n, new ShiftCellCache());
+        Etrs89ToOsgb36.convert(GridModel.OSTN02, lat, lon, 0, ostnEast, ostnNorth, 0, n, new ShiftCellCache());
+        Etrs89ToOsgb36.convertZOrdered(model, lat, lon, 0, zEast, zNorth, 0, n);
+        
+        double[] eastNorth = new double[2];
+        double[] shift = new double[2];
+        double[] terms = new double[TransverseMercator.FORWARD_TERMS];
+        for (int i=0 ; i<n ; i++) {
+            TransverseMercator.toEastingNorthing(lat[i], lon[i], eastNorth, terms);
+            assertEquals(eastNorth[0]+100, east[i], 0.001);
+            assertEquals(eastNorth[1]+50, north[i], 0.001);
+            assertEquals(east[i], zEast[i], 0);
+            assertEquals(north[i], zNorth[i], 0);
+            GridModel.OSTN02.interpolate(eastNorth[0], eastNorth[1], shift);
+            assertEquals(eastNorth[0]+shift[0], ostnEast[i], 0.001);
+            assertEquals(eastNorth[1]+shift[1], ostnNorth[i], 0.001);
+        }
+        
+        double[] latOut = new double[n];
+        double[] lonOut = new double[n];
+        Osgb36ToEtrs89.convert(model, east, north, 0, latOut, lonOut, 0, n, new ShiftCellCache());
+        for (int i=0 ; i<n ; i++) {
+            assertEquals(lat[i], latOut[i], 1e-8);
+            assertEquals(lon[i], lonOut[i], 1e-8);
+        }
+        assertSame(GridModel.OSTN02, Ostn02LookupTable.getGridModel());
+    }
+
+    @Test
+    public void testShiftCellCacheRebinds() throws IOException {
+        GridModel model = constantModel();
+        ShiftCellCache cache = new ShiftCellCache();
+        double[] expected = new double[2];
+        double[] shift = new double[2];
+        GridModel.OSTN02.interpolate(456789.5, 234567.5, expected);
+
+        cache.getShiftFrom(GridModel.OSTN02, 456789.5, 234567.5, shift);
+        assertEquals(expected[0], shift[0], 1e-6);
+        cache.getShiftFrom(model, 456789.5, 234567.5, shift);
+        assertEquals(100, shift[0], 1e-6);
+        assertEquals(50, shift[1], 1e-6);
+        cache.getShiftFrom(GridModel.OSTN02, 456789.5, 234567.5, shift);
+        assertEquals(expected[0], shift[0], 1e-6);
+        assertEquals(expected[1], shift[1], 1e-6);
+    }
+
+    @Test
+    public void testReverseGridOnlyUsedWithItsModel() throws IOException {
+        GridModel model = constantModel();
+        double east = 456789.5;
+        double north = 234567.5;
+        double[] latLon = new double[2];
+        TransverseMercator.toLatitudeLongitude(east-100, north-50, latLon, new double[TransverseMercator.INVERSE_TERMS]);
+
+        Ostn02LookupTable.setReverseGrid(ReverseShiftGrid.build());
+        Ostn02LookupTable.setGridModel(model);
+        try {
+            LatitudeLongitude ll = Osgb36ToEtrs89.TO_LATITUDE_LONGITUDE.convert(east, north);
+            assertEquals(latLon[0], ll.getLat(), 1e-8);
+            assertEquals(latLon[1], ll.getLon(), 1e-8);
+        } finally {
+            Ostn02LookupTable.setGridModel(GridModel.OSTN02);
+            Ostn02LookupTable.setReverseGrid(null);
+        }
+    }
+
+    @Test
+    public void testResultCacheKeyedByModel() throws IOException {
+        GridModel model = constantModel();
+        ConversionCache cache = new ConversionCache(64, 1e-8, ConversionCache.Eviction.LRU);
+        Etrs89ToOsgb36.setResultCache(cache);
+        try {
+            EastingNorthing before = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.2, -1.5);
+            Ostn02LookupTable.setGridModel(model);
+            EastingNorthing swapped;
+            try {
+                swapped = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.2, -1.5);
+            } finally {
+                Ostn02LookupTable.setGridModel(GridModel.OSTN02);
+            }
+            EastingNorthing after = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.2, -1.5);
+
+            assertEquals(1, cache.getHits());
+            assertEquals(2, cache.getSize());
+            assertFalse(Math.abs(before.getEast()-swapped.getEast()) < 0.001);
+            assertEquals(before.getEast(), after.getEast(), 0);
+            assertEquals(before.getNorth(), after.getNorth(), 0);
+        } finally {
+            Etrs89ToOsgb36.setResultCache(null);
+        }
+    }
+
+}
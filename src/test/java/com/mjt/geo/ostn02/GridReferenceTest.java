@@ -0,0 +1,145 @@
+package com.mjt.geo.ostn02;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class GridReferenceTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public GridReferenceTest() {
+    }
+
+    @Test
+    public void testParse() {
+        assertParses(528376, 180799, "TQ 28376 80799");
+        assertParses(528376, 180799, "TQ2837680799");
+        assertParses(528376, 180799, "  tq 28376\t80799 ");
+        assertParses(528370, 180790, "TQ 2837 8079");
+        assertParses(528000, 180000, "TQ2880");
+        assertParses(500000, 100000, "TQ");
+        assertParses(0, 0, "SV 00000 00000");
+        assertParses(651409, 313177, "TG 51409 13177");
+        assertParses(465000, 1210000, "HP 65 10");
+        assertParses(699999, 1299999, "JM 99999 99999");
+    }
+
+    @Test
+    public void testParseRejects() {
+        String[] invalid = {"", "T", "TQ 283 80799", "TQ 2837680", "TQ 28 37 80", "TI 28 80",
+            "AA 28 80", "TQ 28376x80799", "TQ 283768 807991", "1Q 28 80", "ZZ 00 00"};
+        MutableCoordinate result = new MutableCoordinate();
+        for (String reference : invalid) {
+            try {
+                GridReference.parse(reference, 0, reference.length(), result);
+                fail("Parsed " + reference);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testParseBytes() {
+        byte[] bytes = "id,TQ 28376 80799,name".getBytes(ASCII);
+        MutableCoordinate result = new MutableCoordinate();
+        GridReference.parse(bytes, 3, 17, result);
+        assertEquals(528376, result.getFirst(), 0);
+        assertEquals(180799, result.getSecond(), 0);
+    }
+
+    @Test
+    public void testFormat() {
+        StringBuilder out = new StringBuilder();
+        GridReference.format(528376.804, 180799.396, 10, out);
+        assertEquals("TQ 28376 80799", out.toString());
+        out.setLength(0);
+        GridReference.format(528376.804, 180799.396, 6, out);
+        assertEquals("TQ 283 807", out.toString());
+        out.setLength(0);
+        GridReference.format(528376.804, 180799.396, 0, out);
+        assertEquals("TQ", out.toString());
+        out.setLength(0);
+        GridReference.format(465000, 1210000, 4, out);
+        assertEquals("HP 65 10", out.toString());
+        assertEquals("TG 51409 13177", new EastingNorthing(651409.903, 313177.27).toGridReference(10));
+
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        GridReference.format(528376.804, 180799.396, 8, buffer);
+        assertEquals("TQ 2837 8079", new String(buffer.array(), 0, buffer.position(), ASCII));
+
+        try {
+            GridReference.format(-1, 180799, 10, out);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            GridReference.format(528376, 180799, 7, out);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(46);
+        StringBuilder out = new StringBuilder();
+        MutableCoordinate result = new MutableCoordinate();
+        for (int i=0 ; i<10000 ; i++) {
+            double east = random.nextDouble()*700000;
+            double north = random.nextDouble()*1300000;
+            int digits = 2*random.nextInt(6);
+            out.setLength(0);
+            GridReference.format(east, north, digits, out);
+            assertEquals(GridReference.formattedLength(digits), out.length());
+            GridReference.parse(out, 0, out.length(), result);
+            double precision = Math.pow(10, 5-digits/2);
+            assertEquals(Math.floor(east/precision)*precision, result.getFirst(), 0);
+            assertEquals(Math.floor(north/precision)*precision, result.getSecond(), 0);
+        }
+    }
+
+    @Test
+    public void testBatch() {
+        String[] references = {"TQ 28376 80799", "not one", null, "TG 51409 13177"};
+        double[] eastings = new double[5];
+        double[] northings = new double[5];
+        int invalid = GridReference.parse(references, 0, eastings, northings, 1, references.length);
+        assertEquals(2, invalid);
+        assertEquals(528376, eastings[1], 0);
+        assertTrue(Double.isNaN(eastings[2]));
+        assertTrue(Double.isNaN(northings[3]));
+        assertEquals(313177, northings[4], 0);
+
+        StringBuilder out = new StringBuilder();
+        GridReference.format(eastings, northings, 4, 1, 6, out, '\n');
+        assertEquals("TG 514 131\n", out.toString());
+
+        double[] latitudes = new double[4];
+        double[] longitudes = new double[4];
+        assertEquals(2, GridReference.toLatitudeLongitude(references, 0, latitudes, longitudes, 0, 4));
+        LatitudeLongitude expected = new EastingNorthing(528376, 180799).toLatitudeLongitude();
+        assertEquals(expected.getLat(), latitudes[0], 0);
+        assertEquals(expected.getLon(), longitudes[0], 0);
+        assertTrue(Double.isNaN(latitudes[1]));
+        assertTrue(Double.isNaN(longitudes[2]));
+    }
+
+    private static void assertParses(double east, double north, String reference) {
+        MutableCoordinate result = new MutableCoordinate();
+        GridReference.parse(reference, 0, reference.length(), result);
+        assertEquals(reference, east, result.getFirst(), 0);
+        assertEquals(reference, north, result.getSecond(), 0);
+        EastingNorthing parsed = EastingNorthing.fromGridReference(reference);
+        assertEquals(east, parsed.getEast(), 0);
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.mjt.geo.ostn02;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class LatencyHistogramTest {
+
+    public LatencyHistogramTest() {
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(0.5), 0);
+        for (int i=0 ; i<99 ; i++) {
+            histogram.record(3000);
+        }
+        histogram.record(1000000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals((99*3000+1000000)/100/1e3, histogram.getMeanMicros(), 1e-9);
+        assertEquals(1000, histogram.getMaxMicros(), 0);
+        // 3000ns is in the bucket from 2048 to 4096.
+        assertEquals(4.096, histogram.getPercentileMicros(0.5), 0);
+        assertEquals(4.096, histogram.getPercentileMicros(0.99), 0);
+        assertEquals(1048.576, histogram.getPercentileMicros(1), 0);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros(), 0);
+    }
+
+}
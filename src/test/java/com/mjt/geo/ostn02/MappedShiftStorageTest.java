@@ -0,0 +1,128 @@
+package com.mjt.geo.ostn02;
+
+import java.io.*;
+import java.net.URL;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class MappedShiftStorageTest {
+    
+    public MappedShiftStorageTest() {
+    }
+
+    @Test
+    public void testMap() throws IOException {
+        int[] values = {1028790, -782380, 0, Integer.MAX_VALUE, Integer.MIN_VALUE, 42};
+        File file = writeFile(values);
+        
+        MappedShiftStorage instance = MappedShiftStorage.map(file, values.length);
+        for (int i=0 ; i<values.length ; i++) {
+            assertEquals(values[i], instance.get(i));
+        }
+    }
+    
+    @Test(expected=IOException.class)
+    public void testMapWrongSize() throws IOException {
+        File file = writeFile(new int[] {1, 2, 3});
+        MappedShiftStorage.map(file, 4);
+    }
+    
+    @Test
+    public void testUseMappedData() throws IOException {
+        float[][] points = {{651307.003F, 313255.686F}, {528376.804F, 180799.396F}, {150000, 950000}};
+        float[][] expected = new float[points.length][2];
+        for (int i=0 ; i<points.length ; i++) {
+            Ostn02LookupTable.getShiftFrom(points[i][0], points[i][1], expected[i]);
+        }
+        
+        GridModel previous = Ostn02LookupTable.getGridModel();
+        Ostn02LookupTable.useMappedData();
+        try {
+            float[] shift = new float[2];
+            for (int i=0 ; i<points.length ; i++) {
+                Ostn02LookupTable.getShiftFrom(points[i][0], points[i][1], shift);
+                assertEquals(expected[i][0], shift[0], 0);
+                assertEquals(expected[i][1], shift[1], 0);
+            }
+        } finally {
+            Ostn02LookupTable.setGridModel(previous);
+        }
+    }
+    
+    @Test
+    public void testExtractSharesFile() throws IOException {
+        int[] values = {1028790, -782380, (int)System.nanoTime()};
+        File jar = File.createTempFile("ostn02test", ".jar");
+        jar.deleteOnExit();
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+        zip.putNextEntry(new ZipEntry("table.bin"));
+        DataOutputStream out = new DataOutputStream(zip);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+        out.close();
+        URL url = new URL("jar:" + jar.toURI() + "!/table.bin");
+        
+        File first = MappedShiftStorage.extract(url, 4*values.length);
+        File second = MappedShiftStorage.extract(url, 4*values.length);
+        try {
+            assertEquals(first, second);
+            MappedShiftStorage instance = MappedShiftStorage.map(first, values.length);
+            for (int i=0 ; i<values.length ; i++) {
+                assertEquals(values[i], instance.get(i));
+            }
+        } finally {
+            first.delete();
+        }
+    }
+    
+    @Test
+    public void testExtractIgnoresPlantedFile() throws IOException {
+        int[] values = {1028790, -782380, (int)System.nanoTime()};
+        File jar = File.createTempFile("ostn02test", ".jar");
+        jar.deleteOnExit();
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+        zip.putNextEntry(new ZipEntry("table.bin"));
+        DataOutputStream out = new DataOutputStream(zip);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+        out.close();
+        URL url = new URL("jar:" + jar.toURI() + "!/table.bin");
+        
+        File extracted = MappedShiftStorage.extract(url, 4*values.length);
+        try {
+            // Someone plants wrong shifts of the right size under the same name.
+            out = new DataOutputStream(new FileOutputStream(extracted));
+            for (int value : values) {
+                out.writeInt(value+1);
+            }
+            out.close();
+            
+            File file = MappedShiftStorage.extract(url, 4*values.length);
+            MappedShiftStorage instance = MappedShiftStorage.map(file, values.length);
+            for (int i=0 ; i<values.length ; i++) {
+                assertEquals(values[i], instance.get(i));
+            }
+        } finally {
+            extracted.delete();
+        }
+    }
+    
+    private static File writeFile(int[] values) throws IOException {
+        File file = File.createTempFile("ostn02test", ".bin");
+        file.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        for (int value : values) {
+            out.writeInt(value);
+        }
+        out.close();
+        return file;
+    }
+}
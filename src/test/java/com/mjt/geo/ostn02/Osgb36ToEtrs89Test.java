@@ -1,5 +1,11 @@
 package com.mjt.geo.ostn02;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.Random;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -23,6 +29,214 @@ public class Osgb36ToEtrs89Test {
         assertEquals(1.716073973, result.getLon(), 0.00001);
     }
     
+    @Test
+    public void testPrecisionSelectsShift() {
+        double east = 651409.792;
+        double north = 313177.448;
+        double[] latLon = new double[2];
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        Osgb36ToEtrs89Impl instance = new Osgb36ToEtrs89Impl();
+        
+        // Single precision, the default, subtracts the forward shift as earlier versions did.
+        float[] floatShift = new float[2];
+        Ostn02LookupTable.getShiftFrom((float)east, (float)north, floatShift);
+        TransverseMercator.toLatitudeLongitude(east-floatShift[0], north-floatShift[1], latLon, terms);
+        LatitudeLongitude result = instance.convert(east, north);
+        assertEquals(latLon[0], result.getLat(), 0);
+        assertEquals(latLon[1], result.getLon(), 0);
+        
+        double[] shift = new double[2];
+        Ostn02LookupTable.getShiftTo(east, north, 0.0001, shift);
+        TransverseMercator.toLatitudeLongitude(east-shift[0], north-shift[1], latLon, terms);
+        Ostn02LookupTable.setPrecision(Ostn02LookupTable.Precision.DOUBLE);
+        try {
+            result = instance.convert(east, north);
+        } finally {
+            Ostn02LookupTable.setPrecision(Ostn02LookupTable.Precision.FLOAT);
+        }
+        assertEquals(latLon[0], result.getLat(), 1e-9);
+        assertEquals(latLon[1], result.getLon(), 1e-9);
+    }
+    
+    @Test
+    public void testConvertArrays() {
+        double[] eastings = {651409.792, 528376.804, 384000, 0};
+        double[] northings = {313177.448, 180799.396, 302000, 0};
+        double[] latitudes = new double[4];
+        double[] longitudes = new double[4];
+        Osgb36ToEtrs89Impl instance = new Osgb36ToEtrs89Impl();
+        
+        Osgb36ToEtrs89.convert(eastings, northings, 0, latitudes, longitudes, 1, 3);
+        
+        assertEquals(0, latitudes[0], 0);
+        for (int i=0 ; i<3 ; i++) {
+            LatitudeLongitude expResult = instance.convert(eastings[i], northings[i]);
+            assertEquals(expResult.getLat(), latitudes[i+1], 0);
+            assertEquals(expResult.getLon(), longitudes[i+1], 0);
+        }
+    }
+    
+    @Test
+    public void testConvertZOrderedMatchesConvert() {
+        Random random = new Random(7);
+        int length = 5000;
+        double[] eastings = new double[length+1];
+        double[] northings = new double[length+1];
+        for (int i=1 ; i<=length ; i++) {
+            eastings[i] = random.nextDouble()*700000;
+            northings[i] = random.nextDouble()*1250000;
+        }
+        double[] latitudes = new double[length];
+        double[] longitudes = new double[length];
+        Osgb36ToEtrs89.convert(eastings, northings, 1, latitudes, longitudes, 0, length);
+        
+        double[] zLatitudes = new double[length];
+        double[] zLongitudes = new double[length];
+        Osgb36ToEtrs89.convertZOrdered(eastings, northings, 1, zLatitudes, zLongitudes, 0, length);
+        assertArrayEquals(latitudes, zLatitudes, 0);
+        assertArrayEquals(longitudes, zLongitudes, 0);
+        
+        Osgb36ToEtrs89.convertZOrdered(eastings, northings, 1, eastings, northings, 1, length);
+        assertArrayEquals(latitudes, Arrays.copyOfRange(eastings, 1, length+1), 0);
+        assertArrayEquals(longitudes, Arrays.copyOfRange(northings, 1, length+1), 0);
+    }
+    
+    @Test
+    public void testConvertRasterMatchesConvertVectorised() {
+        int width = 130;
+        int height = 70;
+        double[] latitudes = new double[width*height];
+        double[] longitudes = new double[width*height];
+        Osgb36ToEtrs89.convertRaster(520000.5, 190000.5, 25, -25, width, height, latitudes, longitudes,
+                new ForkJoinPool(3));
+        
+        double[] eastings = new double[width*height];
+        double[] northings = new double[width*height];
+        for (int row=0 ; row<height ; row++) {
+            for (int column=0 ; column<width ; column++) {
+                eastings[column+width*row] = 520000.5 + column*25;
+                northings[column+width*row] = 190000.5 + row*-25;
+            }
+        }
+        Osgb36ToEtrs89.convertVectorised(eastings, northings, 0, eastings, northings, 0, width*height);
+        assertArrayEquals(eastings, latitudes, 0);
+        assertArrayEquals(northings, longitudes, 0);
+        
+        Osgb36ToEtrs89Impl instance = new Osgb36ToEtrs89Impl();
+        LatitudeLongitude expResult = instance.convert(520000.5 + 17*25, 190000.5 - 33*25);
+        assertEquals(expResult.getLat(), latitudes[17+width*33], 1e-8);
+        assertEquals(expResult.getLon(), longitudes[17+width*33], 1e-8);
+    }
+    
+    @Test(expected=ArrayIndexOutOfBoundsException.class)
+    public void testConvertRasterOutputTooShort() {
+        Osgb36ToEtrs89.convertRaster(520000, 190000, 25, 25, 10, 10, new double[100], new double[99]);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testConvertRasterTooLarge() {
+        // 65536*65537 wraps to 65536 as an int.
+        Osgb36ToEtrs89.convertRaster(520000, 190000, 25, 25, 65536, 65537, new double[65536], new double[65536]);
+    }
+    
+    @Test
+    public void testConvertInterleaved() {
+        double[] points = {651409.792, 313177.448, 528376.804, 180799.396};
+        double[] result = new double[6];
+        Osgb36ToEtrs89Impl instance = new Osgb36ToEtrs89Impl();
+        
+        Osgb36ToEtrs89.convertInterleaved(points, 0, result, 2, 2);
+        
+        LatitudeLongitude first = instance.convert(points[0], points[1]);
+        LatitudeLongitude second = instance.convert(points[2], points[3]);
+        assertEquals(first.getLat(), result[2], 0);
+        assertEquals(first.getLon(), result[3], 0);
+        assertEquals(second.getLat(), result[4], 0);
+        assertEquals(second.getLon(), result[5], 0);
+    }
+    
+    @Test
+    public void testConvertDirectBufferColumns() {
+        double[] eastings = {651409.792, 528376.804, 384000};
+        double[] northings = {313177.448, 180799.396, 302000};
+        double[] latitudes = new double[3];
+        double[] longitudes = new double[3];
+        Osgb36ToEtrs89.convert(eastings, northings, 0, latitudes, longitudes, 0, 3);
+        
+        ByteBuffer eastColumn = ByteBuffer.allocateDirect(24).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer northColumn = ByteBuffer.allocateDirect(24).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0 ; i<3 ; i++) {
+            eastColumn.putDouble(8*i, eastings[i]);
+            northColumn.putDouble(8*i, northings[i]);
+        }
+        
+        Osgb36ToEtrs89.convert(eastColumn, northColumn, 0, 8, eastColumn, northColumn, 0, 8, 3);
+        
+        for (int i=0 ; i<3 ; i++) {
+            assertEquals(latitudes[i], eastColumn.getDouble(8*i), 0);
+            assertEquals(longitudes[i], northColumn.getDouble(8*i), 0);
+        }
+    }
+    
+    @Test
+    public void testConvertInterleavedBuffer() {
+        double[] points = {651409.792, 313177.448, 528376.804, 180799.396};
+        double[] expected = new double[4];
+        Osgb36ToEtrs89.convertInterleaved(points, 0, expected, 0, 2);
+        
+        ByteBuffer in = ByteBuffer.allocate(32).order(ByteOrder.BIG_ENDIAN);
+        in.asDoubleBuffer().put(points);
+        ByteBuffer out = ByteBuffer.allocateDirect(8+2*20).order(ByteOrder.LITTLE_ENDIAN);
+        
+        Osgb36ToEtrs89.convertInterleaved(in, 0, 16, out, 8, 20, 2);
+        
+        for (int i=0 ; i<2 ; i++) {
+            assertEquals(expected[2*i], out.getDouble(8+20*i), 0);
+            assertEquals(expected[2*i+1], out.getDouble(16+20*i), 0);
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testConvertBufferStrideTooSmall() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        Osgb36ToEtrs89.convertInterleaved(buffer, 0, 8, buffer, 0, 16, 2);
+    }
+    
+    @Test
+    public void testConvertWithHeightsRoundTrip() {
+        double[] latitudes = {52.658007833, 51.511547, 55.5, 80};
+        double[] longitudes = {1.716073973, -0.151412, -3.25, 0};
+        double[] heights = {108.05, 60, -10, 0};
+        double[] eastings = new double[4];
+        double[] northings = new double[4];
+        double[] orthometric = new double[4];
+        double[] roundTrip = new double[4];
+        int[] flags = new int[4];
+        
+        Etrs89ToOsgb36.convert(latitudes, longitudes, heights, 0, eastings, northings, orthometric, null, 0, 4);
+        Osgb36ToEtrs89.convert(eastings, northings, orthometric, 0, eastings, northings, roundTrip, flags, 0, 4);
+        
+        for (int i=0 ; i<3 ; i++) {
+            assertEquals(latitudes[i], eastings[i], 0.000001);
+            assertEquals(longitudes[i], northings[i], 0.000001);
+            assertEquals(heights[i], roundTrip[i], 0.001);
+            assertEquals(1, flags[i]);
+        }
+        // Far outside OSGM02 coverage.
+        assertTrue(Double.isNaN(orthometric[3]));
+        assertTrue(Double.isNaN(roundTrip[3]));
+        assertEquals(0, flags[3]);
+    }
+    
+    @Test
+    public void testConvertToSink() {
+        MutableCoordinate holder = new MutableCoordinate();
+        Osgb36ToEtrs89.convert(651409.792, 313177.448, holder);
+        LatitudeLongitude expResult = Osgb36ToEtrs89.TO_LATITUDE_LONGITUDE.convert(651409.792, 313177.448);
+        assertEquals(expResult.getLat(), holder.getFirst(), 0);
+        assertEquals(expResult.getLon(), holder.getSecond(), 0);
+    }
+    
     public class Osgb36ToEtrs89Impl extends Osgb36ToEtrs89<LatitudeLongitude> {
         public LatitudeLongitude produceOutput(double latitude, double longitude) {
             return new LatitudeLongitude(latitude,longitude);
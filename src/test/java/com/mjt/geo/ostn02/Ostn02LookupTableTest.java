@@ -30,4 +30,93 @@ public class Ostn02LookupTableTest {
         assertEquals(102.789,result.getEastShift(),0.01);
         assertEquals(-78.238,result.getNorthShift(),0.01);
     }
+    
+    @Test
+    public void testGetShiftFromArray() {
+        float[] shift = new float[2];
+        float[][] points = {{651307.003F, 313255.686F}, {0, 0}, {700000, 1250000}, {123456.7F, 987654.3F}};
+        for (float[] point : points) {
+            Ostn02LookupTable.getShiftFrom(point[0], point[1], shift);
+            Shift expResult = Ostn02LookupTable.getShiftFrom(point[0], point[1]);
+            assertEquals(expResult.getEastShift(), shift[0], 0);
+            assertEquals(expResult.getNorthShift(), shift[1], 0);
+        }
+    }
+    
+    @Test
+    public void testGetShiftToArray() {
+        float[] shift = new float[2];
+        Ostn02LookupTable.getShiftTo(651409.792F, 313177.448F, shift);
+        assertEquals(102.789,shift[0],0.01);
+        assertEquals(-78.238,shift[1],0.01);
+    }
+    
+    @Test
+    public void testPreload() {
+        Ostn02LookupTable.preload();
+        Ostn02LookupTable.preload();
+        Shift result = Ostn02LookupTable.getShiftFrom(651307.003F, 313255.686F);
+        assertEquals(102.789,result.getEastShift(),0.01);
+    }
+    
+    @Test
+    public void testGetShiftFromDouble() {
+        double[] shift = new double[2];
+        Ostn02LookupTable.getShiftFrom(651307.003, 313255.686, shift);
+        assertEquals(102.789,shift[0],0.001);
+        assertEquals(-78.238,shift[1],0.001);
+    }
+    
+    @Test
+    public void testDoubleAgreesWithFloat() {
+        java.util.Random random = new java.util.Random(7);
+        double[] shift = new double[2];
+        float[] floatShift = new float[2];
+        for (int i=0 ; i<10000 ; i++) {
+            double east = 700000*random.nextDouble();
+            double north = 1250000*random.nextDouble();
+            Ostn02LookupTable.getShiftFrom(east, north, shift);
+            Ostn02LookupTable.getShiftFrom((float)east, (float)north, floatShift);
+            assertEquals(floatShift[0], shift[0], 0.001);
+            assertEquals(floatShift[1], shift[1], 0.001);
+        }
+    }
+    
+    @Test
+    public void testGetShiftFromOnKilometreLines() {
+        float[] shift = new float[2];
+        float[] nearby = new float[2];
+        float[][] points = {{384000, 302000}, {384000, 302500}, {384500, 302000}};
+        for (float[] point : points) {
+            Ostn02LookupTable.getShiftFrom(point[0], point[1], shift);
+            Ostn02LookupTable.getShiftFrom(point[0]+0.01f, point[1]+0.01f, nearby);
+            assertEquals(nearby[0], shift[0], 0.001);
+            assertEquals(nearby[1], shift[1], 0.001);
+        }
+    }
+    
+    @Test
+    public void testGetShiftToConvergent() {
+        double[] shift = new double[2];
+        int cells = Ostn02LookupTable.getShiftTo(651409.792, 313177.448, 0.0001, shift);
+        assertTrue(cells >= 1 && cells <= 3);
+        assertEquals(102.789,shift[0],0.001);
+        assertEquals(-78.238,shift[1],0.001);
+    }
+    
+    @Test
+    public void testGetGeoidHeight() {
+        float node = Ostn02LookupTable.getGeoidHeight(384000, 302000);
+        float nextNode = Ostn02LookupTable.getGeoidHeight(385000, 302000);
+        float between = Ostn02LookupTable.getGeoidHeight(384250, 302000);
+        assertEquals(0.75f*node + 0.25f*nextNode, between, 0.0001);
+        assertTrue(node > 30 && node < 70);
+    }
+    
+    @Test
+    public void testGetDatumFlag() {
+        // Newlyn datum for mainland England; nothing off the grid.
+        assertEquals(1, Ostn02LookupTable.getDatumFlag(384400, 302600));
+        assertEquals(0, Ostn02LookupTable.getDatumFlag(-5000, 302600));
+    }
 }
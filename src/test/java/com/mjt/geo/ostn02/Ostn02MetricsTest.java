@@ -0,0 +1,136 @@
+package com.mjt.geo.ostn02;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class Ostn02MetricsTest {
+
+    public Ostn02MetricsTest() {
+    }
+
+    @Before
+    public void setUp() {
+        Ostn02LookupTable.preload();
+        Ostn02Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Ostn02Metrics.setEnabled(false);
+        Ostn02Metrics.reset();
+    }
+
+    @Test
+    public void testDisabledCountsNothing() {
+        Ostn02Metrics.setEnabled(false);
+        Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.658007833, 1.716073973);
+        Osgb36ToEtrs89.TO_LATITUDE_LONGITUDE.convert(651409.792, 313177.448);
+        assertEquals(0, Ostn02Metrics.getConversions(Ostn02Metrics.Direction.TO_OSGB36));
+        assertEquals(0, Ostn02Metrics.getConversions(Ostn02Metrics.Direction.TO_ETRS89));
+        assertTrue(Ostn02Metrics.getTableLoadMillis() >= 0);
+    }
+
+    @Test
+    public void testCounts() {
+        Ostn02Metrics.setEnabled(true);
+        Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.658007833, 1.716073973);
+        double[] lat = {51.5, 52.5, 40.0};
+        double[] lon = {-0.15, -1.5, -20.0};
+        Etrs89ToOsgb36.convert(lat, lon, 0, new double[3], new double[3], 0, 3);
+        Osgb36ToEtrs89.convert(new double[] {651409.792, -5000}, new double[] {313177.448, 100000}, 0,
+                new double[2], new double[2], 0, 2);
+
+        assertEquals(2, Ostn02Metrics.getConversions(Ostn02Metrics.Direction.TO_OSGB36));
+        assertEquals(4, Ostn02Metrics.getPoints(Ostn02Metrics.Direction.TO_OSGB36));
+        assertEquals(1, Ostn02Metrics.getOutOfGridPoints(Ostn02Metrics.Direction.TO_OSGB36));
+        assertEquals(1, Ostn02Metrics.getConversions(Ostn02Metrics.Direction.TO_ETRS89));
+        assertEquals(2, Ostn02Metrics.getPoints(Ostn02Metrics.Direction.TO_ETRS89));
+        assertEquals(1, Ostn02Metrics.getOutOfGridPoints(Ostn02Metrics.Direction.TO_ETRS89));
+        assertEquals(2, Ostn02Metrics.getConversionLatency(Ostn02Metrics.Direction.TO_OSGB36).getCount());
+        assertEquals(2, Ostn02Metrics.getInverseShiftLatency().getCount());
+
+        Ostn02Metrics.reset();
+        assertEquals(0, Ostn02Metrics.getPoints(Ostn02Metrics.Direction.TO_OSGB36));
+    }
+
+    @Test
+    public void testOutOfGridUsesConversionModel() throws IOException {
+        // One kilometre square at the false origin, well away from the points.
+        GridModel model = GridModel.read("Corner", new ByteArrayInputStream(new byte[2*2*8]),
+                0, 0, 1000, 2, 2, 10000);
+        Ostn02Metrics.setEnabled(true);
+        Etrs89ToOsgb36.convert(model, new double[] {51.5, 52.5}, new double[] {-0.15, -1.5}, 0,
+                new double[2], new double[2], 0, 2, new ShiftCellCache());
+        Osgb36ToEtrs89.convert(model, 651409.792, 313177.448, new MutableCoordinate());
+
+        assertEquals(2, Ostn02Metrics.getOutOfGridPoints(Ostn02Metrics.Direction.TO_OSGB36));
+        assertEquals(1, Ostn02Metrics.getOutOfGridPoints(Ostn02Metrics.Direction.TO_ETRS89));
+    }
+
+    @Test
+    public void testListener() {
+        final List<String> events = new ArrayList<String>();
+        MetricsListener listener = new MetricsListener() {
+            @Override
+            public void converted(Ostn02Metrics.Direction direction, int points, long nanos) {
+                events.add(direction + " " + points);
+            }
+
+            @Override
+            public void outOfGrid(Ostn02Metrics.Direction direction, double easting, double northing) {
+                events.add("outside " + direction + " " + easting + "," + northing);
+            }
+
+            @Override
+            public void tableLoaded(String resource, long nanos) {
+                events.add("loaded " + resource);
+            }
+        };
+        Ostn02Metrics.addListener(listener);
+        try {
+            Ostn02Metrics.setEnabled(true);
+            Osgb36ToEtrs89.convert(-5000, 100000, new MutableCoordinate());
+            Etrs89ToOsgb36.convertVectorised(new double[] {51.5, 52.5}, new double[] {-0.15, -1.5}, 0,
+                    new double[2], new double[2], 0, 2);
+        } finally {
+            Ostn02Metrics.removeListener(listener);
+        }
+        Osgb36ToEtrs89.convert(-5000, 100000, new MutableCoordinate());
+
+        assertEquals(3, events.size());
+        assertEquals("outside TO_ETRS89 -5000.0,100000.0", events.get(0));
+        assertEquals("TO_ETRS89 1", events.get(1));
+        assertEquals("TO_OSGB36 2", events.get(2));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        Ostn02Metrics.registerMBean();
+        Ostn02Metrics.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(Ostn02Metrics.MBEAN_NAME);
+
+        server.setAttribute(name, new javax.management.Attribute("Enabled", true));
+        assertTrue(Ostn02Metrics.isEnabled());
+        Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.658007833, 1.716073973);
+        assertEquals(1L, server.getAttribute(name, "PointsToOsgb36"));
+        assertTrue((Double)server.getAttribute(name, "TableLoadMillis") >= 0);
+
+        server.invoke(name, "reset", null, null);
+        assertEquals(0L, server.getAttribute(name, "PointsToOsgb36"));
+    }
+
+}
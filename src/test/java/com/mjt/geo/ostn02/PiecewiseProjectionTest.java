@@ -0,0 +1,120 @@
+package com.mjt.geo.ostn02;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class PiecewiseProjectionTest {
+    /** Metres; what the approximate conversions promise. */
+    private static final double TOLERANCE = 0.01;
+
+    public PiecewiseProjectionTest() {
+    }
+
+    @Test
+    public void testMaxError() {
+        // The inverse series only iterates to within ARC_TOLERANCE.
+        assertTrue(PiecewiseProjection.getMaxError() < 2*TransverseMercator.ARC_TOLERANCE);
+    }
+
+    @Test
+    public void testMatchesSeries() {
+        Random random = new Random(19);
+        double[] exact = new double[2];
+        double[] fitted = new double[2];
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        for (int i=0 ; i<100000 ; i++) {
+            double latitude = 48 + 14*random.nextDouble();
+            double longitude = -12 + 20*random.nextDouble();
+            TransverseMercator.toEastingNorthing(latitude, longitude, exact, terms);
+            PiecewiseProjection.toEastingNorthing(latitude, longitude, fitted, terms);
+            assertEquals(0, Math.hypot(fitted[0]-exact[0], fitted[1]-exact[1]), 1e-6);
+
+            double east = -50000 + 800000*random.nextDouble();
+            double north = -150000 + 1550000*random.nextDouble();
+            TransverseMercator.toLatitudeLongitude(east, north, exact, terms);
+            PiecewiseProjection.toLatitudeLongitude(east, north, fitted, terms);
+            // 2e-10 degrees is around 0.02mm.
+            assertEquals(exact[0], fitted[0], 2e-10);
+            assertEquals(exact[1], fitted[1], 2e-10);
+        }
+    }
+
+    @Test
+    public void testOutsideFitsUsesSeries() {
+        double[] exact = new double[2];
+        double[] fitted = new double[2];
+        double[] terms = new double[TransverseMercator.INVERSE_TERMS];
+        TransverseMercator.toEastingNorthing(40, -2, exact, terms);
+        PiecewiseProjection.toEastingNorthing(40, -2, fitted, terms);
+        assertArrayEquals(exact, fitted, 0);
+        TransverseMercator.toLatitudeLongitude(400000, 2000000, exact, terms);
+        PiecewiseProjection.toLatitudeLongitude(400000, 2000000, fitted, terms);
+        assertArrayEquals(exact, fitted, 0);
+        PiecewiseProjection.toEastingNorthing(Double.NaN, -2, fitted, terms);
+        assertTrue(Double.isNaN(fitted[1]));
+    }
+
+    /**
+     * Every cell of the table, both ways, through the public conversions.
+     */
+    @Test
+    public void testApproximateConversionsSweepGrid() {
+        int columns = Ostn02LookupTable.MAX_EAST_KM+1;
+        int rows = Ostn02LookupTable.MAX_NORTH_KM+1;
+        Random random = new Random(20);
+        double[] eastings = new double[columns];
+        double[] northings = new double[columns];
+        double[] latitudes = new double[columns];
+        double[] longitudes = new double[columns];
+        double[] approxA = new double[columns];
+        double[] approxB = new double[columns];
+        double[] exactA = new double[columns];
+        double[] exactB = new double[columns];
+        double worst = 0;
+        for (int row=0 ; row<rows ; row++) {
+            for (int column=0 ; column<columns ; column++) {
+                eastings[column] = 1000*(column+random.nextDouble());
+                northings[column] = 1000*(row+random.nextDouble());
+            }
+
+            Osgb36ToEtrs89.convert(eastings, northings, 0, exactA, exactB, 0, columns);
+            Osgb36ToEtrs89.convertApproximate(eastings, northings, 0, approxA, approxB, 0, columns);
+            for (int column=0 ; column<columns ; column++) {
+                // Degrees to metres, generously.
+                double lat = (approxA[column]-exactA[column])*111500;
+                double lon = (approxB[column]-exactB[column])*111500;
+                worst = Math.max(worst, Math.hypot(lat, lon));
+                latitudes[column] = exactA[column];
+                longitudes[column] = exactB[column];
+            }
+
+            Etrs89ToOsgb36.convert(latitudes, longitudes, 0, exactA, exactB, 0, columns);
+            Etrs89ToOsgb36.convertApproximate(latitudes, longitudes, 0, approxA, approxB, 0, columns);
+            for (int column=0 ; column<columns ; column++) {
+                worst = Math.max(worst, Math.hypot(approxA[column]-exactA[column], approxB[column]-exactB[column]));
+            }
+        }
+        assertTrue("Worst error " + worst + "m", worst < TOLERANCE);
+        assertTrue("Worst error " + worst + "m", worst < 2*TransverseMercator.ARC_TOLERANCE);
+    }
+
+    @Test
+    public void testSinglePoint() {
+        MutableCoordinate holder = new MutableCoordinate();
+        EastingNorthing expected = Etrs89ToOsgb36.TO_EASTING_NORTHING.convert(52.658007833, 1.716073973);
+        Etrs89ToOsgb36.convertApproximate(52.658007833, 1.716073973, holder);
+        assertEquals(expected.getEast(), holder.getFirst(), 1e-6);
+        assertEquals(expected.getNorth(), holder.getSecond(), 1e-6);
+
+        LatitudeLongitude latLon = Osgb36ToEtrs89.TO_LATITUDE_LONGITUDE.convert(651409.792, 313177.448);
+        Osgb36ToEtrs89.convertApproximate(651409.792, 313177.448, holder);
+        assertEquals(latLon.getLat(), holder.getFirst(), 2e-10);
+        assertEquals(latLon.getLon(), holder.getSecond(), 2e-10);
+    }
+
+}
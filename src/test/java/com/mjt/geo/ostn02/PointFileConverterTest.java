@@ -0,0 +1,157 @@
+package com.mjt.geo.ostn02;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class PointFileConverterTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public PointFileConverterTest() {
+    }
+
+    @Test
+    public void testCsv() throws IOException {
+        StringBuilder input = new StringBuilder("lat,lon,name\n");
+        StringBuilder expected = new StringBuilder("lat,lon,name\n");
+        double[] lat = new double[200];
+        double[] lon = new double[200];
+        double[] east = new double[200];
+        double[] north = new double[200];
+        for (int i=0 ; i<lat.length ; i++) {
+            lat[i] = 50.5 + i*0.03;
+            lon[i] = -4.5 + i*0.02;
+        }
+        Etrs89ToOsgb36.convert(lat, lon, 0, east, north, 0, lat.length);
+        for (int i=0 ; i<lat.length ; i++) {
+            String ending = i%3 == 0 ? "\r\n" : "\n";
+            String rest = i%2 == 0 ? ",point " + i : "";
+            input.append(lat[i]).append(',').append(lon[i]).append(rest).append(ending);
+            expected.append(east[i]).append(',').append(north[i]).append(rest).append(ending);
+            if (i == 100) {
+                input.append("\n");
+                expected.append("\n");
+            }
+        }
+        // No newline after the last line.
+        input.setLength(input.length()-1);
+        expected.setLength(expected.length()-1);
+
+        PointFileConverter converter = new PointFileConverter(
+                PointFileConverter.Direction.TO_OSGB36, PointFileConverter.Format.CSV);
+        converter.setHeader(true);
+        // Small chunks so lines straddle chunk boundaries.
+        converter.setChunkSize(100);
+        converter.setMaxChunksInFlight(3);
+        converter.setPool(new ForkJoinPool(4));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long points = converter.convert(
+                Channels.newChannel(new ByteArrayInputStream(input.toString().getBytes(ASCII))),
+                Channels.newChannel(output));
+
+        assertEquals(lat.length, points);
+        assertEquals(expected.toString(), new String(output.toByteArray(), ASCII));
+    }
+
+    @Test
+    public void testBinary() throws IOException {
+        int count = 1000;
+        double[] east = new double[count];
+        double[] north = new double[count];
+        double[] lat = new double[count];
+        double[] lon = new double[count];
+        ByteBuffer input = ByteBuffer.allocate(16*count).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0 ; i<count ; i++) {
+            east[i] = 100000 + i*500;
+            north[i] = 50000 + i*1000;
+            input.putDouble(east[i]).putDouble(north[i]);
+        }
+        Osgb36ToEtrs89.convertVectorised(east, north, 0, lat, lon, 0, count);
+
+        PointFileConverter converter = new PointFileConverter(
+                PointFileConverter.Direction.TO_ETRS89, PointFileConverter.Format.BINARY);
+        converter.setVectorised(true);
+        // Not a multiple of the record size.
+        converter.setChunkSize(1000);
+        converter.setMaxChunksInFlight(2);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long points = converter.convert(
+                Channels.newChannel(new ByteArrayInputStream(input.array())),
+                Channels.newChannel(output));
+
+        assertEquals(count, points);
+        ByteBuffer result = ByteBuffer.wrap(output.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(16*count, result.remaining());
+        for (int i=0 ; i<count ; i++) {
+            assertEquals(lat[i], result.getDouble(), 0);
+            assertEquals(lon[i], result.getDouble(), 0);
+        }
+    }
+
+    @Test
+    public void testMainToStandardOutput() throws IOException {
+        File input = File.createTempFile("points", ".csv");
+        input.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(input);
+        try {
+            fos.write("52.658007833,1.716073973\n".getBytes(ASCII));
+        } finally {
+            fos.close();
+        }
+        double[] east = new double[1];
+        double[] north = new double[1];
+        Etrs89ToOsgb36.convert(new double[] {52.658007833}, new double[] {1.716073973}, 0, east, north, 0, 1);
+
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true));
+        System.setErr(new PrintStream(err, true));
+        try {
+            PointFileConverter.main(new String[] {"--to-osgb36", input.getPath(), "-"});
+            // Whether or not the table was already loaded, the notice now goes to stderr.
+            Ostn02LookupTable.printCopyrightNotice();
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            Ostn02LookupTable.setNoticeStream(stdout);
+        }
+
+        assertEquals(east[0] + "," + north[0] + "\n", new String(out.toByteArray(), ASCII));
+        assertTrue(new String(err.toByteArray(), ASCII).contains("Crown copyright"));
+    }
+
+    @Test(expected=IOException.class)
+    public void testBinaryTruncated() throws IOException {
+        PointFileConverter converter = new PointFileConverter(
+                PointFileConverter.Direction.TO_ETRS89, PointFileConverter.Format.BINARY);
+        converter.convert(Channels.newChannel(new ByteArrayInputStream(new byte[20])),
+                Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+    @Test(expected=IOException.class)
+    public void testCsvMalformed() throws IOException {
+        PointFileConverter converter = new PointFileConverter(
+                PointFileConverter.Direction.TO_OSGB36, PointFileConverter.Format.CSV);
+        converter.convert(Channels.newChannel(new ByteArrayInputStream("52.1,x\n".getBytes(ASCII))),
+                Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+}
@@ -8,6 +8,11 @@ import java.net.URLDecoder;
  * Populate ostn02.bin the compact binary format ostn02 lookup table file. You
  * should already have a copy of ostn02.bin - this regenerates it (useful if 
  * you want to change the encoding to make a smaller file or something similar).
+ * It also writes ostn02.compact alongside it, holding the same values in
+ * <code>CompactTableFormat</code>, and the geoid heights and datum flags to
+ * osgm02.bin and osgm02.compact. If OSTN02_OSGM02_GB.txt isn't available, the
+ * existing ostn02.bin and osgm02.bin are read and only the compact files are
+ * written.
  * 
  * Note that this will populate the file in the build folder rather than the 
  * source folder, so you'll need to copy that across.
@@ -15,13 +20,50 @@ import java.net.URLDecoder;
  */
 public class PopulateOstn02Table {
     private final static double SCALEFACTOR = 10000;
+    private final static int RECORD_COUNT = 701*1251;
     
     public static void main(String[] args) throws Exception {
-        InputStream s = PopulateOstn02Table.class.getResourceAsStream("/OSTN02_OSGM02_GB.txt");
-        BufferedReader br = new BufferedReader(new InputStreamReader(s));
-        
         URL outputUrl = PopulateOstn02Table.class.getResource("/ostn02.bin");
         String outputFilename = URLDecoder.decode(outputUrl.getPath(), "UTF-8");
+        File directory = new File(outputFilename).getParentFile();
+        File geoidFile = new File(directory, "osgm02.bin");
+        
+        InputStream s = PopulateOstn02Table.class.getResourceAsStream("/OSTN02_OSGM02_GB.txt");
+        int[] values;
+        int[] geoidValues;
+        if (s == null) {
+            values = readExisting(new File(outputFilename));
+            geoidValues = geoidFile.exists() ? readExisting(geoidFile) : null;
+        } else {
+            values = new int[2*RECORD_COUNT];
+            geoidValues = new int[2*RECORD_COUNT];
+            populateRaw(s, outputFilename, values, geoidFile, geoidValues);
+        }
+        
+        writeCompact(new File(directory, "ostn02.compact"), values);
+        if (geoidValues != null)
+            writeCompact(new File(directory, "osgm02.compact"), geoidValues);
+    }
+    
+    private static int[] readExisting(File file) throws IOException {
+        InputStream existing = new FileInputStream(file);
+        try {
+            return Ostn02LookupTable.readRawData(existing, 2*RECORD_COUNT);
+        } finally {
+            existing.close();
+        }
+    }
+    
+    private static void writeCompact(File compactFile, int[] values) throws IOException {
+        OutputStream compact = new BufferedOutputStream(new FileOutputStream(compactFile));
+        CompactTableFormat.write(compact, values, 2, 701, (int)SCALEFACTOR);
+        compact.close();
+        System.out.println("Populated " + compactFile + " (" + compactFile.length() + " bytes)");
+    }
+    
+    private static void populateRaw(InputStream s, String outputFilename, int[] values,
+            File geoidFile, int[] geoidValues) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(s));
         DataOutputStream out = new DataOutputStream(new FileOutputStream(outputFilename));
         
         double minEs = Double.POSITIVE_INFINITY;
@@ -43,14 +85,20 @@ public class PopulateOstn02Table {
             int northing = Integer.parseInt(parts[2]);
             double eastShift = Double.parseDouble(parts[3]);
             double northShift = Double.parseDouble(parts[4]);
+            double geoidHeight = Double.parseDouble(parts[5]);
+            int datumFlag = Integer.parseInt(parts[6]);
             
             minEs = Math.min(minEs,eastShift);
             maxEs = Math.max(maxEs,eastShift);
             minNs = Math.min(minNs,northShift);
             maxNs = Math.max(maxNs,northShift);
             
-            out.writeInt((int)Math.round(eastShift*SCALEFACTOR));
-            out.writeInt((int)Math.round(northShift*SCALEFACTOR));
+            values[2*(recordNum-1)] = (int)Math.round(eastShift*SCALEFACTOR);
+            values[2*(recordNum-1)+1] = (int)Math.round(northShift*SCALEFACTOR);
+            out.writeInt(values[2*(recordNum-1)]);
+            out.writeInt(values[2*(recordNum-1)+1]);
+            geoidValues[2*(recordNum-1)] = (int)Math.round(geoidHeight*SCALEFACTOR);
+            geoidValues[2*(recordNum-1)+1] = datumFlag;
             
             line = br.readLine();
         }
@@ -58,9 +106,16 @@ public class PopulateOstn02Table {
         out.close();
         br.close();
         
+        DataOutputStream geoidOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(geoidFile)));
+        for (int i=0 ; i<geoidValues.length ; i++) {
+            geoidOut.writeInt(geoidValues[i]);
+        }
+        geoidOut.close();
+        
         System.out.println("East shift " + minEs + " to " + maxEs);
         System.out.println("North shift " + minNs + " to " + maxNs);
         System.out.println("Populated " + outputFilename);
+        System.out.println("Populated " + geoidFile);
     }
     
 }
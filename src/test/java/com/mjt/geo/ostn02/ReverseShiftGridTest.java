@@ -0,0 +1,59 @@
+package com.mjt.geo.ostn02;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class ReverseShiftGridTest {
+
+    public ReverseShiftGridTest() {
+    }
+
+    @Test
+    public void testMatchesExactInverse() {
+        ReverseShiftGrid grid = ReverseShiftGrid.build();
+        assertTrue(grid.getMaxDiscrepancy() < 0.01);
+
+        Random random = new Random(45);
+        ShiftCellCache cache = new ShiftCellCache();
+        double[] exact = new double[2];
+        double[] sampled = new double[2];
+        for (int i=0 ; i<10000 ; i++) {
+            double east = 2000+696000*random.nextDouble();
+            double north = 2000+1246000*random.nextDouble();
+            cache.getShiftTo(east, north, 0.00001, exact);
+            grid.getShiftTo(east, north, sampled);
+            assertEquals(exact[0], sampled[0], 2*grid.getMaxDiscrepancy()+0.0001);
+            assertEquals(exact[1], sampled[1], 2*grid.getMaxDiscrepancy()+0.0001);
+        }
+    }
+
+    @Test
+    public void testConverterUsesGrid() {
+        double[] eastings = {651409.792, 528376.804, 384000};
+        double[] northings = {313177.448, 180799.396, 302000};
+        double[] latitudes = new double[3];
+        double[] longitudes = new double[3];
+        double[] expectedLat = new double[3];
+        double[] expectedLon = new double[3];
+        Osgb36ToEtrs89.convert(eastings, northings, 0, expectedLat, expectedLon, 0, 3);
+
+        Ostn02LookupTable.setReverseGrid(ReverseShiftGrid.build());
+        try {
+            Osgb36ToEtrs89.convert(eastings, northings, 0, latitudes, longitudes, 0, 3);
+        } finally {
+            Ostn02LookupTable.setReverseGrid(null);
+        }
+
+        for (int i=0 ; i<3 ; i++) {
+            // 1e-7 degrees is around a centimetre.
+            assertEquals(expectedLat[i], latitudes[i], 1e-7);
+            assertEquals(expectedLon[i], longitudes[i], 1e-7);
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.mjt.geo.ostn02;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class ShiftCellCacheTest {
+
+    public ShiftCellCacheTest() {
+    }
+
+    @Test
+    public void testMatchesLookupTable() {
+        Random random = new Random(42);
+        ShiftCellCache cache = new ShiftCellCache(2);
+        float[] expected = new float[2];
+        float[] actual = new float[2];
+        for (int i=0 ; i<20000 ; i++) {
+            float east, north;
+            if (i%10 == 0) {
+                // On kilometre lines, and off the edges of the table.
+                east = 1000*(random.nextInt(720)-10);
+                north = 1000*random.nextFloat()*1300 - 20000;
+            } else {
+                east = random.nextFloat()*700000;
+                north = random.nextFloat()*1250000;
+            }
+            Ostn02LookupTable.getShiftFrom(east, north, expected);
+            cache.getShiftFrom(east, north, actual);
+            assertEquals(expected[0], actual[0], 0);
+            assertEquals(expected[1], actual[1], 0);
+
+            Ostn02LookupTable.getShiftTo(east, north, expected);
+            cache.getShiftTo(east, north, actual);
+            assertEquals(expected[0], actual[0], 0);
+            assertEquals(expected[1], actual[1], 0);
+        }
+    }
+
+    @Test
+    public void testMatchesLookupTableDouble() {
+        Random random = new Random(43);
+        ShiftCellCache cache = new ShiftCellCache(2);
+        double[] expected = new double[2];
+        double[] actual = new double[2];
+        for (int i=0 ; i<20000 ; i++) {
+            double east = i%10 == 0 ? 1000*(random.nextInt(720)-10) : random.nextDouble()*700000;
+            double north = i%10 == 1 ? 1000*random.nextInt(1260) : random.nextDouble()*1300000 - 20000;
+            Ostn02LookupTable.getShiftFrom(east, north, expected);
+            cache.getShiftFrom(east, north, actual);
+            assertEquals(expected[0], actual[0], 0);
+            assertEquals(expected[1], actual[1], 0);
+        }
+    }
+
+    @Test
+    public void testFarNorthDoesNotAliasCachedCell() {
+        ShiftCellCache cache = new ShiftCellCache();
+        double[] expected = new double[2];
+        double[] actual = new double[2];
+        cache.getShiftFrom(384500.5, 302500.5, actual);
+
+        // Find a row whose int key west+701*south wraps round onto the
+        // cached cell's.
+        long key = 384+701L*302+(1L<<32);
+        int west = (int)(key%701);
+        long south = key/701;
+        double east = 1000*west+500.5;
+        double north = 1000*south+500.5;
+        Ostn02LookupTable.getShiftFrom(east, north, expected);
+        cache.getShiftFrom(east, north, actual);
+        assertEquals(expected[0], actual[0], 0);
+        assertEquals(expected[1], actual[1], 0);
+    }
+
+    @Test
+    public void testGetShiftToConverges() {
+        Random random = new Random(44);
+        ShiftCellCache cache = new ShiftCellCache();
+        double[] shift = new double[2];
+        double[] forward = new double[2];
+        for (int i=0 ; i<20000 ; i++) {
+            double east = i%10 == 0 ? 1000*random.nextInt(700) : random.nextDouble()*700000;
+            double north = random.nextDouble()*1250000;
+            int cells = cache.getShiftTo(east, north, 0.0001, shift);
+            assertTrue(cells >= 1 && cells <= 3);
+            
+            // Shifting the ETRS89 position forward gives back the input.
+            double etrsEast = east-shift[0];
+            double etrsNorth = north-shift[1];
+            Ostn02LookupTable.getShiftFrom(etrsEast, etrsNorth, forward);
+            assertEquals(east, etrsEast+forward[0], 0.0001);
+            assertEquals(north, etrsNorth+forward[1], 0.0001);
+        }
+        assertEquals(20000, cache.getInverseLookups());
+        assertTrue(cache.getInverseIterations() < 25000);
+    }
+
+    @Test
+    public void testGeoid() {
+        Random random = new Random(45);
+        ShiftCellCache cache = new ShiftCellCache();
+        double[] expected = new double[2];
+        for (int i=0 ; i<2000 ; i++) {
+            double east = 384000 + random.nextDouble()*2000;
+            double north = 302000 + random.nextDouble()*2000;
+            GridModel.OSGM02.interpolate(east, north, expected);
+            assertEquals(expected[0], cache.getGeoidHeight(GridModel.OSGM02, east, north), 0);
+            assertEquals(Ostn02LookupTable.getDatumFlag((float)east, (float)north),
+                    cache.getDatumFlag(GridModel.OSGM02, east, north));
+        }
+        assertEquals(4, cache.getMisses());
+        assertEquals(0, cache.getDatumFlag(GridModel.OSGM02, -5000, 302600));
+    }
+
+    @Test
+    public void testCounters() {
+        ShiftCellCache cache = new ShiftCellCache();
+        float[] shift = new float[2];
+        // A track across four cells.
+        for (int i=0 ; i<300 ; i++) {
+            cache.getShiftFrom(384100.5f + 10*i, 302100.5f, shift);
+        }
+        assertEquals(4, cache.getMisses());
+        assertEquals(296, cache.getHits());
+
+        cache.clear();
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+        cache.getShiftFrom(384100.5f, 302100.5f, shift);
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testConvertWithCache() {
+        double[] lat = new double[100];
+        double[] lon = new double[100];
+        for (int i=0 ; i<lat.length ; i++) {
+            lat[i] = 51.5 + i*0.00001;
+            lon[i] = -0.15 + i*0.00001;
+        }
+        double[] expectedEast = new double[100];
+        double[] expectedNorth = new double[100];
+        double[] east = new double[100];
+        double[] north = new double[100];
+        Etrs89ToOsgb36.convert(lat, lon, 0, expectedEast, expectedNorth, 0, lat.length);
+
+        ShiftCellCache cache = new ShiftCellCache();
+        Etrs89ToOsgb36.convert(lat, lon, 0, east, north, 0, lat.length, cache);
+        assertArrayEquals(expectedEast, east, 0);
+        assertArrayEquals(expectedNorth, north, 0);
+        assertEquals(lat.length, cache.getHits()+cache.getMisses());
+        assertTrue(cache.getMisses() <= 2);
+    }
+
+}
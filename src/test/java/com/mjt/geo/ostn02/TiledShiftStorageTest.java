@@ -0,0 +1,191 @@
+package com.mjt.geo.ostn02;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class TiledShiftStorageTest {
+    private static final int ROW_LENGTH = 120;
+    private static final int ROWS = 130;
+    private static final int TILE_SIZE = 50;
+
+    public TiledShiftStorageTest() {
+    }
+
+    @Test
+    public void testGet() throws IOException {
+        int[] values = randomValues(1);
+        TiledShiftStorage instance = open(writeFile(values), 0);
+        assertEquals(9, instance.getTileCount());
+        assertEquals(0, instance.getLoadedTiles());
+
+        Random random = new Random(2);
+        for (int n=0 ; n<10000 ; n++) {
+            int i = random.nextInt(values.length);
+            assertEquals(values[i], instance.get(i));
+        }
+        assertEquals(9, instance.getLoadedTiles());
+        assertEquals(9, instance.getLoads());
+    }
+
+    @Test
+    public void testReadsOnlyTouchedTiles() throws IOException {
+        int[] values = randomValues(3);
+        TiledShiftStorage instance = open(writeFile(values), 0);
+
+        // Records in the middle tile: rows and columns 50 to 99.
+        for (int row=60 ; row<90 ; row++) {
+            for (int column=55 ; column<95 ; column++) {
+                int i = 2*(column+ROW_LENGTH*row);
+                assertEquals(values[i], instance.get(i));
+                assertEquals(values[i+1], instance.get(i+1));
+            }
+        }
+        assertEquals(1, instance.getLoadedTiles());
+        assertEquals(1, instance.getLoads());
+    }
+
+    @Test
+    public void testEmptyTilesNotStored() throws IOException {
+        int[] values = randomValues(4);
+        File full = writeFile(values);
+        for (int row=0 ; row<TILE_SIZE ; row++) {
+            for (int column=0 ; column<TILE_SIZE ; column++) {
+                values[2*(column+ROW_LENGTH*row)] = 0;
+                values[2*(column+ROW_LENGTH*row)+1] = 0;
+            }
+        }
+        File sparse = writeFile(values);
+        assertEquals(full.length() - 4*2*TILE_SIZE*TILE_SIZE, sparse.length());
+
+        TiledShiftStorage instance = open(sparse, 0);
+        assertEquals(0, instance.get(0));
+        assertEquals(0, instance.get(2*(49+ROW_LENGTH*49)+1));
+        assertEquals(values[2*50], instance.get(2*50));
+        assertEquals(1, instance.getLoads());
+    }
+
+    @Test
+    public void testEvictsColdTiles() throws IOException {
+        int[] values = randomValues(5);
+        TiledShiftStorage instance = open(writeFile(values), 2);
+
+        for (int pass=0 ; pass<3 ; pass++) {
+            for (int i=0 ; i<values.length ; i++) {
+                assertEquals(values[i], instance.get(i));
+                assertTrue(instance.getLoadedTiles() <= 2);
+            }
+        }
+        assertTrue(instance.getEvictions() > 0);
+        assertEquals(instance.getLoads()-instance.getEvictions(), instance.getLoadedTiles());
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final int[] values = randomValues(6);
+        final TiledShiftStorage instance = open(writeFile(values), 3);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t=0 ; t<threads.length ; t++) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int n=0 ; n<100000 ; n++) {
+                            int i = random.nextInt(values.length);
+                            assertEquals(values[i], instance.get(i));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertTrue(instance.getLoadedTiles() <= 3);
+    }
+
+    @Test(expected=UncheckedIOException.class)
+    public void testChecksumMismatch() throws IOException {
+        File file = writeFile(randomValues(7));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length()-1);
+            int last = raf.read();
+            raf.seek(raf.length()-1);
+            raf.write(last ^ 1);
+        } finally {
+            raf.close();
+        }
+        open(file, 0).get(2*ROW_LENGTH*ROWS-1);
+    }
+
+    @Test(expected=IOException.class)
+    public void testWrongLayout() throws IOException {
+        TiledShiftStorage.open(writeFile(randomValues(8)), 2, ROW_LENGTH, ROWS+1, 10000, 0);
+    }
+
+    @Test
+    public void testUseTiledData() throws IOException {
+        float[][] points = {{651307.003F, 313255.686F}, {528376.804F, 180799.396F}, {150000, 950000}};
+        float[][] expected = new float[points.length][2];
+        for (int i=0 ; i<points.length ; i++) {
+            Ostn02LookupTable.getShiftFrom(points[i][0], points[i][1], expected[i]);
+        }
+        File file = File.createTempFile("ostn02test", ".tiles");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            Ostn02LookupTable.writeTiledData(out);
+        } finally {
+            out.close();
+        }
+
+        Ostn02LookupTable.useTiledData(file, 4);
+
+        float[] shift = new float[2];
+        for (int i=0 ; i<points.length ; i++) {
+            Ostn02LookupTable.getShiftFrom(points[i][0], points[i][1], shift);
+            assertEquals(expected[i][0], shift[0], 0);
+            assertEquals(expected[i][1], shift[1], 0);
+        }
+    }
+
+    private static int[] randomValues(long seed) {
+        Random random = new Random(seed);
+        int[] values = new int[2*ROW_LENGTH*ROWS];
+        for (int i=0 ; i<values.length ; i++) {
+            values[i] = random.nextInt();
+        }
+        return values;
+    }
+
+    private static TiledShiftStorage open(File file, int maxTiles) throws IOException {
+        return TiledShiftStorage.open(file, 2, ROW_LENGTH, ROWS, 10000, maxTiles);
+    }
+
+    private static File writeFile(int[] values) throws IOException {
+        File file = File.createTempFile("ostn02test", ".tiles");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            TiledShiftStorage.write(out, values, 2, ROW_LENGTH, TILE_SIZE, 10000);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,170 @@
+package com.mjt.geo.ostn02;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the projection against the test point in "Transformations and 
+ * OSGM02 user guide" appendix A, and against the series exactly as the guide
+ * writes it, which is what the converters used before.
+ * @author Michael Tandy
+ */
+public class TransverseMercatorTest {
+    
+    public TransverseMercatorTest() {
+    }
+
+    @Test
+    public void testToEastingNorthing() {
+        double[] eastNorth = new double[2];
+        TransverseMercator.toEastingNorthing(52.658007833, 1.716073973, eastNorth, new double[TransverseMercator.FORWARD_TERMS]);
+        assertEquals(651307.003, eastNorth[0], 0.001);
+        assertEquals(313255.686, eastNorth[1], 0.001);
+    }
+    
+    @Test
+    public void testToLatitudeLongitude() {
+        double[] latLon = new double[2];
+        TransverseMercator.toLatitudeLongitude(651307.003, 313255.686, latLon, new double[TransverseMercator.INVERSE_TERMS]);
+        assertEquals(52.658007833, latLon[0], 0.00000001);
+        assertEquals(1.716073973, latLon[1], 0.00000001);
+    }
+    
+    @Test
+    public void testMatchesReferenceForward() {
+        double[] eastNorth = new double[2];
+        double maxError = 0;
+        for (double latitude=49 ; latitude<=61.5 ; latitude+=0.05) {
+            for (double longitude=-10 ; longitude<=3 ; longitude+=0.05) {
+                TransverseMercator.toEastingNorthing(latitude, longitude, eastNorth, new double[TransverseMercator.FORWARD_TERMS]);
+                double[] expected = referenceToEastingNorthing(latitude, longitude);
+                maxError = Math.max(maxError, Math.abs(expected[0]-eastNorth[0]));
+                maxError = Math.max(maxError, Math.abs(expected[1]-eastNorth[1]));
+            }
+        }
+        assertEquals(0, maxError, 0.00001);
+    }
+    
+    @Test
+    public void testMatchesReferenceInverse() {
+        double[] latLon = new double[2];
+        double maxError = 0;
+        for (double east=0 ; east<=700000 ; east+=2500) {
+            for (double north=0 ; north<=1250000 ; north+=2500) {
+                TransverseMercator.toLatitudeLongitude(east, north, latLon, new double[TransverseMercator.INVERSE_TERMS]);
+                double[] expected = referenceToLatitudeLongitude(east, north);
+                maxError = Math.max(maxError, Math.abs(expected[0]-latLon[0]));
+                maxError = Math.max(maxError, Math.abs(expected[1]-latLon[1]));
+            }
+        }
+        // 0.01 mm is about 1e-10 degrees.
+        assertEquals(0, maxError, 0.0000000002);
+    }
+    
+    @Test
+    public void testRoundTrip() {
+        // The series are truncated, and more than about 250 km from the
+        // central meridian a round trip drifts by over a millimetre.
+        double[] latLon = new double[2];
+        double[] eastNorth = new double[2];
+        for (double east=150000 ; east<=650000 ; east+=10000) {
+            for (double north=0 ; north<=1250000 ; north+=10000) {
+                TransverseMercator.toLatitudeLongitude(east, north, latLon, new double[TransverseMercator.INVERSE_TERMS]);
+                TransverseMercator.toEastingNorthing(latLon[0], latLon[1], eastNorth, new double[TransverseMercator.FORWARD_TERMS]);
+                assertEquals(east, eastNorth[0], 0.001);
+                assertEquals(north, eastNorth[1], 0.001);
+            }
+        }
+    }
+    
+    private static double[] referenceToEastingNorthing(double latitude, double longitude) {
+        double lat = Math.PI/180.0 * latitude;
+        double lon = Math.PI/180.0 * longitude;
+        
+        double a = 6378137.000;
+        double b = 6356752.3141;
+        double eSquared = (sq(a)-sq(b))/sq(a);
+        double n0 = -100000;
+        double e0 = 400000;
+        double f0 = 0.9996012717;
+        double lat0 = Math.PI/180.0 * 49;
+        double lon0 = Math.PI/180.0 * -2;
+        
+        double sinLat = Math.sin(lat);
+        double cosLat = Math.cos(lat);
+        double tanLat = Math.tan(lat);
+        
+        double n = (a-b)/(a+b);
+        double v = a*f0 * Math.pow(1-eSquared*sq(sinLat),-0.5);
+        double rho = a*f0*(1-eSquared)*Math.pow(1-eSquared*sq(sinLat),-1.5);
+        double etaSquared = v/rho-1;
+        
+        double ma = (1 + n + (5.0/4.0)*sq(n) + (5.0/4.0)*cube(n)) * (lat-lat0);
+        double mb = (3*n + 3*sq(n) + (21.0/8.0)*cube(n)) * Math.sin(lat-lat0) * Math.cos(lat+lat0);
+        double mc = ((15.0/8.0)*sq(n) + (15.0/8.0)*cube(n)) * Math.sin(2*(lat-lat0)) * Math.cos(2*(lat+lat0));
+        double md = (35.0/24.0)*cube(n) * Math.sin(3*(lat-lat0)) * Math.cos(3*(lat+lat0));
+        double M = b*f0*(ma-mb+mc-md);
+        
+        double I = M + n0;
+        double II = v/2*sinLat*cosLat;
+        double III = v/24*sinLat*cube(cosLat)*(5-sq(tanLat)+9*etaSquared);
+        double IIIA = v/720*sinLat*Math.pow(cosLat,5)*(61-58*sq(tanLat)+Math.pow(tanLat,4));
+        double IV = v*cosLat;
+        double V = (v/6)*cube(cosLat)*(v/rho - sq(tanLat));
+        double VI = (v/120)*Math.pow(cosLat,5)*(5-18*sq(tanLat)+Math.pow(tanLat,4)+14*etaSquared-58*sq(tanLat)*etaSquared);
+        
+        double north = I + II*sq(lon-lon0) + III*Math.pow(lon-lon0,4) + IIIA*Math.pow(lon-lon0,6);
+        double east = e0 + IV*(lon-lon0) + V*cube(lon-lon0) + VI*Math.pow(lon-lon0,5);
+        return new double[] {east, north};
+    }
+    
+    private static double[] referenceToLatitudeLongitude(double east, double north) {
+        double a = 6378137.000;
+        double b = 6356752.3141;
+        double eSquared = (sq(a)-sq(b))/sq(a);
+        double n0 = -100000;
+        double e0 = 400000;
+        double f0 = 0.9996012717;
+        double lat0 = Math.PI/180.0 * 49;
+        double lon0 = Math.PI/180.0 * -2;
+        
+        double n = (a-b)/(a+b);
+        double latPrime = (north-n0)/(a*f0) +lat0;
+        
+        for (int i=0 ; i<5 ; i++) {
+            double ma = (1 + n + (5.0/4.0)*sq(n) + (5.0/4.0)*cube(n)) * (latPrime-lat0);
+            double mb = (3*n + 3*sq(n) + (21.0/8.0)*cube(n)) * Math.sin(latPrime-lat0) * Math.cos(latPrime+lat0);
+            double mc = ((15.0/8.0)*sq(n) + (15.0/8.0)*cube(n)) * Math.sin(2*(latPrime-lat0)) * Math.cos(2*(latPrime+lat0));
+            double md = (35.0/24.0)*cube(n) * Math.sin(3*(latPrime-lat0)) * Math.cos(3*(latPrime+lat0));
+            double M = b*f0*(ma-mb+mc-md);
+            latPrime = (north-n0-M)/(a*f0) + latPrime;
+        }
+        
+        double sinLat = Math.sin(latPrime);
+        double secLat = 1/Math.cos(latPrime);
+        double tanLat = Math.tan(latPrime);
+        
+        double v = a*f0 * Math.pow(1-eSquared*sq(sinLat),-0.5);
+        double rho = a*f0*(1-eSquared)*Math.pow(1-eSquared*sq(sinLat),-1.5);
+        double etaSquared = v/rho-1;
+        
+        double VII = tanLat / (2*rho*v);
+        double VIII = tanLat / (24*rho*cube(v)) * (5 + 3*sq(tanLat) + etaSquared - 9*sq(tanLat)*etaSquared);
+        double IX = tanLat / (720*rho*Math.pow(v,5)) * (61 + 90*sq(tanLat) + 45*Math.pow(tanLat,4));
+        double X = secLat / v;
+        double XI = secLat / (6*cube(v)) * (v/rho + 2*sq(tanLat));
+        double XII = secLat / (120*Math.pow(v,5)) * (5 + 28*sq(tanLat) + 24*Math.pow(tanLat,4));
+        double XIIA = secLat / (5040*Math.pow(v,7)) * (61 + 662*sq(tanLat) + 1320*Math.pow(tanLat,4) + 720*Math.pow(tanLat,6));
+        
+        double lat = latPrime - VII*sq(east-e0) + VIII*Math.pow(east-e0,4) - IX*Math.pow(east-e0,6);
+        double lon = lon0 + X*(east-e0) - XI*cube(east-e0) + XII*Math.pow(east-e0,5) - XIIA*Math.pow(east-e0,7);
+        return new double[] {180/Math.PI * lat, 180/Math.PI * lon};
+    }
+    
+    private static double sq(double a) {
+        return a*a;
+    }
+    private static double cube(double a) {
+        return a*a*a;
+    }
+}
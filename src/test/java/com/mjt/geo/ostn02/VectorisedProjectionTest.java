@@ -0,0 +1,113 @@
+package com.mjt.geo.ostn02;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the polynomial fits against the scalar series over the whole of the
+ * National Grid.
+ * @author Michael Tandy
+ */
+public class VectorisedProjectionTest {
+    /** Sub-millimetre agreement; a degree of latitude is about 111 km. */
+    private static final double TOLERANCE_METRES = 0.0001;
+    private static final double TOLERANCE_DEGREES = TOLERANCE_METRES/111000;
+    
+    public VectorisedProjectionTest() {
+    }
+
+    @Test
+    public void testToTransverseMercator() {
+        int rows = 300, columns = 300;
+        double[] latitudes = new double[rows*columns];
+        double[] longitudes = new double[rows*columns];
+        for (int row=0 ; row<rows ; row++) {
+            for (int column=0 ; column<columns ; column++) {
+                latitudes[row*columns+column] = 49.0 + 12.5*row/(rows-1);
+                longitudes[row*columns+column] = -10.0 + 13.0*column/(columns-1);
+            }
+        }
+        double[] eastings = new double[latitudes.length];
+        double[] northings = new double[latitudes.length];
+        
+        VectorisedProjection.toTransverseMercator(latitudes, longitudes, 0, eastings, northings, 0, latitudes.length);
+        
+        double[] expected = new double[2];
+        double maxError = 0;
+        for (int i=0 ; i<latitudes.length ; i++) {
+            TransverseMercator.toEastingNorthing(latitudes[i], longitudes[i], expected, new double[TransverseMercator.FORWARD_TERMS]);
+            maxError = Math.max(maxError, Math.abs(expected[0]-eastings[i]));
+            maxError = Math.max(maxError, Math.abs(expected[1]-northings[i]));
+        }
+        System.out.println("Vectorised forward projection max error " + maxError + " m");
+        assertTrue(maxError < TOLERANCE_METRES);
+    }
+    
+    @Test
+    public void testFromTransverseMercator() {
+        int rows = 300, columns = 300;
+        double[] eastings = new double[rows*columns];
+        double[] northings = new double[rows*columns];
+        for (int row=0 ; row<rows ; row++) {
+            for (int column=0 ; column<columns ; column++) {
+                eastings[row*columns+column] = 700000.0*column/(columns-1);
+                northings[row*columns+column] = 1250000.0*row/(rows-1);
+            }
+        }
+        double[] latitudes = new double[eastings.length];
+        double[] longitudes = new double[eastings.length];
+        
+        VectorisedProjection.fromTransverseMercator(eastings, northings, 0, latitudes, longitudes, 0, eastings.length);
+        
+        double[] expected = new double[2];
+        double maxError = 0;
+        for (int i=0 ; i<eastings.length ; i++) {
+            TransverseMercator.toLatitudeLongitude(eastings[i], northings[i], expected, new double[TransverseMercator.INVERSE_TERMS]);
+            maxError = Math.max(maxError, Math.abs(expected[0]-latitudes[i]));
+            maxError = Math.max(maxError, Math.abs(expected[1]-longitudes[i])*Math.cos(Math.toRadians(expected[0])));
+        }
+        System.out.println("Vectorised inverse projection max error " + maxError + " degrees");
+        assertTrue(maxError < TOLERANCE_DEGREES);
+    }
+    
+    @Test
+    public void testFallbackInPlace() {
+        double[] latitudes = {52.658007833, 40.0, Double.NaN, 70.0};
+        double[] longitudes = {1.716073973, -2.0, 0, 5.0};
+        double[][] expected = new double[latitudes.length][2];
+        for (int i=0 ; i<latitudes.length ; i++) {
+            TransverseMercator.toEastingNorthing(latitudes[i], longitudes[i], expected[i], new double[TransverseMercator.FORWARD_TERMS]);
+        }
+        
+        VectorisedProjection.toTransverseMercator(latitudes, longitudes, 0, latitudes, longitudes, 0, latitudes.length);
+        
+        assertEquals(expected[0][0], latitudes[0], TOLERANCE_METRES);
+        assertEquals(expected[0][1], longitudes[0], TOLERANCE_METRES);
+        for (int i=1 ; i<latitudes.length ; i++) {
+            assertEquals(expected[i][0], latitudes[i], 0);
+            assertEquals(expected[i][1], longitudes[i], 0);
+        }
+    }
+    
+    @Test
+    public void testConvertVectorised() {
+        double[] latitudes = {52.658007833, 51.511547, 55.5, 58.2};
+        double[] longitudes = {1.716073973, -0.151412, -3.25, -5.9};
+        double[] eastings = new double[latitudes.length];
+        double[] northings = new double[latitudes.length];
+        double[] expectedEast = new double[latitudes.length];
+        double[] expectedNorth = new double[latitudes.length];
+        
+        Etrs89ToOsgb36.convertVectorised(latitudes, longitudes, 0, eastings, northings, 0, latitudes.length);
+        Etrs89ToOsgb36.convert(latitudes, longitudes, 0, expectedEast, expectedNorth, 0, latitudes.length);
+        assertArrayEquals(expectedEast, eastings, TOLERANCE_METRES);
+        assertArrayEquals(expectedNorth, northings, TOLERANCE_METRES);
+        
+        double[] resultLat = new double[latitudes.length];
+        double[] resultLon = new double[latitudes.length];
+        Osgb36ToEtrs89.convertVectorised(eastings, northings, 0, resultLat, resultLon, 0, latitudes.length);
+        Osgb36ToEtrs89.convert(eastings, northings, 0, latitudes, longitudes, 0, latitudes.length);
+        assertArrayEquals(latitudes, resultLat, TOLERANCE_DEGREES);
+        assertArrayEquals(longitudes, resultLon, TOLERANCE_DEGREES);
+    }
+}
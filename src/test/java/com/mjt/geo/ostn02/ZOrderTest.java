@@ -0,0 +1,79 @@
+package com.mjt.geo.ostn02;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Michael Tandy
+ */
+public class ZOrderTest {
+
+    public ZOrderTest() {
+    }
+
+    @Test
+    public void testKey() {
+        assertEquals(0, ZOrder.key(GridModel.OSTN02, 0, 0));
+        assertEquals(0, ZOrder.key(GridModel.OSTN02, 999.9, 999.9));
+        assertEquals(1, ZOrder.key(GridModel.OSTN02, 1000, 0));
+        assertEquals(2, ZOrder.key(GridModel.OSTN02, 0, 1000));
+        assertEquals(3, ZOrder.key(GridModel.OSTN02, 1000, 1000));
+        assertEquals(ZOrder.key(GridModel.OSTN02, 0, 5000), ZOrder.key(GridModel.OSTN02, -20000, 5500));
+        assertEquals(ZOrder.key(GridModel.OSTN02, 700000, 1250000), ZOrder.key(GridModel.OSTN02, 1e9, 1e9));
+    }
+
+    @Test
+    public void testKeyFollowsModel() throws IOException {
+        // 10km cells from 400000,200000.
+        GridModel model = GridModel.read("Coarse", new ByteArrayInputStream(new byte[11*11*8]),
+                400000, 200000, 10000, 11, 11, 1000);
+        assertEquals(0, ZOrder.key(model, 400000, 200000));
+        assertEquals(0, ZOrder.key(model, 409999, 209999));
+        assertEquals(1, ZOrder.key(model, 410000, 200000));
+        assertEquals(2, ZOrder.key(model, 400000, 210000));
+        assertEquals(ZOrder.key(model, 0, 0), ZOrder.key(model, 400000, 200000));
+        assertEquals(ZOrder.key(model, 500000, 300000), ZOrder.key(model, 1e9, 1e9));
+    }
+
+    @Test
+    public void testKeyFitsLargeGrid() throws IOException {
+        // 100000 columns need 17 bits; the key keeps the top 15 of each.
+        GridModel model = GridModel.read("Wide", new ByteArrayInputStream(new byte[100000*2*8]),
+                0, 0, 1, 100000, 2, 1000);
+        assertEquals(0, ZOrder.key(model, 3, 1));
+        assertEquals(1, ZOrder.key(model, 4, 0));
+        assertTrue(ZOrder.key(model, 99999, 1) > 0);
+    }
+
+    @Test
+    public void testSort() {
+        Random random = new Random(3);
+        int length = 10000;
+        double[] eastings = new double[length+2];
+        double[] northings = new double[length+2];
+        for (int i=2 ; i<length+2 ; i++) {
+            eastings[i] = random.nextDouble()*50000;
+            northings[i] = random.nextDouble()*50000;
+        }
+
+        int[] order = ZOrder.sort(GridModel.OSTN02, eastings, northings, 2, length);
+
+        boolean[] seen = new boolean[length];
+        for (int k=0 ; k<length ; k++) {
+            assertFalse(seen[order[k]]);
+            seen[order[k]] = true;
+            if (k > 0) {
+                int previous = ZOrder.key(GridModel.OSTN02, eastings[2+order[k-1]], northings[2+order[k-1]]);
+                int key = ZOrder.key(GridModel.OSTN02, eastings[2+order[k]], northings[2+order[k]]);
+                assertTrue(previous <= key);
+                if (previous == key)
+                    assertTrue(order[k-1] < order[k]);
+            }
+        }
+    }
+
+}